@@ -25,6 +25,7 @@ import java.awt.FileDialog;
 import java.awt.Frame;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -35,8 +36,13 @@ import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
 
 import bdv.BigDataViewer;
+import bdv.ij.export.stats.HistogramSidecar;
 import bdv.ij.util.ProgressWriterIJ;
+import bdv.tools.brightness.ConverterSetup;
+import bdv.viewer.ConverterSetups;
+import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerOptions;
+import ij.IJ;
 import ij.Prefs;
 
 @Plugin(type = Command.class, menuPath = "Plugins>BigDataViewer>Open XML/HDF5")
@@ -132,7 +138,8 @@ public class BigDataViewerPlugIn implements Command
 			try
 			{
 				lastDatasetPath = file.getAbsolutePath();
-				BigDataViewer.open( file.getAbsolutePath(), file.getName(), new ProgressWriterIJ(), ViewerOptions.options() );
+				final BigDataViewer bdv = BigDataViewer.open( file.getAbsolutePath(), file.getName(), new ProgressWriterIJ(), ViewerOptions.options() );
+				applyHistogramDisplayRanges( bdv, file );
 			}
 			catch ( final Exception e )
 			{
@@ -141,6 +148,42 @@ public class BigDataViewerPlugIn implements Command
 		}
 	}
 
+	/**
+	 * If the dataset has no saved viewer settings, set the display range of
+	 * each source from the percentiles of the {@link HistogramSidecar} written
+	 * by the exporters (if there is one).
+	 */
+	static void applyHistogramDisplayRanges( final BigDataViewer bdv, final File xmlFile )
+	{
+		final String xmlFilename = xmlFile.getAbsolutePath();
+		if ( xmlFilename.endsWith( ".xml" ) && new File( xmlFilename.substring( 0, xmlFilename.length() - ".xml".length() ) + ".settings.xml" ).isFile() )
+			return;
+
+		final HistogramSidecar histograms;
+		try
+		{
+			histograms = HistogramSidecar.read( xmlFile );
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( e.getMessage() );
+			return;
+		}
+		if ( histograms == null )
+			return;
+
+		final ConverterSetups converterSetups = bdv.getConverterSetups();
+		for ( final SourceAndConverter< ? > source : bdv.getViewer().state().getSources() )
+		{
+			final ConverterSetup setup = converterSetups.getConverterSetup( source );
+			if ( setup == null )
+				continue;
+			final double[] range = histograms.getDisplayRange( setup.getSetupId() );
+			if ( range != null && range[ 1 ] > range[ 0 ] )
+				setup.setDisplayRange( range[ 0 ], range[ 1 ] );
+		}
+	}
+
 	private boolean isMac()
 	{
 		final String OS = System.getProperty( "os.name", "generic" ).toLowerCase( Locale.ENGLISH );
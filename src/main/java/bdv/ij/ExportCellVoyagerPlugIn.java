@@ -35,6 +35,7 @@ import java.io.FilenameFilter;
 import javax.swing.JFileChooser;
 import javax.swing.filechooser.FileFilter;
 
+import org.janelia.saalfeldlab.n5.Compression;
 import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
 
@@ -59,17 +60,32 @@ public class ExportCellVoyagerPlugIn implements Command
 
 		final File seqFile;
 
-		final File hdf5File;
+		/**
+		 * The HDF5 file, or the N5 container if {@link #n5Compression} is
+		 * non-{@code null}.
+		 */
+		final File dataFile;
 
 		final File sourceFolder;
 
-		public Parameters( final int[][] resolutions, final int[][] subdivisions, final File sourceFile, final File seqFile, final File hdf5File )
+		/**
+		 * If non-{@code null}, export to N5 with this compression.
+		 */
+		final Compression n5Compression;
+
+		public Parameters( final int[][] resolutions, final int[][] subdivisions, final File sourceFile, final File seqFile, final File dataFile )
+		{
+			this( resolutions, subdivisions, sourceFile, seqFile, dataFile, null );
+		}
+
+		public Parameters( final int[][] resolutions, final int[][] subdivisions, final File sourceFile, final File seqFile, final File dataFile, final Compression n5Compression )
 		{
 			this.resolutions = resolutions;
 			this.subdivisions = subdivisions;
 			this.sourceFolder = sourceFile;
 			this.seqFile = seqFile;
-			this.hdf5File = hdf5File;
+			this.dataFile = dataFile;
+			this.n5Compression = n5Compression;
 		}
 	}
 
@@ -79,6 +95,12 @@ public class ExportCellVoyagerPlugIn implements Command
 
 	static String lastExportPath;
 
+	static int lastFormatChoice = 0;
+
+	static int lastCompressionChoice = 2;
+
+	static boolean lastCompressionDefaultSettings = true;
+
 	static String sourceFolderStr;
 
 	private String sourcePath;
@@ -104,7 +126,10 @@ public class ExportCellVoyagerPlugIn implements Command
 
 		final CellVoyagerDataExporter exporter = new CellVoyagerDataExporter( measurementSettingFile, imageIndexFile );
 		final ProgressWriter progressWriter = new ProgressWriterIJ();
-		exporter.export( params.seqFile, params.hdf5File, params.resolutions, params.subdivisions, progressWriter );
+		if ( params.n5Compression != null )
+			exporter.exportN5( params.seqFile, params.dataFile, params.resolutions, params.subdivisions, params.n5Compression, progressWriter );
+		else
+			exporter.export( params.seqFile, params.dataFile, params.resolutions, params.subdivisions, progressWriter );
 
 	}
 
@@ -118,6 +143,13 @@ public class ExportCellVoyagerPlugIn implements Command
 			gd.addStringField( "Hdf5 chunk sizes", lastChunkSizes, 25 );
 			gd.addMessage( "" );
 
+			final String[] formatChoices = new String[] { "XML/HDF5", "XML/N5" };
+			gd.addChoice( "Export format", formatChoices, formatChoices[ lastFormatChoice ] );
+			final String[] compressionChoices = ExportImagePlusAsN5PlugIn.compressionChoices;
+			gd.addChoice( "N5 compression", compressionChoices, compressionChoices[ lastCompressionChoice ] );
+			gd.addCheckbox( "default compression settings", lastCompressionDefaultSettings );
+			gd.addMessage( "" );
+
 			if ( null == sourcePathStr )
 			{
 				if ( null == sourceFolderStr )
@@ -146,6 +178,9 @@ public class ExportCellVoyagerPlugIn implements Command
 
 			lastSubsampling = gd.getNextString();
 			lastChunkSizes = gd.getNextString();
+			lastFormatChoice = gd.getNextChoiceIndex();
+			lastCompressionChoice = gd.getNextChoiceIndex();
+			lastCompressionDefaultSettings = gd.getNextBoolean();
 			sourceFolderStr = gd.getNextString();
 			lastExportPath = gd.getNextString();
 
@@ -180,10 +215,20 @@ public class ExportCellVoyagerPlugIn implements Command
 				IJ.showMessage( "Invalid export filename " + seqFilename );
 				continue;
 			}
-			final String hdf5Filename = seqFilename.substring( 0, seqFilename.length() - 4 ) + ".h5";
-			final File hdf5File = new File( hdf5Filename );
+			final boolean n5 = lastFormatChoice == 1;
+			final String dataFilename = seqFilename.substring( 0, seqFilename.length() - 4 ) + ( n5 ? ".n5" : ".h5" );
+			final File dataFile = new File( dataFilename );
+			final Compression compression;
+			if ( n5 )
+			{
+				compression = ExportImagePlusAsN5PlugIn.getCompression( lastCompressionChoice, lastCompressionDefaultSettings );
+				if ( compression == null )
+					return null;
+			}
+			else
+				compression = null;
 
-			return new Parameters( resolutions, subdivisions, sourceFolder, seqFile, hdf5File );
+			return new Parameters( resolutions, subdivisions, sourceFolder, seqFile, dataFile, compression );
 		}
 	}
 
@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.Context;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import bdv.ij.export.ExportInput;
+import bdv.ij.util.PluginHelper;
+import bdv.ij.util.ProgressWriterIJ;
+import bdv.img.scifio.ScifioImageLoader;
+import ij.IJ;
+import ij.io.OpenDialog;
+
+/**
+ * ImageJ plugin to export an image file to xml/n5, without opening it as
+ * an ImagePlus. Planes are streamed from the file through a
+ * {@link ScifioImageLoader}, so files larger than the available memory can be
+ * exported.
+ */
+@Plugin(type = Command.class,
+	menuPath = "Plugins>BigDataViewer>Export File as XML/N5")
+public class ExportFileAsN5PlugIn extends ExportImagePlusAsN5PlugIn
+{
+	@Parameter
+	private Context context;
+
+	@Override
+	public void run()
+	{
+		if ( ij.Prefs.setIJMenuBar )
+			System.setProperty( "apple.laf.useScreenMenuBar", "true" );
+
+		final OpenDialog od = new OpenDialog( "Select image file to export" );
+		if ( od.getFileName() == null )
+			return;
+		final File file = new File( od.getDirectory(), od.getFileName() );
+
+		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
+		try ( final ScifioImageLoader< ?, ?, ? > loader = ScifioImageLoader.open( context, file, numCellCreatorThreads ) )
+		{
+			final ExportInput input = ExportInput.forScifio( loader );
+
+			// show dialog to get output paths, resolutions, subdivisions
+			final Parameters params = getParameters( proposeMipmaps( input ) );
+			if ( params == null )
+				return;
+
+			export( input, params, numCellCreatorThreads, new ProgressWriterIJ() );
+		}
+		catch ( final IOException e )
+		{
+			IJ.showMessage( "Could not read " + file + ":\n" + e.getMessage() );
+		}
+	}
+}
@@ -26,13 +26,12 @@ import bdv.export.ExportScalePyramid.AfterEachPlane;
 import bdv.export.ExportScalePyramid.LoopbackHeuristic;
 import bdv.export.ProgressWriter;
 import bdv.export.ProposeMipmaps;
-import bdv.export.SubTaskProgressWriter;
-import bdv.export.n5.WriteSequenceToN5;
+import bdv.ij.export.ExportInput;
+import bdv.ij.export.ParallelExport;
+import bdv.ij.export.stats.IntensityStatistics;
 import bdv.ij.util.PluginHelper;
 import bdv.ij.util.ProgressWriterIJ;
-import bdv.img.imagestack.ImageStackImageLoader;
 import bdv.img.n5.N5ImageLoader;
-import bdv.img.virtualstack.VirtualStackImageLoader;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
@@ -55,10 +54,10 @@ import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.TimePoints;
-import net.imglib2.FinalDimensions;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Intervals;
@@ -124,76 +123,86 @@ public class ExportImagePlusAsN5PlugIn implements Command
 			return;
 		}
 
-		// get calibration and image size
-		final double pw = imp.getCalibration().pixelWidth;
-		final double ph = imp.getCalibration().pixelHeight;
-		final double pd = imp.getCalibration().pixelDepth;
-		String punit = imp.getCalibration().getUnit();
-		if ( punit == null || punit.isEmpty() )
-			punit = "px";
-		final FinalVoxelDimensions voxelSize = new FinalVoxelDimensions( punit, pw, ph, pd );
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getNSlices();
-		final FinalDimensions size = new FinalDimensions( w, h, d );
-
 		// propose reasonable mipmap settings
-		final int maxNumElements = 64 * 64 * 64;
-		final ExportMipmapInfo autoMipmapSettings = ProposeMipmaps.proposeMipmaps(
-				new BasicViewSetup( 0, "", size, voxelSize ),
-				maxNumElements );
+		final ExportMipmapInfo autoMipmapSettings = proposeMipmaps( imp );
 
 		// show dialog to get output paths, resolutions, subdivisions, min-max option
 		final Parameters params = getParameters( autoMipmapSettings );
 		if ( params == null )
 			return;
 
-		final ProgressWriter progressWriter = new ProgressWriterIJ();
+		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
+		export( imp, params, numCellCreatorThreads, new ProgressWriterIJ() );
+	}
+
+	static ExportMipmapInfo proposeMipmaps( final ImagePlus imp )
+	{
+		return proposeMipmaps( ExportInput.getSize( imp ), ExportInput.getVoxelSize( imp ) );
+	}
+
+	static ExportMipmapInfo proposeMipmaps( final ExportInput input )
+	{
+		return proposeMipmaps( input.getSize(), input.getVoxelSize() );
+	}
+
+	private static ExportMipmapInfo proposeMipmaps( final Dimensions size, final VoxelDimensions voxelSize )
+	{
+		final int maxNumElements = 64 * 64 * 64;
+		return ProposeMipmaps.proposeMipmaps(
+				new BasicViewSetup( 0, "", size, voxelSize ),
+				maxNumElements );
+	}
+
+	/**
+	 * Export {@code imp} to xml/n5 with the given {@code params}, without
+	 * showing any dialogs.
+	 *
+	 * @param imp
+	 *            the image to export. Must be GRAY8, GRAY16, or GRAY32.
+	 * @param params
+	 *            output paths, mipmap, and compression settings.
+	 * @param numCellCreatorThreads
+	 *            how many threads to use for creating n5 blocks.
+	 * @param progressWriter
+	 *            receives progress and log messages.
+	 */
+	public static void export( final ImagePlus imp, final Parameters params, final int numCellCreatorThreads, final ProgressWriter progressWriter )
+	{
+		export( ExportInput.forImagePlus( imp ), params, numCellCreatorThreads, progressWriter );
+	}
+
+	/**
+	 * Export {@code input} to xml/n5 with the given {@code params}, without
+	 * showing any dialogs.
+	 *
+	 * @param input
+	 *            the image to export.
+	 * @param params
+	 *            output paths, mipmap, and compression settings.
+	 * @param numCellCreatorThreads
+	 *            how many threads to use for creating n5 blocks.
+	 * @param progressWriter
+	 *            receives progress and log messages.
+	 */
+	public static void export( final ExportInput input, final Parameters params, final int numCellCreatorThreads, final ProgressWriter progressWriter )
+	{
+		// get calibration and image size
+		final VoxelDimensions voxelSize = input.getVoxelSize();
+		final double pw = voxelSize.dimension( 0 );
+		final double ph = voxelSize.dimension( 1 );
+		final double pd = voxelSize.dimension( 2 );
+		final Dimensions size = input.getSize();
+
 		progressWriter.out().println( "starting export..." );
 
-		// create ImgLoader wrapping the image
-		final TypedBasicImgLoader< ? > imgLoader;
-		final Runnable clearCache;
-		final boolean isVirtual = imp.getStack() != null && imp.getStack().isVirtual();
-		if ( isVirtual )
-		{
-			final VirtualStackImageLoader< ?, ?, ? > il;
-			switch ( imp.getType() )
-			{
-			case ImagePlus.GRAY8:
-				il = VirtualStackImageLoader.createUnsignedByteInstance( imp );
-				break;
-			case ImagePlus.GRAY16:
-				il = VirtualStackImageLoader.createUnsignedShortInstance( imp );
-				break;
-			case ImagePlus.GRAY32:
-			default:
-				il = VirtualStackImageLoader.createFloatInstance( imp );
-				break;
-			}
-			imgLoader = il;
-			clearCache = il.getCacheControl()::clearCache;
-		}
-		else
-		{
-			switch ( imp.getType() )
-			{
-			case ImagePlus.GRAY8:
-				imgLoader = ImageStackImageLoader.createUnsignedByteInstance( imp );
-				break;
-			case ImagePlus.GRAY16:
-				imgLoader = ImageStackImageLoader.createUnsignedShortInstance( imp );
-				break;
-			case ImagePlus.GRAY32:
-			default:
-				imgLoader = ImageStackImageLoader.createFloatInstance( imp );
-				break;
-			}
-			clearCache = () -> {};
-		}
+		final TypedBasicImgLoader< ? > imgLoader = input.getImgLoader();
+		final boolean isVirtual = input.isCached();
+		final int numTimepoints = input.numTimepoints();
+		final int numSetups = input.numSetups();
 
-		final int numTimepoints = imp.getNFrames();
-		final int numSetups = imp.getNChannels();
+		// collect intensity histograms while the export reads the data
+		final IntensityStatistics statistics = input.createStatistics();
+		final boolean collectingStatistics = statistics != null && input.collectStatistics( statistics );
 
 		// create SourceTransform from the images calibration
 		final AffineTransform3D sourceTransform = new AffineTransform3D();
@@ -225,9 +234,8 @@ public class ExportImagePlusAsN5PlugIn implements Command
 		//   required for all original planes contributing to a "plane of
 		//   blocks" at the current level. If this is more than 1/4 of
 		//   available memory, use the loopback image.
-		final long planeSizeInBytes = imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+		final long planeSizeInBytes = input.getPlaneSizeInBytes();
 		final long ijMaxMemory = IJ.maxMemory();
-		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
 		final LoopbackHeuristic loopbackHeuristic = new LoopbackHeuristic()
 		{
 			@Override
@@ -263,7 +271,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 					final long actuallyFree = max - total + free;
 
 					if ( actuallyFree < max / 2 )
-						clearCache.run();
+						input.clearCache();
 				}
 			}
 
@@ -271,10 +279,10 @@ public class ExportImagePlusAsN5PlugIn implements Command
 
 		try
 		{
-			WriteSequenceToN5.writeN5File( seq, perSetupExportMipmapInfo,
+			ParallelExport.writeN5File( seq, perSetupExportMipmapInfo,
 					params.compression, params.n5File,
-					loopbackHeuristic, afterEachPlane, numCellCreatorThreads,
-					new SubTaskProgressWriter( progressWriter, 0, 0.95 ) );
+					loopbackHeuristic, afterEachPlane, numCellCreatorThreads + 1,
+					progressWriter );
 
 			// write xml sequence description
 			final N5ImageLoader n5Loader = new N5ImageLoader( params.n5File, null );
@@ -289,6 +297,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 			final SpimDataMinimal spimData = new SpimDataMinimal( basePath, seqh5, new ViewRegistrations( registrations ) );
 
 			new XmlIoSpimDataMinimal().save( spimData, params.seqFile.getAbsolutePath() );
+			input.writeHistogramSidecar( statistics, collectingStatistics, params.seqFile, numCellCreatorThreads + 1, progressWriter );
 			progressWriter.setProgress( 1.0 );
 		}
 		catch ( final SpimDataException | IOException e )
@@ -298,7 +307,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 		progressWriter.out().println( "done" );
 	}
 
-	protected static class Parameters
+	public static class Parameters
 	{
 		final boolean setMipmapManual;
 
@@ -332,6 +341,8 @@ public class ExportImagePlusAsN5PlugIn implements Command
 
 	static String lastChunkSizes = "";
 
+	static final String[] compressionChoices = new String[] { "raw (no compression)", "bzip", "gzip", "lz4", "xz" };
+
 	static int lastCompressionChoice = 0;
 
 	static boolean lastCompressionDefaultSettings = true;
@@ -352,7 +363,6 @@ public class ExportImagePlusAsN5PlugIn implements Command
 			final TextField tfChunkSizes = ( TextField ) gd.getStringFields().lastElement();
 
 			gd.addMessage( "" );
-			final String[] compressionChoices = new String[] { "raw (no compression)", "bzip", "gzip", "lz4", "xz" };
 			gd.addChoice( "compression", compressionChoices, compressionChoices[ lastCompressionChoice ] );
 			gd.addCheckbox( "default settings", lastCompressionDefaultSettings );
 
@@ -433,34 +443,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 			final String n5Filename = seqFilename.substring( 0, seqFilename.length() - 4 ) + ".n5";
 			final File n5File = new File( n5Filename );
 
-			final Compression compression;
-			switch ( lastCompressionChoice )
-			{
-			default:
-			case 0: // raw (no compression)
-				compression = new RawCompression();
-				break;
-			case 1: // bzip
-				compression = lastCompressionDefaultSettings
-						? new Bzip2Compression()
-						: getBzip2Settings();
-				break;
-			case 2: // gzip
-				compression = lastCompressionDefaultSettings
-						? new GzipCompression()
-						: getGzipSettings();
-				break;
-			case 3:// lz4
-				compression = lastCompressionDefaultSettings
-						? new Lz4Compression()
-						: getLz4Settings();
-				break;
-			case 4:// xz" };
-				compression = lastCompressionDefaultSettings
-						? new XzCompression()
-						: getXzSettings();
-				break;
-			}
+			final Compression compression = getCompression( lastCompressionChoice, lastCompressionDefaultSettings );
 			if ( compression == null )
 				return null;
 
@@ -468,9 +451,42 @@ public class ExportImagePlusAsN5PlugIn implements Command
 		}
 	}
 
+	/**
+	 * Get the compression for the given index into {@link #compressionChoices}.
+	 * If not {@code defaultSettings}, the settings are asked for in a dialog.
+	 *
+	 * @return the compression, or {@code null} if the settings dialog was
+	 *         cancelled.
+	 */
+	static Compression getCompression( final int choice, final boolean defaultSettings )
+	{
+		switch ( choice )
+		{
+		default:
+		case 0: // raw (no compression)
+			return new RawCompression();
+		case 1: // bzip
+			return defaultSettings
+					? new Bzip2Compression()
+					: getBzip2Settings();
+		case 2: // gzip
+			return defaultSettings
+					? new GzipCompression()
+					: getGzipSettings();
+		case 3:// lz4
+			return defaultSettings
+					? new Lz4Compression()
+					: getLz4Settings();
+		case 4:// xz
+			return defaultSettings
+					? new XzCompression()
+					: getXzSettings();
+		}
+	}
+
 	static int lastBzip2BlockSize = BZip2CompressorOutputStream.MAX_BLOCKSIZE;
 
-	protected Bzip2Compression getBzip2Settings()
+	protected static Bzip2Compression getBzip2Settings()
 	{
 		while ( true )
 		{
@@ -503,7 +519,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 
 	static boolean lastGzipUseZlib = false;
 
-	protected GzipCompression getGzipSettings()
+	protected static GzipCompression getGzipSettings()
 	{
 		while ( true )
 		{
@@ -528,7 +544,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 
 	static int lastLz4BlockSize = 1 << 16;
 
-	protected Lz4Compression getLz4Settings()
+	protected static Lz4Compression getLz4Settings()
 	{
 		final int COMPRESSION_LEVEL_BASE = 10;
 		final int MIN_BLOCK_SIZE = 64;
@@ -561,7 +577,7 @@ public class ExportImagePlusAsN5PlugIn implements Command
 
 	static int lastXzLevel = 6;
 
-	protected XzCompression getXzSettings()
+	protected static XzCompression getXzSettings()
 	{
 		while ( true )
 		{
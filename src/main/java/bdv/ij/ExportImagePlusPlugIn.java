@@ -31,7 +31,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
-import net.imglib2.FinalDimensions;
+import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 
@@ -48,6 +48,10 @@ import bdv.export.SubTaskProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
 import bdv.ij.export.imgloader.ImagePlusImgLoader;
 import bdv.ij.export.imgloader.ImagePlusImgLoader.MinMaxOption;
+import bdv.ij.export.ExportInput;
+import bdv.ij.export.ParallelExport;
+import bdv.ij.export.PartitionPlanner;
+import bdv.ij.export.stats.IntensityStatistics;
 import bdv.ij.util.PluginHelper;
 import bdv.ij.util.ProgressWriterIJ;
 import bdv.img.hdf5.Hdf5ImageLoader;
@@ -55,9 +59,7 @@ import bdv.img.hdf5.Partition;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
-import bdv.img.imagestack.ImageStackImageLoader;
 import bdv.img.n5.N5ImageLoader;
-import bdv.img.virtualstack.VirtualStackImageLoader;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImageJ;
@@ -70,7 +72,7 @@ import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.TimePoints;
 
@@ -118,73 +120,83 @@ public class ExportImagePlusPlugIn implements Command
 			return;
 		}
 
-		// get calibration and image size
-		final double pw = imp.getCalibration().pixelWidth;
-		final double ph = imp.getCalibration().pixelHeight;
-		final double pd = imp.getCalibration().pixelDepth;
-		String punit = imp.getCalibration().getUnit();
-		if ( punit == null || punit.isEmpty() )
-			punit = "px";
-		final FinalVoxelDimensions voxelSize = new FinalVoxelDimensions( punit, pw, ph, pd );
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getNSlices();
-		final FinalDimensions size = new FinalDimensions( w, h, d );
-
 		// propose reasonable mipmap settings
-		final ExportMipmapInfo autoMipmapSettings = ProposeMipmaps.proposeMipmaps( new BasicViewSetup( 0, "", size, voxelSize ) );
+		final ExportMipmapInfo autoMipmapSettings = proposeMipmaps( imp );
 
 		// show dialog to get output paths, resolutions, subdivisions, min-max option
 		final Parameters params = getParameters( imp.getDisplayRangeMin(), imp.getDisplayRangeMax(), autoMipmapSettings );
 		if ( params == null )
 			return;
 
-		final ProgressWriter progressWriter = new ProgressWriterIJ();
+		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
+		export( imp, params, numCellCreatorThreads, new ProgressWriterIJ() );
+	}
+
+	static ExportMipmapInfo proposeMipmaps( final ImagePlus imp )
+	{
+		return proposeMipmaps( ExportInput.getSize( imp ), ExportInput.getVoxelSize( imp ) );
+	}
+
+	static ExportMipmapInfo proposeMipmaps( final ExportInput input )
+	{
+		return proposeMipmaps( input.getSize(), input.getVoxelSize() );
+	}
+
+	private static ExportMipmapInfo proposeMipmaps( final Dimensions size, final VoxelDimensions voxelSize )
+	{
+		return ProposeMipmaps.proposeMipmaps( new BasicViewSetup( 0, "", size, voxelSize ) );
+	}
+
+	/**
+	 * Export {@code imp} to xml/hdf5 with the given {@code params}, without
+	 * showing any dialogs.
+	 *
+	 * @param imp
+	 *            the image to export. Must be GRAY8, GRAY16, or GRAY32.
+	 * @param params
+	 *            output paths, mipmap, compression, and partition settings.
+	 * @param numCellCreatorThreads
+	 *            how many threads to use for creating hdf5 blocks.
+	 * @param progressWriter
+	 *            receives progress and log messages.
+	 */
+	public static void export( final ImagePlus imp, final Parameters params, final int numCellCreatorThreads, final ProgressWriter progressWriter )
+	{
+		export( ExportInput.forImagePlus( imp ), params, numCellCreatorThreads, progressWriter );
+	}
+
+	/**
+	 * Export {@code input} to xml/hdf5 with the given {@code params}, without
+	 * showing any dialogs.
+	 *
+	 * @param input
+	 *            the image to export.
+	 * @param params
+	 *            output paths, mipmap, compression, and partition settings.
+	 * @param numCellCreatorThreads
+	 *            how many threads to use for creating hdf5 blocks.
+	 * @param progressWriter
+	 *            receives progress and log messages.
+	 */
+	public static void export( final ExportInput input, final Parameters params, final int numCellCreatorThreads, final ProgressWriter progressWriter )
+	{
+		// get calibration and image size
+		final VoxelDimensions voxelSize = input.getVoxelSize();
+		final double pw = voxelSize.dimension( 0 );
+		final double ph = voxelSize.dimension( 1 );
+		final double pd = voxelSize.dimension( 2 );
+		final Dimensions size = input.getSize();
+
 		progressWriter.out().println( "starting export..." );
 
-		// create ImgLoader wrapping the image
-		final TypedBasicImgLoader< ? > imgLoader;
-		final Runnable clearCache;
-		final boolean isVirtual = imp.getStack() != null && imp.getStack().isVirtual();
-		if ( isVirtual )
-		{
-			final VirtualStackImageLoader< ?, ?, ? > il;
-			switch ( imp.getType() )
-			{
-			case ImagePlus.GRAY8:
-				il = VirtualStackImageLoader.createUnsignedByteInstance( imp );
-				break;
-			case ImagePlus.GRAY16:
-				il = VirtualStackImageLoader.createUnsignedShortInstance( imp );
-				break;
-			case ImagePlus.GRAY32:
-			default:
-				il = VirtualStackImageLoader.createFloatInstance( imp );
-				break;
-			}
-			imgLoader = il;
-			clearCache = il.getCacheControl()::clearCache;
-		}
-		else
-		{
-			switch ( imp.getType() )
-			{
-			case ImagePlus.GRAY8:
-				imgLoader = ImageStackImageLoader.createUnsignedByteInstance( imp );
-				break;
-			case ImagePlus.GRAY16:
-				imgLoader = ImageStackImageLoader.createUnsignedShortInstance( imp );
-				break;
-			case ImagePlus.GRAY32:
-			default:
-				imgLoader = ImageStackImageLoader.createFloatInstance( imp );
-				break;
-			}
-			clearCache = () -> {};
-		}
+		final TypedBasicImgLoader< ? > imgLoader = input.getImgLoader();
+		final boolean isVirtual = input.isCached();
+		final int numTimepoints = input.numTimepoints();
+		final int numSetups = input.numSetups();
 
-		final int numTimepoints = imp.getNFrames();
-		final int numSetups = imp.getNChannels();
+		// collect intensity histograms while the export reads the data
+		final IntensityStatistics statistics = input.createStatistics();
+		final boolean collectingStatistics = statistics != null && input.collectStatistics( statistics );
 
 		// create SourceTransform from the images calibration
 		final AffineTransform3D sourceTransform = new AffineTransform3D();
@@ -206,7 +218,7 @@ public class ExportImagePlusPlugIn implements Command
 		final Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo = new HashMap<>();
 		final ExportMipmapInfo mipmapInfo = params.setMipmapManual
 				? new ExportMipmapInfo( params.resolutions, params.subdivisions )
-				: autoMipmapSettings;
+				: proposeMipmaps( input );
 		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
 			perSetupExportMipmapInfo.put( setup.getId(), mipmapInfo );
 
@@ -217,9 +229,8 @@ public class ExportImagePlusPlugIn implements Command
 		//   required for all original planes contributing to a "plane of
 		//   blocks" at the current level. If this is more than 1/4 of
 		//   available memory, use the loopback image.
-		final long planeSizeInBytes = imp.getWidth() * imp.getHeight() * imp.getBytesPerPixel();
+		final long planeSizeInBytes = input.getPlaneSizeInBytes();
 		final long ijMaxMemory = IJ.maxMemory();
-		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
 		final LoopbackHeuristic loopbackHeuristic = new LoopbackHeuristic()
 		{
 			@Override
@@ -255,7 +266,7 @@ public class ExportImagePlusPlugIn implements Command
 					final long actuallyFree = max - total + free;
 
 					if ( actuallyFree < max / 2 )
-						clearCache.run();
+						input.clearCache();
 				}
 			}
 
@@ -266,14 +277,9 @@ public class ExportImagePlusPlugIn implements Command
 		{
 			final String xmlFilename = params.seqFile.getAbsolutePath();
 			final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
-			partitions = Partition.split( timepoints, seq.getViewSetupsOrdered(), params.timepointsPerPartition, params.setupsPerPartition, basename );
+			partitions = PartitionPlanner.split( timepoints, seq.getViewSetupsOrdered(), perSetupExportMipmapInfo, params.deflate, params.timepointsPerPartition, params.setupsPerPartition, params.balancePartitions, basename );
 
-			for ( int i = 0; i < partitions.size(); ++i )
-			{
-				final Partition partition = partitions.get( i );
-				final ProgressWriter p = new SubTaskProgressWriter( progressWriter, 0, 0.95 * i / partitions.size() );
-				WriteSequenceToHdf5.writeHdf5PartitionFile( seq, perSetupExportMipmapInfo, params.deflate, partition, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, p );
-			}
+			ParallelExport.writeHdf5PartitionFiles( seq, perSetupExportMipmapInfo, params.deflate, partitions, loopbackHeuristic, afterEachPlane, numCellCreatorThreads + 1, progressWriter );
 			WriteSequenceToHdf5.writeHdf5PartitionLinkFile( seq, perSetupExportMipmapInfo, partitions, params.hdf5File );
 		}
 		else
@@ -297,6 +303,7 @@ public class ExportImagePlusPlugIn implements Command
 		try
 		{
 			new XmlIoSpimDataMinimal().save( spimData, params.seqFile.getAbsolutePath() );
+			input.writeHistogramSidecar( statistics, collectingStatistics, params.seqFile, numCellCreatorThreads + 1, progressWriter );
 			progressWriter.setProgress( 1.0 );
 		}
 		catch ( final Exception e )
@@ -306,7 +313,7 @@ public class ExportImagePlusPlugIn implements Command
 		progressWriter.out().println( "done" );
 	}
 
-	protected static class Parameters
+	public static class Parameters
 	{
 		final boolean setMipmapManual;
 
@@ -326,11 +333,23 @@ public class ExportImagePlusPlugIn implements Command
 
 		final int setupsPerPartition;
 
+		final boolean balancePartitions;
+
 		public Parameters(
 				final boolean setMipmapManual, final int[][] resolutions, final int[][] subdivisions,
 				final File seqFile, final File hdf5File,
 				final boolean deflate,
 				final boolean split, final int timepointsPerPartition, final int setupsPerPartition )
+		{
+			this( setMipmapManual, resolutions, subdivisions, seqFile, hdf5File, deflate, split, timepointsPerPartition, setupsPerPartition, false );
+		}
+
+		public Parameters(
+				final boolean setMipmapManual, final int[][] resolutions, final int[][] subdivisions,
+				final File seqFile, final File hdf5File,
+				final boolean deflate,
+				final boolean split, final int timepointsPerPartition, final int setupsPerPartition,
+				final boolean balancePartitions )
 		{
 			this.setMipmapManual = setMipmapManual;
 			this.resolutions = resolutions;
@@ -341,6 +360,7 @@ public class ExportImagePlusPlugIn implements Command
 			this.split = split;
 			this.timepointsPerPartition = timepointsPerPartition;
 			this.setupsPerPartition = setupsPerPartition;
+			this.balancePartitions = balancePartitions;
 		}
 	}
 
@@ -356,6 +376,8 @@ public class ExportImagePlusPlugIn implements Command
 
 	static int lastSetupsPerPartition = 0;
 
+	static boolean lastBalancePartitions = false;
+
 	static boolean lastDeflate = true;
 
 	static String lastExportPath = "./export.xml";
@@ -380,6 +402,8 @@ public class ExportImagePlusPlugIn implements Command
 			final TextField tfSplitTimepoints = ( TextField ) gd.getNumericFields().lastElement();
 			gd.addNumericField( "setups_per_partition", lastSetupsPerPartition, 0, 25, "" );
 			final TextField tfSplitSetups = ( TextField ) gd.getNumericFields().lastElement();
+			gd.addCheckbox( "balance_partitions_by_size", lastBalancePartitions );
+			final Checkbox cBalance = ( Checkbox ) gd.getCheckboxes().lastElement();
 
 			gd.addMessage( "" );
 			gd.addCheckbox( "use_deflate_compression", lastDeflate );
@@ -397,6 +421,7 @@ public class ExportImagePlusPlugIn implements Command
 				gd.getNextNumber();
 				gd.getNextNumber();
 				gd.getNextBoolean();
+				gd.getNextBoolean();
 				gd.getNextString();
 				if ( e instanceof ItemEvent && e.getID() == ItemEvent.ITEM_STATE_CHANGED && e.getSource() == cManualMipmap )
 				{
@@ -414,6 +439,7 @@ public class ExportImagePlusPlugIn implements Command
 					final boolean split = cSplit.getState();
 					tfSplitTimepoints.setEnabled( split );
 					tfSplitSetups.setEnabled( split );
+					cBalance.setEnabled( split );
 				}
 				return true;
 			} );
@@ -428,6 +454,7 @@ public class ExportImagePlusPlugIn implements Command
 
 			tfSplitTimepoints.setEnabled( lastSplit );
 			tfSplitSetups.setEnabled( lastSplit );
+			cBalance.setEnabled( lastSplit );
 
 			gd.showDialog();
 			if ( gd.wasCanceled() )
@@ -439,6 +466,7 @@ public class ExportImagePlusPlugIn implements Command
 			lastSplit = gd.getNextBoolean();
 			lastTimepointsPerPartition = ( int ) gd.getNextNumber();
 			lastSetupsPerPartition = ( int ) gd.getNextNumber();
+			lastBalancePartitions = gd.getNextBoolean();
 			lastDeflate = gd.getNextBoolean();
 			lastExportPath = gd.getNextString();
 
@@ -474,7 +502,7 @@ public class ExportImagePlusPlugIn implements Command
 			final String hdf5Filename = seqFilename.substring( 0, seqFilename.length() - 4 ) + ".h5";
 			final File hdf5File = new File( hdf5Filename );
 
-			return new Parameters( lastSetMipmapManual, resolutions, subdivisions, seqFile, hdf5File, lastDeflate, lastSplit, lastTimepointsPerPartition, lastSetupsPerPartition );
+			return new Parameters( lastSetMipmapManual, resolutions, subdivisions, seqFile, hdf5File, lastDeflate, lastSplit, lastTimepointsPerPartition, lastSetupsPerPartition, lastBalancePartitions );
 		}
 	}
 }
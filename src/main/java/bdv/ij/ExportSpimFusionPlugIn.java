@@ -53,8 +53,11 @@ import bdv.export.ProposeMipmaps;
 import bdv.export.SubTaskProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
 import bdv.ij.export.FusionResult;
+import bdv.ij.export.ParallelExport;
+import bdv.ij.export.PartitionPlanner;
 import bdv.ij.export.SpimRegistrationSequence;
 import bdv.ij.export.ViewSetupWrapper;
+import bdv.ij.export.imgloader.ImageHeaders;
 import bdv.ij.util.PluginHelper;
 import bdv.ij.util.ProgressWriterIJ;
 import bdv.img.MipmapInfo;
@@ -110,6 +113,8 @@ public class ExportSpimFusionPlugIn implements Command
 
 	static int lastSetupsPerPartition = 0;
 
+	static boolean lastBalancePartitions = false;
+
 	static boolean lastDeflate = true;
 
 	static String autoSubsampling = "{1,1,1}";
@@ -218,6 +223,12 @@ public class ExportSpimFusionPlugIn implements Command
 		fusionSeq = new SequenceDescriptionMinimal( fusionSeq.getTimePoints(), fusionSetups, wrappedFusionImgLoader, fusionSeq.getMissingViews() );
 		fusionReg = new ViewRegistrations( fusionRegistrations );
 
+		// create ExportMipmapInfos for the fused data setups
+		final Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo = new HashMap<>();
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( params.resolutions, params.subdivisions );
+		for ( final BasicViewSetup setup : fusionSeq.getViewSetupsOrdered() )
+			perSetupExportMipmapInfo.put( setup.getId(), mipmapInfo );
+
 		// add partitions for the fused data and split if desired
 		final ArrayList< Partition > newPartitions = new ArrayList<>();
 		final String xmlFilename = params.seqFile.getAbsolutePath();
@@ -226,7 +237,7 @@ public class ExportSpimFusionPlugIn implements Command
 		{
 			final List< TimePoint > timepoints = fusionSeq.getTimePoints().getTimePointsOrdered();
 			final List< BasicViewSetup > setups = fusionSeq.getViewSetupsOrdered();
-			for ( final Partition p : Partition.split( timepoints, setups, params.timepointsPerPartition, params.setupsPerPartition, basename ) )
+			for ( final Partition p : PartitionPlanner.split( timepoints, setups, perSetupExportMipmapInfo, params.deflate, params.timepointsPerPartition, params.setupsPerPartition, params.balancePartitions, basename ) )
 			{
 				final String baseFilename = p.getPath().substring( 0, p.getPath().length() - 3 ); // strip ".h5" extension
 				final String path = PluginHelper.createNewPartitionFile( baseFilename ).getAbsolutePath();
@@ -246,12 +257,6 @@ public class ExportSpimFusionPlugIn implements Command
 			partitions.add( partition );
 		}
 
-		// create ExportMipmapInfos for the fused data setups
-		final Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo = new HashMap<>();
-		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( params.resolutions, params.subdivisions );
-		for ( final BasicViewSetup setup : fusionSeq.getViewSetupsOrdered() )
-			perSetupExportMipmapInfo.put( setup.getId(), mipmapInfo );
-
 
 
 
@@ -309,14 +314,7 @@ public class ExportSpimFusionPlugIn implements Command
 		progress.setProgress( complete );
 
 		// write new data partitions
-		final double completionStep = ( 0.95 - complete ) / newPartitions.size();
-		for ( final Partition partition : newPartitions )
-		{
-			final SubTaskProgressWriter subtaskProgress = new SubTaskProgressWriter( progress, complete, complete + completionStep );
-			final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
-			WriteSequenceToHdf5.writeHdf5PartitionFile( fusionSeq, perSetupExportMipmapInfo, params.deflate, partition, null, null, numCellCreatorThreads, subtaskProgress );
-			complete += completionStep;
-		}
+		ParallelExport.writeHdf5PartitionFiles( fusionSeq, perSetupExportMipmapInfo, params.deflate, newPartitions, null, null, PluginHelper.numThreads(), new SubTaskProgressWriter( progress, complete, 1.0 ) );
 
 		// (re-)write hdf5 link file
 		WriteSequenceToHdf5.writeHdf5PartitionLinkFile( aggregateSeq, aggregateMipmapInfos, partitions, newHdf5PartitionLinkFile );
@@ -354,7 +352,7 @@ public class ExportSpimFusionPlugIn implements Command
 			final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
 			final List< TimePoint > timepoints = desc.getTimePoints().getTimePointsOrdered();
 			final List< BasicViewSetup > setups = desc.getViewSetupsOrdered();
-			partitions = Partition.split( timepoints, setups, params.timepointsPerPartition, params.setupsPerPartition, basename );
+			partitions = PartitionPlanner.split( timepoints, setups, perSetupExportMipmapInfo, params.deflate, params.timepointsPerPartition, params.setupsPerPartition, params.balancePartitions, basename );
 		}
 		else
 			partitions = null;
@@ -363,12 +361,7 @@ public class ExportSpimFusionPlugIn implements Command
 		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
 		if ( params.split )
 		{
-			for ( int i = 0; i < partitions.size(); ++i )
-			{
-				final Partition partition = partitions.get( i );
-				final ProgressWriter p = new SubTaskProgressWriter( progress, 0, 0.95 * i / partitions.size() );
-				WriteSequenceToHdf5.writeHdf5PartitionFile( desc, perSetupExportMipmapInfo, params.deflate, partition, null, null, numCellCreatorThreads, p );
-			}
+			ParallelExport.writeHdf5PartitionFiles( desc, perSetupExportMipmapInfo, params.deflate, partitions, null, null, numCellCreatorThreads + 1, progress );
 			WriteSequenceToHdf5.writeHdf5PartitionLinkFile( desc, perSetupExportMipmapInfo, partitions, params.hdf5File );
 		}
 		else
@@ -417,13 +410,15 @@ public class ExportSpimFusionPlugIn implements Command
 		final boolean split;
 		final int timepointsPerPartition;
 		final int setupsPerPartition;
+		final boolean balancePartitions;
 
 		public Parameters( final SPIMConfiguration conf, final int[][] resolutions, final int[][] subdivisions,
 				final int cropOffsetX, final int cropOffsetY, final int cropOffsetZ, final int scale,
 				final String fusionDirectory, final String filenamePattern, final int numSlices,
 				final double sliceValueMin, final double sliceValueMax,
 				final File seqFile, final File hdf5File, final boolean appendToExistingFile, final boolean deflate,
-				final boolean split, final int timepointsPerPartition, final int setupsPerPartition )
+				final boolean split, final int timepointsPerPartition, final int setupsPerPartition,
+				final boolean balancePartitions )
 		{
 			this.conf = conf;
 			this.resolutions = resolutions;
@@ -444,6 +439,7 @@ public class ExportSpimFusionPlugIn implements Command
 			this.split = split;
 			this.timepointsPerPartition = timepointsPerPartition;
 			this.setupsPerPartition = setupsPerPartition;
+			this.balancePartitions = balancePartitions;
 		}
 	}
 
@@ -786,6 +782,8 @@ public class ExportSpimFusionPlugIn implements Command
 		final TextField tfSplitTimepoints = ( TextField ) gd2.getNumericFields().lastElement();
 		gd2.addNumericField( "setups per partition", lastSetupsPerPartition, 0, 25, "" );
 		final TextField tfSplitSetups = ( TextField ) gd2.getNumericFields().lastElement();
+		gd2.addCheckbox( "balance partitions by size", lastBalancePartitions );
+		final Checkbox cBalance = ( Checkbox ) gd2.getCheckboxes().lastElement();
 
 		gd2.addMessage( "" );
 		gd2.addCheckbox( "use deflate compression", lastDeflate );
@@ -854,11 +852,13 @@ public class ExportSpimFusionPlugIn implements Command
 				final boolean split = cSplit.getState();
 				tfSplitTimepoints.setEnabled( split );
 				tfSplitSetups.setEnabled( split );
+				cBalance.setEnabled( split );
 			}
 		} );
 
 		tfSplitTimepoints.setEnabled( lastSplit );
 		tfSplitSetups.setEnabled( lastSplit );
+		cBalance.setEnabled( lastSplit );
 
 		gd2.showDialog();
 
@@ -961,6 +961,7 @@ public class ExportSpimFusionPlugIn implements Command
 		lastSplit = gd2.getNextBoolean();
 		lastTimepointsPerPartition = ( int ) gd2.getNextNumber();
 		lastSetupsPerPartition = ( int ) gd2.getNextNumber();
+		lastBalancePartitions = gd2.getNextBoolean();
 
 		lastDeflate = gd2.getNextBoolean();
 
@@ -982,7 +983,7 @@ public class ExportSpimFusionPlugIn implements Command
 		final int cropOffsetY = Multi_View_Fusion.cropOffsetYStatic;
 		final int cropOffsetZ = Multi_View_Fusion.cropOffsetZStatic;
 		final int scale = Multi_View_Fusion.outputImageScalingStatic;
-		return new Parameters( conf, resolutions, subdivisions, cropOffsetX, cropOffsetY, cropOffsetZ, scale, fusionDirectory, filenamePattern, numSlices, minValueStatic, maxValueStatic, seqFile, hdf5File, appendToExistingFile, lastDeflate, lastSplit, lastTimepointsPerPartition, lastSetupsPerPartition );
+		return new Parameters( conf, resolutions, subdivisions, cropOffsetX, cropOffsetY, cropOffsetZ, scale, fusionDirectory, filenamePattern, numSlices, minValueStatic, maxValueStatic, seqFile, hdf5File, appendToExistingFile, lastDeflate, lastSplit, lastTimepointsPerPartition, lastSetupsPerPartition, lastBalancePartitions );
 	}
 
 	protected boolean updateProposedMipmaps( final String fusionDirectory, final SPIMConfiguration conf )
@@ -993,11 +994,22 @@ public class ExportSpimFusionPlugIn implements Command
 			final String filenamePattern = pair.getA();
 			final int numSlices = pair.getB();
 			final String fn = fusionDirectory + "/" + String.format( filenamePattern, conf.timepoints[0], conf.channels[0], 0 );
-			final ImagePlus imp = new ImagePlus( fn );
-			final int width = imp.getWidth();
-			final int height = imp.getHeight();
-			imp.close();
-			final Dimensions size = new FinalDimensions( new int[] { width, height, numSlices } );
+			long width;
+			long height;
+			try
+			{
+				final ImageHeaders.Header header = ImageHeaders.read( fn );
+				width = header.getWidth();
+				height = header.getHeight();
+			}
+			catch ( final IOException e )
+			{
+				final ImagePlus imp = new ImagePlus( fn );
+				width = imp.getWidth();
+				height = imp.getHeight();
+				imp.close();
+			}
+			final Dimensions size = new FinalDimensions( width, height, numSlices );
 			final VoxelDimensions voxelSize = new FinalVoxelDimensions( "px", 1, 1, 1 );
 			final ExportMipmapInfo info = ProposeMipmaps.proposeMipmaps( new BasicViewSetup( 0, "", size, voxelSize ) );
 			autoSubsampling = ProposeMipmaps.getArrayString( info.getExportResolutions() );
@@ -44,7 +44,10 @@ import bdv.export.ProgressWriter;
 import bdv.export.ProposeMipmaps;
 import bdv.export.SubTaskProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
+import bdv.ij.export.ParallelExport;
+import bdv.ij.export.PartitionPlanner;
 import bdv.ij.export.SpimRegistrationSequence;
+import bdv.ij.export.imgloader.StackImageLoader;
 import bdv.ij.util.PluginHelper;
 import bdv.ij.util.ProgressWriterIJ;
 import bdv.img.hdf5.Hdf5ImageLoader;
@@ -102,27 +105,15 @@ public class ExportSpimSequencePlugIn implements Command
 		}
 
 		final ArrayList< Partition > partitions;
-		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
-		if ( params.split )
+		try
 		{
-			final String xmlFilename = params.seqFile.getAbsolutePath();
-			final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
-			final List< TimePoint > timepoints = desc.getTimePoints().getTimePointsOrdered();
-			final List< BasicViewSetup > setups = desc.getViewSetupsOrdered();
-			partitions = Partition.split( timepoints, setups, params.timepointsPerPartition, params.setupsPerPartition, basename );
-
-			for ( int i = 0; i < partitions.size(); ++i )
-			{
-				final Partition partition = partitions.get( i );
-				final ProgressWriter p = new SubTaskProgressWriter( progress, 0, 0.95 * i / partitions.size() );
-				WriteSequenceToHdf5.writeHdf5PartitionFile( desc, perSetupExportMipmapInfo, params.deflate, partition, null, null, numCellCreatorThreads, p );
-			}
-			WriteSequenceToHdf5.writeHdf5PartitionLinkFile( desc, perSetupExportMipmapInfo, partitions, params.hdf5File );
+			partitions = writeHdf5( desc, perSetupExportMipmapInfo, params, progress );
 		}
-		else
+		finally
 		{
-			partitions = null;
-			WriteSequenceToHdf5.writeHdf5File( desc, perSetupExportMipmapInfo, params.deflate, params.hdf5File, null, null, numCellCreatorThreads, new SubTaskProgressWriter( progress, 0, 0.95 ) );
+			// release views that were prefetched but not exported
+			if ( desc.getImgLoader() instanceof StackImageLoader )
+				( ( StackImageLoader ) desc.getImgLoader() ).close();
 		}
 
 		final Hdf5ImageLoader loader = new Hdf5ImageLoader( params.hdf5File, partitions, null, false );
@@ -143,6 +134,34 @@ public class ExportSpimSequencePlugIn implements Command
 		progress.out().println( "done" );
 	}
 
+	/**
+	 * Write the image data, as a single HDF5 file or as partitions and a link
+	 * file.
+	 *
+	 * @return the partitions, or {@code null} if not split.
+	 */
+	private static ArrayList< Partition > writeHdf5( final SequenceDescriptionMinimal desc, final Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo, final Parameters params, final ProgressWriter progress )
+	{
+		if ( params.split )
+		{
+			final String xmlFilename = params.seqFile.getAbsolutePath();
+			final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
+			final List< TimePoint > timepoints = desc.getTimePoints().getTimePointsOrdered();
+			final List< BasicViewSetup > setups = desc.getViewSetupsOrdered();
+			final ArrayList< Partition > partitions = PartitionPlanner.split( timepoints, setups, perSetupExportMipmapInfo, params.deflate, params.timepointsPerPartition, params.setupsPerPartition, params.balancePartitions, basename );
+
+			ParallelExport.writeHdf5PartitionFiles( desc, perSetupExportMipmapInfo, params.deflate, partitions, null, null, PluginHelper.numThreads(), progress );
+			WriteSequenceToHdf5.writeHdf5PartitionLinkFile( desc, perSetupExportMipmapInfo, partitions, params.hdf5File );
+			return partitions;
+		}
+		else
+		{
+			final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
+			WriteSequenceToHdf5.writeHdf5File( desc, perSetupExportMipmapInfo, params.deflate, params.hdf5File, null, null, numCellCreatorThreads, new SubTaskProgressWriter( progress, 0, 0.95 ) );
+			return null;
+		}
+	}
+
 	static boolean lastSetMipmapManual = false;
 
 	static String lastSubsampling = "{1,1,1}, {2,2,1}, {4,4,2}";
@@ -155,6 +174,8 @@ public class ExportSpimSequencePlugIn implements Command
 
 	static int lastSetupsPerPartition = 0;
 
+	static boolean lastBalancePartitions = false;
+
 	static boolean lastDeflate = true;
 
 	public static String fusionType[] = new String[] { "Single-channel", "Multi-channel" };
@@ -183,11 +204,14 @@ public class ExportSpimSequencePlugIn implements Command
 
 		final int setupsPerPartition;
 
+		final boolean balancePartitions;
+
 		public Parameters(
 				final SPIMConfiguration conf,
 				final boolean setMipmapManual, final int[][] resolutions, final int[][] subdivisions,
 				final File seqFile, final File hdf5File, final boolean deflate,
-				final boolean split, final int timepointsPerPartition, final int setupsPerPartition )
+				final boolean split, final int timepointsPerPartition, final int setupsPerPartition,
+				final boolean balancePartitions )
 		{
 			this.conf = conf;
 			this.setMipmapManual = setMipmapManual;
@@ -199,6 +223,7 @@ public class ExportSpimSequencePlugIn implements Command
 			this.split = split;
 			this.timepointsPerPartition = timepointsPerPartition;
 			this.setupsPerPartition = setupsPerPartition;
+			this.balancePartitions = balancePartitions;
 		}
 	}
 
@@ -534,6 +559,8 @@ public class ExportSpimSequencePlugIn implements Command
 		final TextField tfSplitTimepoints = ( TextField ) gd2.getNumericFields().lastElement();
 		gd2.addNumericField( "setups per partition", lastSetupsPerPartition, 0, 25, "" );
 		final TextField tfSplitSetups = ( TextField ) gd2.getNumericFields().lastElement();
+		gd2.addCheckbox( "balance partitions by size", lastBalancePartitions );
+		final Checkbox cBalance = ( Checkbox ) gd2.getCheckboxes().lastElement();
 
 		gd2.addMessage( "" );
 		gd2.addCheckbox( "use deflate compression", lastDeflate );
@@ -575,11 +602,13 @@ public class ExportSpimSequencePlugIn implements Command
 				final boolean split = cSplit.getState();
 				tfSplitTimepoints.setEnabled( split );
 				tfSplitSetups.setEnabled( split );
+				cBalance.setEnabled( split );
 			}
 		} );
 
 		tfSplitTimepoints.setEnabled( lastSplit );
 		tfSplitSetups.setEnabled( lastSplit );
+		cBalance.setEnabled( lastSplit );
 
 //		gd.addMessage("");
 //		gd.addMessage("This Plugin is developed by Tobias Pietzsch (pietzsch@mpi-cbg.de)\n");
@@ -664,6 +693,7 @@ public class ExportSpimSequencePlugIn implements Command
 		lastSplit = gd2.getNextBoolean();
 		lastTimepointsPerPartition = ( int ) gd2.getNextNumber();
 		lastSetupsPerPartition = ( int ) gd2.getNextNumber();
+		lastBalancePartitions = gd2.getNextBoolean();
 
 		lastDeflate = gd2.getNextBoolean();
 
@@ -680,7 +710,7 @@ public class ExportSpimSequencePlugIn implements Command
 		final String hdf5Filename = seqFilename.substring( 0, seqFilename.length() - 4 ) + ".h5";
 		final File hdf5File = new File( hdf5Filename );
 
-		return new Parameters( conf, lastSetMipmapManual, resolutions, subdivisions, seqFile, hdf5File, lastDeflate, lastSplit, lastTimepointsPerPartition, lastSetupsPerPartition );
+		return new Parameters( conf, lastSetMipmapManual, resolutions, subdivisions, seqFile, hdf5File, lastDeflate, lastSplit, lastTimepointsPerPartition, lastSetupsPerPartition, lastBalancePartitions );
 	}
 
 	protected static double loadZStretching( final String file )
@@ -41,6 +41,7 @@ import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.ij.util.ProgressWriterIJ;
 import bdv.img.imagestack.ImageStackImageLoader;
+import bdv.img.tiff.TiffImageLoader;
 import bdv.img.virtualstack.VirtualStackImageLoader;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import bdv.spimdata.SpimDataMinimal;
@@ -209,7 +210,13 @@ public class OpenImagePlusPlugIn implements Command
 
 		// create ImgLoader wrapping the image
 		final BasicImgLoader imgLoader;
-		if ( imp.getStack().isVirtual() )
+		final TiffImageLoader< ?, ?, ? > tiffLoader = imp.getStack().isVirtual() ? TiffImageLoader.fromImagePlus( imp, setup_id_offset ) : null;
+		if ( tiffLoader != null )
+		{
+			// read planes directly from the TIFF file
+			imgLoader = tiffLoader;
+		}
+		else if ( imp.getStack().isVirtual() )
 		{
 			switch ( imp.getType() )
 			{
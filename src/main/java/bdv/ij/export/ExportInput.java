@@ -0,0 +1,393 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.planar.PlanarImg;
+
+import bdv.export.ProgressWriter;
+import bdv.ij.export.stats.HistogramSidecar;
+import bdv.ij.export.stats.IntensityHistogram;
+import bdv.ij.export.stats.IntensityStatistics;
+import bdv.img.BlockLoadListener;
+import bdv.img.imagestack.ImageStackImageLoader;
+import bdv.img.scifio.ScifioImageLoader;
+import bdv.img.tiff.TiffImageLoader;
+import bdv.img.virtualstack.VirtualStackImageLoader;
+import ij.ImagePlus;
+import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+
+/**
+ * A single-view-per-(channel, timepoint) image to be exported by
+ * {@code ExportImagePlusPlugIn} or {@code ExportImagePlusAsN5PlugIn}: an
+ * {@link TypedBasicImgLoader} with setup ids {@code 0..numSetups-1} and
+ * timepoint ids {@code 0..numTimepoints-1}, and the size and calibration of
+ * its views.
+ */
+public class ExportInput
+{
+	private final TypedBasicImgLoader< ? > imgLoader;
+
+	private final boolean cached;
+
+	private final Runnable clearCache;
+
+	private final Dimensions size;
+
+	private final VoxelDimensions voxelSize;
+
+	private final int numSetups;
+
+	private final int numTimepoints;
+
+	private final int bytesPerPixel;
+
+	/**
+	 * @param imgLoader
+	 *            provides the images.
+	 * @param cached
+	 *            whether {@code imgLoader} loads planes lazily into a cache.
+	 *            In this case, the exporter will use {@code clearCache} to
+	 *            bound memory usage.
+	 * @param clearCache
+	 *            clears the cache of {@code imgLoader}.
+	 * @param size
+	 *            3D size of each view.
+	 * @param voxelSize
+	 *            calibration of each view.
+	 * @param numSetups
+	 *            number of setups (channels).
+	 * @param numTimepoints
+	 *            number of timepoints.
+	 * @param bytesPerPixel
+	 *            size of one pixel of the source data.
+	 */
+	public ExportInput(
+			final TypedBasicImgLoader< ? > imgLoader,
+			final boolean cached,
+			final Runnable clearCache,
+			final Dimensions size,
+			final VoxelDimensions voxelSize,
+			final int numSetups,
+			final int numTimepoints,
+			final int bytesPerPixel )
+	{
+		this.imgLoader = imgLoader;
+		this.cached = cached;
+		this.clearCache = clearCache;
+		this.size = size;
+		this.voxelSize = voxelSize;
+		this.numSetups = numSetups;
+		this.numTimepoints = numTimepoints;
+		this.bytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * Create an {@link ExportInput} for a GRAY8, GRAY16, or GRAY32
+	 * {@link ImagePlus}. Virtual stacks are read through a
+	 * {@link TiffImageLoader} if possible, otherwise through a
+	 * {@link VirtualStackImageLoader}.
+	 */
+	public static ExportInput forImagePlus( final ImagePlus imp )
+	{
+		final TypedBasicImgLoader< ? > imgLoader;
+		final Runnable clearCache;
+		final boolean isVirtual = imp.getStack() != null && imp.getStack().isVirtual();
+		if ( isVirtual )
+		{
+			// read planes directly from the TIFF file, if possible
+			final TiffImageLoader< ?, ?, ? > tiffLoader = TiffImageLoader.fromImagePlus( imp, 0 );
+			if ( tiffLoader != null )
+			{
+				imgLoader = tiffLoader;
+				clearCache = tiffLoader.getCacheControl()::clearCache;
+			}
+			else
+			{
+				final VirtualStackImageLoader< ?, ?, ? > il;
+				switch ( imp.getType() )
+				{
+				case ImagePlus.GRAY8:
+					il = VirtualStackImageLoader.createUnsignedByteInstance( imp );
+					break;
+				case ImagePlus.GRAY16:
+					il = VirtualStackImageLoader.createUnsignedShortInstance( imp );
+					break;
+				case ImagePlus.GRAY32:
+				default:
+					il = VirtualStackImageLoader.createFloatInstance( imp );
+					break;
+				}
+				imgLoader = il;
+				clearCache = il.getCacheControl()::clearCache;
+			}
+		}
+		else
+		{
+			switch ( imp.getType() )
+			{
+			case ImagePlus.GRAY8:
+				imgLoader = ImageStackImageLoader.createUnsignedByteInstance( imp );
+				break;
+			case ImagePlus.GRAY16:
+				imgLoader = ImageStackImageLoader.createUnsignedShortInstance( imp );
+				break;
+			case ImagePlus.GRAY32:
+			default:
+				imgLoader = ImageStackImageLoader.createFloatInstance( imp );
+				break;
+			}
+			clearCache = () -> {};
+		}
+
+		return new ExportInput( imgLoader, isVirtual, clearCache, getSize( imp ), getVoxelSize( imp ),
+				imp.getNChannels(), imp.getNFrames(), imp.getBytesPerPixel() );
+	}
+
+	/**
+	 * @return the 3D size of each view of {@code imp}.
+	 */
+	public static FinalDimensions getSize( final ImagePlus imp )
+	{
+		return new FinalDimensions( imp.getWidth(), imp.getHeight(), imp.getNSlices() );
+	}
+
+	/**
+	 * @return the calibration of {@code imp}.
+	 */
+	public static FinalVoxelDimensions getVoxelSize( final ImagePlus imp )
+	{
+		final double pw = imp.getCalibration().pixelWidth;
+		final double ph = imp.getCalibration().pixelHeight;
+		final double pd = imp.getCalibration().pixelDepth;
+		String punit = imp.getCalibration().getUnit();
+		if ( punit == null || punit.isEmpty() )
+			punit = "px";
+		return new FinalVoxelDimensions( punit, pw, ph, pd );
+	}
+
+	/**
+	 * Create an {@link ExportInput} that streams planes from a file through a
+	 * {@link ScifioImageLoader}.
+	 */
+	public static ExportInput forScifio( final ScifioImageLoader< ?, ?, ? > loader )
+	{
+		return new ExportInput( loader, true, loader.getCacheControl()::clearCache,
+				loader.getSize(), loader.getVoxelSize(),
+				loader.numChannels(), loader.numTimepoints(), loader.getBytesPerPixel() );
+	}
+
+	/**
+	 * Feed all pixel data that the img loader reads (for example during
+	 * export) into {@code statistics}.
+	 *
+	 * @return {@code false} if the img loader does not support this. In this
+	 *         case, statistics must be computed in a separate pass.
+	 */
+	public boolean collectStatistics( final IntensityStatistics statistics )
+	{
+		final BlockLoadListener listener = statistics == null ? null : statistics::accumulate;
+		if ( imgLoader instanceof TiffImageLoader )
+			( ( TiffImageLoader< ?, ?, ? > ) imgLoader ).setBlockLoadListener( listener );
+		else if ( imgLoader instanceof VirtualStackImageLoader )
+			( ( VirtualStackImageLoader< ?, ?, ? > ) imgLoader ).setBlockLoadListener( listener );
+		else if ( imgLoader instanceof ScifioImageLoader )
+			( ( ScifioImageLoader< ?, ?, ? > ) imgLoader ).setBlockLoadListener( listener );
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Create empty statistics for the views of this input.
+	 *
+	 * @return the statistics, or {@code null} if the pixel type is not
+	 *         supported.
+	 */
+	public IntensityStatistics createStatistics()
+	{
+		final IntensityHistogram prototype;
+		switch ( bytesPerPixel )
+		{
+		case 1:
+			prototype = IntensityHistogram.forUnsignedInteger( 8 );
+			break;
+		case 2:
+			prototype = IntensityHistogram.forUnsignedInteger( 16 );
+			break;
+		case 4:
+			prototype = IntensityHistogram.forFloat();
+			break;
+		default:
+			return null;
+		}
+		return new IntensityStatistics( numSetups, numTimepoints, prototype );
+	}
+
+	/**
+	 * Compute statistics of all views in a separate parallel pass over their
+	 * planes. This is for img loaders that do not support
+	 * {@link #collectStatistics(IntensityStatistics)}, and only works if they
+	 * provide {@link PlanarImg}s (as for in-memory {@link ImagePlus}es).
+	 *
+	 * @return {@code false} if the img loader does not support this.
+	 */
+	public boolean computeStatistics( final IntensityStatistics statistics, final int numThreads )
+	{
+		final ArrayList< PlanarImg< ?, ? > > imgs = new ArrayList<>();
+		for ( int t = 0; t < numTimepoints; ++t )
+		{
+			for ( int s = 0; s < numSetups; ++s )
+			{
+				final RandomAccessibleInterval< ? > img = imgLoader.getSetupImgLoader( s ).getImage( t );
+				if ( !( img instanceof PlanarImg ) )
+					return false;
+				imgs.add( ( PlanarImg< ?, ? > ) img );
+			}
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		try
+		{
+			final ArrayList< Future< ? > > futures = new ArrayList<>();
+			for ( int i = 0; i < imgs.size(); ++i )
+			{
+				final PlanarImg< ?, ? > img = imgs.get( i );
+				final int setup = i % numSetups;
+				final int timepoint = i / numSetups;
+				for ( int z = 0; z < img.numSlices(); ++z )
+				{
+					final int slice = z;
+					futures.add( executor.submit( () -> statistics.accumulate( setup, timepoint, slice, img.getPlane( slice ).getCurrentStorageArray() ) ) );
+				}
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		return true;
+	}
+
+	/**
+	 * Write the {@link HistogramSidecar} of the exported dataset.
+	 * <p>
+	 * Stops feeding {@code statistics} from the img loader. If they were not
+	 * collected during the export, they are first computed in a separate pass,
+	 * if possible. Failure to write the sidecar is reported, but is not an
+	 * error.
+	 *
+	 * @param statistics
+	 *            from {@link #createStatistics()}, may be {@code null}.
+	 * @param collected
+	 *            whether {@code statistics} were collected during the export
+	 *            (see {@link #collectStatistics(IntensityStatistics)}).
+	 * @param seqFile
+	 *            the dataset XML file.
+	 */
+	public void writeHistogramSidecar( final IntensityStatistics statistics, final boolean collected, final File seqFile, final int numThreads, final ProgressWriter progressWriter )
+	{
+		if ( statistics == null )
+			return;
+		if ( collected )
+			collectStatistics( null );
+		else if ( !computeStatistics( statistics, numThreads ) )
+			return;
+
+		try
+		{
+			HistogramSidecar.of( statistics ).write( seqFile );
+		}
+		catch ( final IOException e )
+		{
+			progressWriter.err().println( "Failed to write histograms of " + seqFile + ": " + e.getMessage() );
+		}
+	}
+
+	public TypedBasicImgLoader< ? > getImgLoader()
+	{
+		return imgLoader;
+	}
+
+	/**
+	 * @return whether the img loader loads planes lazily into a cache, that
+	 *         should be cleared by {@link #clearCache()} when memory gets
+	 *         scarce.
+	 */
+	public boolean isCached()
+	{
+		return cached;
+	}
+
+	public void clearCache()
+	{
+		clearCache.run();
+	}
+
+	public Dimensions getSize()
+	{
+		return size;
+	}
+
+	public VoxelDimensions getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	public int numSetups()
+	{
+		return numSetups;
+	}
+
+	public int numTimepoints()
+	{
+		return numTimepoints;
+	}
+
+	public long getPlaneSizeInBytes()
+	{
+		return size.dimension( 0 ) * size.dimension( 1 ) * bytesPerPixel;
+	}
+}
@@ -34,12 +34,12 @@ import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.TimePoints;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.Dimensions;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
 
 @Deprecated
 public class FusionResult
@@ -80,7 +80,8 @@ public class FusionResult
 	{
 		final HashMap< Integer, Integer > setupIdToChannelId = new HashMap<>();
 		setupIdToChannelId.put( 0, 0 );
-		final ImgLoader fusionLoader = new FusionImageLoader<>( filepath +"/" + filepattern, setupIdToChannelId, numSlices, new FusionImageLoader.Gray32ImagePlusLoader(), sliceValueMin, sliceValueMax );
+		final FusionImageLoader< FloatType > fusionLoader = new FusionImageLoader<>( filepath +"/" + filepattern, setupIdToChannelId, numSlices, new FusionImageLoader.Gray32ImagePlusLoader(), sliceValueMin, sliceValueMax );
+		fusionLoader.setLazy( true );
 		final int setupId = 0;
 		final String name = "fused";
 		final int timepointId = timepoints.getTimePointsOrdered().get( 0 ).getId();
@@ -109,7 +110,8 @@ public class FusionResult
 		{
 			setupIdToChannelId.put( setupId, channels.get( setupId ) );
 		}
-		final ImgLoader fusionLoader = new FusionImageLoader<>( filepath +"/" + filepattern, setupIdToChannelId, numSlices, new FusionImageLoader.Gray32ImagePlusLoader(), sliceValueMin, sliceValueMax );
+		final FusionImageLoader< FloatType > fusionLoader = new FusionImageLoader<>( filepath +"/" + filepattern, setupIdToChannelId, numSlices, new FusionImageLoader.Gray32ImagePlusLoader(), sliceValueMin, sliceValueMax );
+		fusionLoader.setLazy( true );
 		final ArrayList< BasicViewSetup > setups = new ArrayList<>();
 		for ( int setupId = 0; setupId < channels.size(); ++setupId )
 		{
@@ -0,0 +1,411 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.export.ExportScalePyramid.AfterEachPlane;
+import bdv.export.ExportScalePyramid.LoopbackHeuristic;
+import bdv.export.ProgressWriter;
+import bdv.export.SubTaskProgressWriter;
+import bdv.export.WriteSequenceToHdf5;
+import bdv.ij.export.n5.WriteSequenceToN5Pipelined;
+import bdv.img.hdf5.Partition;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import net.imglib2.Dimensions;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Export several views of a sequence at once.
+ * <p>
+ * {@link WriteSequenceToHdf5} and {@link WriteSequenceToN5Pipelined} process
+ * views one after the other, and only parallelize over the blocks of one
+ * view. For small views this leaves most threads idle. The methods here split
+ * the export into independent tasks (HDF5 partitions, or subsets of the
+ * timepoints or setups of an N5 export), and run several of them
+ * concurrently. How many tasks run at once, and how many block creator
+ * threads each of them uses, is decided by {@link #schedule}.
+ */
+public final class ParallelExport
+{
+	/**
+	 * Intra-view parallelism is considered sufficient if one plane of
+	 * full-resolution blocks has at least this many blocks per thread.
+	 */
+	static final int MIN_BLOCKS_PER_THREAD = 2;
+
+	private ParallelExport()
+	{}
+
+	/**
+	 * How to distribute a thread budget over concurrent export tasks.
+	 */
+	public static final class Schedule
+	{
+		private final int numParallelTasks;
+
+		private final int numCellCreatorThreads;
+
+		Schedule( final int numParallelTasks, final int numCellCreatorThreads )
+		{
+			this.numParallelTasks = numParallelTasks;
+			this.numCellCreatorThreads = numCellCreatorThreads;
+		}
+
+		/**
+		 * @return how many export tasks should run concurrently.
+		 */
+		public int getNumParallelTasks()
+		{
+			return numParallelTasks;
+		}
+
+		/**
+		 * @return how many block creator threads each task should use.
+		 */
+		public int getNumCellCreatorThreads()
+		{
+			return numCellCreatorThreads;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Schedule{numParallelTasks=" + numParallelTasks + ", numCellCreatorThreads=" + numCellCreatorThreads + "}";
+		}
+	}
+
+	/**
+	 * Decide between intra-view and inter-view parallelism.
+	 * <p>
+	 * If one plane of full-resolution blocks of the largest view has enough
+	 * blocks to keep all threads busy, tasks are run one after the other, each
+	 * with all threads. Otherwise, as many tasks run concurrently as are
+	 * needed to occupy the threads, limited by the number of tasks and by how
+	 * many views fit into {@code memoryBudget}.
+	 *
+	 * @param viewSizeInBytes
+	 *            size of the largest view.
+	 * @param blocksPerPlane
+	 *            number of full-resolution blocks in one plane of blocks of
+	 *            the largest view.
+	 * @param numTasks
+	 *            number of independent tasks.
+	 * @param numThreads
+	 *            total number of threads to use.
+	 * @param memoryBudget
+	 *            memory that may be used by concurrently exported views.
+	 */
+	public static Schedule schedule( final long viewSizeInBytes, final long blocksPerPlane, final int numTasks, final int numThreads, final long memoryBudget )
+	{
+		if ( numTasks <= 1 || numThreads <= 1 || blocksPerPlane >= ( long ) MIN_BLOCKS_PER_THREAD * numThreads )
+			return new Schedule( 1, Math.max( 1, numThreads - 1 ) );
+
+		final long byThreads = ( MIN_BLOCKS_PER_THREAD * numThreads + blocksPerPlane - 1 ) / Math.max( 1, blocksPerPlane );
+		final long byMemory = memoryBudget / Math.max( 1, viewSizeInBytes );
+		final int numParallelTasks = ( int ) Math.max( 1, Math.min( Math.min( numTasks, numThreads ), Math.min( byThreads, byMemory ) ) );
+		final int numCellCreatorThreads = Math.max( 1, numThreads / numParallelTasks - 1 );
+		return new Schedule( numParallelTasks, numCellCreatorThreads );
+	}
+
+	/**
+	 * Decide between intra-view and inter-view parallelism for exporting
+	 * {@code seq}, based on the largest setup. The size of a view is computed
+	 * from the setup size and the pixel type of the img loader. A quarter of
+	 * the maximum heap size is used as the memory budget.
+	 * <p>
+	 * The budget only accounts for one view per concurrent task. Memory that
+	 * the img loader holds by itself is not counted, for example the
+	 * fully loaded views of {@code FusionImageLoader}, or the prefetched views
+	 * of {@code LegacyStackImageLoader} (which are limited separately, to
+	 * another quarter of the heap).
+	 */
+	public static Schedule schedule( final SequenceDescriptionMinimal seq, final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo, final int numTasks, final int numThreads )
+	{
+		long viewSizeInBytes = 0;
+		long blocksPerPlane = Long.MAX_VALUE;
+		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+		{
+			if ( !setup.hasSize() )
+				continue;
+			final Dimensions size = setup.getSize();
+			final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get( setup.getId() );
+			long bytes = bytesPerPixel( seq, setup.getId() );
+			long blocks = 1;
+			for ( int d = 0; d < size.numDimensions(); ++d )
+			{
+				bytes *= size.dimension( d );
+				if ( d < 2 && mipmapInfo != null )
+				{
+					final int s = mipmapInfo.getSubdivisions()[ 0 ][ d ];
+					blocks *= ( size.dimension( d ) + s - 1 ) / s;
+				}
+			}
+			if ( bytes > viewSizeInBytes )
+			{
+				viewSizeInBytes = bytes;
+				blocksPerPlane = blocks;
+			}
+		}
+		final long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+		return schedule( viewSizeInBytes, blocksPerPlane, numTasks, numThreads, memoryBudget );
+	}
+
+	/**
+	 * Bytes per pixel of the given setup, as provided by the img loader of
+	 * {@code seq}. 2 (for {@code UnsignedShortType}) if the type is not known.
+	 */
+	private static long bytesPerPixel( final SequenceDescriptionMinimal seq, final int setupId )
+	{
+		final BasicSetupImgLoader< ? > setupImgLoader = seq.getImgLoader() == null ? null : seq.getImgLoader().getSetupImgLoader( setupId );
+		final Object type = setupImgLoader == null ? null : setupImgLoader.getImageType();
+		if ( type instanceof RealType )
+			return Math.max( 1, ( ( RealType< ? > ) type ).getBitsPerPixel() / 8 );
+		return 2;
+	}
+
+	/**
+	 * Write HDF5 partition files, several at once if
+	 * {@link #schedule(SequenceDescriptionMinimal, Map, int, int)} decides so.
+	 * The link file is not written.
+	 *
+	 * @param progressWriter
+	 *            advances from 0 to 0.95 while this method executes.
+	 */
+	public static void writeHdf5PartitionFiles(
+			final SequenceDescriptionMinimal seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final boolean deflate,
+			final List< Partition > partitions,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numThreads,
+			final ProgressWriter progressWriter )
+	{
+		final Schedule schedule = schedule( seq, perSetupMipmapInfo, partitions.size(), numThreads );
+		final ParallelProgress progress = new ParallelProgress( progressWriter, partitions.size(), 0.95 );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		for ( int i = 0; i < partitions.size(); ++i )
+		{
+			final Partition partition = partitions.get( i );
+			final ProgressWriter p = progress.subTask( i );
+			tasks.add( () -> {
+				WriteSequenceToHdf5.writeHdf5PartitionFile( seq, perSetupMipmapInfo, deflate, partition, loopbackHeuristic, afterEachPlane, schedule.getNumCellCreatorThreads(), p );
+				return null;
+			} );
+		}
+		run( tasks, schedule.getNumParallelTasks() );
+	}
+
+	/**
+	 * Write {@code seq} to an N5 container. If
+	 * {@link #schedule(SequenceDescriptionMinimal, Map, int, int)} decides so,
+	 * the sequence is split into subsets of timepoints (or of setups, if there
+	 * are more setups than timepoints), which are written concurrently into
+	 * the same container.
+	 *
+	 * @param progressWriter
+	 *            advances from 0 to 0.95 while this method executes.
+	 */
+	public static void writeN5File(
+			final SequenceDescriptionMinimal seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final Compression compression,
+			final File n5File,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numThreads,
+			final ProgressWriter progressWriter ) throws IOException
+	{
+		final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+		final List< BasicViewSetup > setups = seq.getViewSetupsOrdered();
+		final boolean splitTimepoints = timepoints.size() >= setups.size();
+		final int numUnits = splitTimepoints ? timepoints.size() : setups.size();
+		final Schedule schedule = schedule( seq, perSetupMipmapInfo, numUnits, numThreads );
+		final int numTasks = schedule.getNumParallelTasks();
+		if ( numTasks <= 1 )
+		{
+			WriteSequenceToN5Pipelined.writeN5File( seq, perSetupMipmapInfo, compression, n5File, loopbackHeuristic, afterEachPlane, schedule.getNumCellCreatorThreads(), new SubTaskProgressWriter( progressWriter, 0, 0.95 ) );
+			return;
+		}
+
+		// the setup groups are shared by all tasks if the export is split by
+		// timepoints, so create them (and their attributes) only once
+		final N5Writer n5 = new N5FSWriter( n5File.getAbsolutePath() );
+		WriteSequenceToN5Pipelined.writeSetupAttributes( n5, seq, perSetupMipmapInfo );
+
+		final ParallelProgress progress = new ParallelProgress( progressWriter, numTasks, 0.95 );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		for ( int i = 0; i < numTasks; ++i )
+		{
+			// contiguous ranges of timepoints (or setups)
+			final int from = i * numUnits / numTasks;
+			final int to = ( i + 1 ) * numUnits / numTasks;
+			final TimePoints subTimepoints = splitTimepoints
+					? new TimePoints( new ArrayList<>( timepoints.subList( from, to ) ) )
+					: seq.getTimePoints();
+			final HashMap< Integer, BasicViewSetup > subSetups = new HashMap<>();
+			for ( final BasicViewSetup setup : splitTimepoints ? setups : setups.subList( from, to ) )
+				subSetups.put( setup.getId(), setup );
+			final SequenceDescriptionMinimal subSeq = new SequenceDescriptionMinimal( subTimepoints, subSetups, seq.getImgLoader(), seq.getMissingViews() );
+			final ProgressWriter p = progress.subTask( i );
+			tasks.add( () -> {
+				WriteSequenceToN5Pipelined.writeViews( n5, subSeq, perSetupMipmapInfo, compression, loopbackHeuristic, afterEachPlane, schedule.getNumCellCreatorThreads(), p );
+				return null;
+			} );
+		}
+		try
+		{
+			run( tasks, numTasks );
+		}
+		catch ( final RuntimeException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException ) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Run {@code tasks}, at most {@code numParallelTasks} at a time, and wait
+	 * for all of them to complete. Exceptions thrown by a task are rethrown
+	 * wrapped in a {@link RuntimeException}.
+	 */
+	public static void run( final List< ? extends Callable< ? > > tasks, final int numParallelTasks )
+	{
+		if ( numParallelTasks <= 1 )
+		{
+			for ( final Callable< ? > task : tasks )
+			{
+				try
+				{
+					task.call();
+				}
+				catch ( final RuntimeException e )
+				{
+					throw e;
+				}
+				catch ( final Exception e )
+				{
+					throw new RuntimeException( e );
+				}
+			}
+			return;
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.min( numParallelTasks, tasks.size() ) );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>();
+			for ( final Callable< ? > task : tasks )
+				futures.add( executor.submit( task ) );
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Combines the progress of concurrent sub-tasks into the progress of a
+	 * parent {@link ProgressWriter}.
+	 */
+	public static final class ParallelProgress
+	{
+		private final ProgressWriter progressWriter;
+
+		private final double[] completion;
+
+		private final double scale;
+
+		public ParallelProgress( final ProgressWriter progressWriter, final int numTasks, final double scale )
+		{
+			this.progressWriter = progressWriter;
+			this.completion = new double[ numTasks ];
+			this.scale = scale;
+		}
+
+		public ProgressWriter subTask( final int task )
+		{
+			return new ProgressWriter()
+			{
+				@Override
+				public PrintStream out()
+				{
+					return progressWriter.out();
+				}
+
+				@Override
+				public PrintStream err()
+				{
+					return progressWriter.err();
+				}
+
+				@Override
+				public void setProgress( final double completionRatio )
+				{
+					update( task, completionRatio );
+				}
+			};
+		}
+
+		private synchronized void update( final int task, final double completionRatio )
+		{
+			completion[ task ] = completionRatio;
+			double sum = 0;
+			for ( final double c : completion )
+				sum += c;
+			progressWriter.setProgress( scale * sum / completion.length );
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.img.hdf5.Partition;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.Dimensions;
+
+/**
+ * Plan HDF5 {@link Partition partitions} of roughly equal estimated size.
+ * <p>
+ * In contrast to {@link Partition#split(List, List, int, int, String)}, which
+ * puts a fixed number of timepoints and setups into each partition, the cost
+ * of every setup is estimated from its dimensions, mipmap levels, and
+ * compression. Setups that are more expensive than the average partition are
+ * split along timepoints into their own partitions. The remaining setups are
+ * distributed (largest first, each to the currently cheapest partition) over
+ * the remaining partitions, which contain all timepoints.
+ */
+public final class PartitionPlanner
+{
+	/**
+	 * Assumed ratio of compressed to uncompressed size for deflate.
+	 */
+	static final double DEFLATE_RATIO = 0.5;
+
+	/**
+	 * Assumed per-cell overhead (chunk index, headers) in bytes.
+	 */
+	static final long CELL_OVERHEAD_BYTES = 256;
+
+	private PartitionPlanner()
+	{}
+
+	/**
+	 * Plan approximately {@code numPartitions} partitions of roughly equal
+	 * estimated cost.
+	 *
+	 * @param timepoints
+	 *            the timepoints of the sequence.
+	 * @param setups
+	 *            the setups of the sequence.
+	 * @param perSetupMipmapInfo
+	 *            the mipmap levels that will be exported for each setup.
+	 * @param deflate
+	 *            whether the partitions will be compressed.
+	 * @param numPartitions
+	 *            the target number of partitions. The actual number may be
+	 *            smaller if there are too few views, or slightly larger if
+	 *            individual setups have to be split.
+	 * @param basename
+	 *            the partition files are named {@code basename-NN.h5}.
+	 * @return list of partitions.
+	 */
+	public static ArrayList< Partition > plan(
+			final List< TimePoint > timepoints,
+			final List< ? extends BasicViewSetup > setups,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final boolean deflate,
+			final int numPartitions,
+			final String basename )
+	{
+		final int numTimepoints = timepoints.size();
+		if ( numTimepoints == 0 || setups.isEmpty() )
+			return new ArrayList<>();
+
+		final HashMap< Integer, Double > setupCosts = new HashMap<>();
+		double totalCost = 0;
+		for ( final BasicViewSetup setup : setups )
+		{
+			final double cost = numTimepoints * ( double ) estimateBytes( setup, perSetupMipmapInfo.get( setup.getId() ), deflate );
+			setupCosts.put( setup.getId(), cost );
+			totalCost += cost;
+		}
+		final double target = totalCost / Math.max( 1, numPartitions );
+
+		final ArrayList< ArrayList< Integer > > partitionTimepoints = new ArrayList<>();
+		final ArrayList< ArrayList< Integer > > partitionSetups = new ArrayList<>();
+
+		// setups that are more expensive than the average partition are split
+		// along timepoints into partitions of their own
+		final ArrayList< Integer > smallSetups = new ArrayList<>();
+		for ( final BasicViewSetup setup : setups )
+		{
+			final double cost = setupCosts.get( setup.getId() );
+			if ( cost < target )
+			{
+				smallSetups.add( setup.getId() );
+				continue;
+			}
+			final int numChunks = ( int ) Math.min( numTimepoints, Math.max( 1, Math.round( cost / target ) ) );
+			for ( int i = 0; i < numChunks; ++i )
+			{
+				final ArrayList< Integer > tps = new ArrayList<>();
+				for ( int t = i * numTimepoints / numChunks; t < ( i + 1 ) * numTimepoints / numChunks; ++t )
+					tps.add( timepoints.get( t ).getId() );
+				partitionTimepoints.add( tps );
+				partitionSetups.add( new ArrayList<>( Collections.singletonList( setup.getId() ) ) );
+			}
+		}
+
+		// the remaining setups are distributed over the remaining partitions,
+		// largest first, each to the currently cheapest partition
+		if ( !smallSetups.isEmpty() )
+		{
+			smallSetups.sort( Comparator.comparingDouble( ( final Integer id ) -> setupCosts.get( id ) ).reversed() );
+			final int numBins = Math.min( smallSetups.size(), Math.max( 1, numPartitions - partitionSetups.size() ) );
+			final double[] binCosts = new double[ numBins ];
+			final ArrayList< ArrayList< Integer > > bins = new ArrayList<>();
+			for ( int i = 0; i < numBins; ++i )
+				bins.add( new ArrayList<>() );
+			for ( final Integer id : smallSetups )
+			{
+				int cheapest = 0;
+				for ( int i = 1; i < numBins; ++i )
+					if ( binCosts[ i ] < binCosts[ cheapest ] )
+						cheapest = i;
+				bins.get( cheapest ).add( id );
+				binCosts[ cheapest ] += setupCosts.get( id );
+			}
+			final ArrayList< Integer > allTimepoints = new ArrayList<>();
+			for ( final TimePoint timepoint : timepoints )
+				allTimepoints.add( timepoint.getId() );
+			for ( final ArrayList< Integer > bin : bins )
+			{
+				Collections.sort( bin );
+				partitionTimepoints.add( allTimepoints );
+				partitionSetups.add( bin );
+			}
+		}
+
+		final ArrayList< Partition > partitions = new ArrayList<>();
+		for ( int i = 0; i < partitionSetups.size(); ++i )
+		{
+			final String path = String.format( "%s-%02d.h5", basename, i );
+			partitions.add( new Partition( path, identityMap( partitionTimepoints.get( i ) ), identityMap( partitionSetups.get( i ) ) ) );
+		}
+		return partitions;
+	}
+
+	/**
+	 * Split into partitions as specified by {@code timepointsPerPartition} and
+	 * {@code setupsPerPartition} (see
+	 * {@link Partition#split(List, List, int, int, String)}). If
+	 * {@code balance} is set, the same number of partitions is
+	 * {@link #plan planned} by estimated size instead, so that partitions that
+	 * are written in parallel finish at about the same time.
+	 *
+	 * @param timepointsPerPartition
+	 *            how many timepoints should go into one partition, or 0 for all
+	 *            timepoints.
+	 * @param setupsPerPartition
+	 *            how many setups should go into one partition, or 0 for all
+	 *            setups.
+	 * @param balance
+	 *            whether to balance partitions by estimated size.
+	 * @return list of partitions.
+	 */
+	public static ArrayList< Partition > split(
+			final List< TimePoint > timepoints,
+			final List< ? extends BasicViewSetup > setups,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final boolean deflate,
+			final int timepointsPerPartition,
+			final int setupsPerPartition,
+			final boolean balance,
+			final String basename )
+	{
+		if ( !balance )
+			return Partition.split( timepoints, setups, timepointsPerPartition, setupsPerPartition, basename );
+
+		final int numTimepointGroups = numGroups( timepoints.size(), timepointsPerPartition );
+		final int numSetupGroups = numGroups( setups.size(), setupsPerPartition );
+		return plan( timepoints, setups, perSetupMipmapInfo, deflate, numTimepointGroups * numSetupGroups, basename );
+	}
+
+	private static int numGroups( final int n, final int perGroup )
+	{
+		return perGroup <= 0 ? 1 : Math.max( 1, ( n + perGroup - 1 ) / perGroup );
+	}
+
+	/**
+	 * Estimate the number of bytes written for one timepoint of a setup.
+	 *
+	 * @param setup
+	 *            the setup. If its size is unknown, a cost of 1 is assumed.
+	 * @param mipmapInfo
+	 *            the mipmap levels that will be exported, or {@code null} to
+	 *            assume only full resolution.
+	 * @param deflate
+	 *            whether the data will be compressed.
+	 * @return estimated number of bytes.
+	 */
+	public static long estimateBytes( final BasicViewSetup setup, final ExportMipmapInfo mipmapInfo, final boolean deflate )
+	{
+		if ( !setup.hasSize() )
+			return 1;
+		final Dimensions size = setup.getSize();
+		final int n = size.numDimensions();
+		final int[][] resolutions = mipmapInfo == null ? new int[][] { ones( n ) } : mipmapInfo.getExportResolutions();
+		final int[][] subdivisions = mipmapInfo == null ? null : mipmapInfo.getSubdivisions();
+		final double ratio = deflate ? DEFLATE_RATIO : 1.0;
+		long bytes = 0;
+		for ( int level = 0; level < resolutions.length; ++level )
+		{
+			long voxels = 1;
+			long cells = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				final long dim = ( size.dimension( d ) + resolutions[ level ][ d ] - 1 ) / resolutions[ level ][ d ];
+				voxels *= dim;
+				if ( subdivisions != null )
+					cells *= ( dim + subdivisions[ level ][ d ] - 1 ) / subdivisions[ level ][ d ];
+			}
+			// exported as UnsignedShortType
+			bytes += ( long ) ( 2 * voxels * ratio ) + cells * CELL_OVERHEAD_BYTES;
+		}
+		return Math.max( 1, bytes );
+	}
+
+	private static int[] ones( final int n )
+	{
+		final int[] ones = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			ones[ d ] = 1;
+		return ones;
+	}
+
+	private static Map< Integer, Integer > identityMap( final List< Integer > ids )
+	{
+		final HashMap< Integer, Integer > map = new HashMap<>();
+		for ( final Integer id : ids )
+			map.put( id, id );
+		return map;
+	}
+}
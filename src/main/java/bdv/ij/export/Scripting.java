@@ -196,6 +196,32 @@ public class Scripting
 		return Partition.split( aggregator.timepoints.getTimePointsOrdered(), aggregator.setups, timepointsPerPartition, setupsPerPartition, basename );
 	}
 
+	/**
+	 * Split the sequence represented in <code>aggregator</code> into
+	 * approximately <code>numPartitions</code> partitions of roughly equal
+	 * estimated size. See {@link PartitionPlanner}.
+	 *
+	 * @param aggregator
+	 *            represents the full dataset.
+	 * @param numPartitions
+	 *            the target number of partitions.
+	 * @param deflate
+	 *            whether the partitions will be compressed.
+	 * @param xmlFilename
+	 *            path to the xml file to which the sequence will be saved. This
+	 *            is used to generate paths for the partitions.
+	 * @return list of partitions.
+	 */
+	public static ArrayList< Partition > splitBalanced(
+			final SetupAggregator aggregator,
+			final int numPartitions,
+			final boolean deflate,
+			final String xmlFilename )
+	{
+		final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
+		return PartitionPlanner.plan( aggregator.timepoints.getTimePointsOrdered(), aggregator.setups, aggregator.getPerSetupMipmapInfo(), deflate, numPartitions, basename );
+	}
+
 	public static class PartitionedSequenceWriter
 	{
 		protected final SpimDataMinimal spimData;
@@ -22,12 +22,21 @@
 package bdv.ij.export;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import bdv.ij.export.imgloader.HuiskenImageLoader;
+import bdv.ij.export.imgloader.ImageHeaders;
 import bdv.ij.export.imgloader.StackImageLoader;
+import bdv.ij.util.PluginHelper;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import mpicbg.spim.data.generic.base.Entity;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
@@ -68,15 +77,15 @@ public class SpimRegistrationSequence
 	public SpimRegistrationSequence( final SPIMConfiguration conf )
 	{
 		this.conf = conf;
-		final ArrayList< ViewSetup > setups = createViewSetups( conf );
-//		final HashMap< Integer, ViewSetup > setups = Entity.idMap( createViewSetups( conf ) );
+		final ViewStructure[] viewStructures = createViewStructures( conf );
+		final ArrayList< ViewSetup > setups = createViewSetups( conf, viewStructures[ 0 ] );
 		final TimePoints timepoints = createTimePoints( conf );
 
+		final BasicImgLoader imgLoader = createImageLoader( conf, setups, viewStructures );
 
-		final BasicImgLoader imgLoader = createImageLoader( conf, setups );
-
-		viewRegistrations = createViewRegistrations( conf, setups );
-		sequenceDescription = new SequenceDescriptionMinimal( timepoints, Entity.idMap( createViewSetups( conf ) ), imgLoader, null );
+		// registrations are applied to the cached views, so this must come last
+		viewRegistrations = createViewRegistrations( conf, setups, viewStructures );
+		sequenceDescription = new SequenceDescriptionMinimal( timepoints, Entity.idMap( setups ), imgLoader, null );
 	}
 
 	public SpimRegistrationSequence( final String huiskenExperimentXmlFile, final String channels, final String angles, final String timepoints, final int referenceTimePoint ) throws ConfigurationParserException
@@ -99,23 +108,78 @@ public class SpimRegistrationSequence
 		return viewRegistrations;
 	}
 
+	/**
+	 * Initialize the {@link ViewStructure} of every timepoint of {@code conf}
+	 * (indexed like {@code conf.timepoints}). The timepoints are scanned in
+	 * parallel, so that the result can be shared by
+	 * {@link #createViewSetups(SPIMConfiguration, ViewStructure)},
+	 * {@link #createImageLoader(SPIMConfiguration, ArrayList, ViewStructure[])}
+	 * and
+	 * {@link #createViewRegistrations(SPIMConfiguration, ArrayList, ViewStructure[])}
+	 * instead of being re-initialized by each of them.
+	 * <p>
+	 * This holds the view structures of all timepoints at once, where
+	 * initializing them one at a time only held one. They are small before
+	 * registrations are loaded, and
+	 * {@link #createViewRegistrations(SPIMConfiguration, ArrayList, ViewStructure[])}
+	 * releases each timepoint after loading its registrations.
+	 */
+	protected static ViewStructure[] createViewStructures( final SPIMConfiguration conf )
+	{
+		final int numTimepoints = conf.timepoints.length;
+		final ViewStructure[] viewStructures = new ViewStructure[ numTimepoints ];
+		final int numThreads = Math.max( 1, Math.min( numTimepoints, PluginHelper.numThreads() ) );
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			final ArrayList< Future< ViewStructure > > futures = new ArrayList<>();
+			for ( int timepoint = 0; timepoint < numTimepoints; ++timepoint )
+			{
+				final int timepointIndex = timepoint;
+				futures.add( executor.submit( () -> createViewStructure( conf, timepointIndex ) ) );
+			}
+			for ( int timepoint = 0; timepoint < numTimepoints; ++timepoint )
+				viewStructures[ timepoint ] = futures.get( timepoint ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		return viewStructures;
+	}
+
+	private static ViewStructure createViewStructure( final SPIMConfiguration conf, final int timepointIndex )
+	{
+		return ViewStructure.initViewStructure( conf, timepointIndex, new mpicbg.models.AffineModel3D(), "ViewStructure Timepoint " + conf.timepoints[ timepointIndex ], conf.debugLevelInt );
+	}
+
 	protected static BasicImgLoader createImageLoader( final SPIMConfiguration conf, final ArrayList< ViewSetup > setups )
+	{
+		return createImageLoader( conf, setups, createViewStructures( conf ) );
+	}
+
+	protected static BasicImgLoader createImageLoader( final SPIMConfiguration conf, final ArrayList< ViewSetup > setups, final ViewStructure[] viewStructures )
 	{
 		final int numTimepoints = conf.timepoints.length;
+		final Map< List< Integer >, Integer > setupIds = getViewSetupIds( setups );
 		final HashMap< ViewId, String > filenames = new HashMap<>();
 		for ( int timepoint = 0; timepoint < numTimepoints; ++timepoint )
 		{
 			final int timepointId = conf.timepoints[ timepoint ];
-			final ViewStructure viewStructure = ViewStructure.initViewStructure( conf, timepoint, new mpicbg.models.AffineModel3D(), "ViewStructure Timepoint " + timepointId, conf.debugLevelInt );
-
-			for ( final ViewDataBeads viewDataBeads : viewStructure.getViews() )
+			for ( final ViewDataBeads viewDataBeads : viewStructures[ timepoint ].getViews() )
 			{
 				// get ViewId
-				final int angle = viewDataBeads.getAcqusitionAngle();
-				final int illumination = viewDataBeads.getIllumination();
-				final int channel = viewDataBeads.getChannel();
-				final int setupId = getViewSetupId( setups, angle, illumination, channel );
-				filenames.put( new ViewId( timepointId, setupId ), viewDataBeads.getFileName() );
+				final Integer setupId = setupIds.get( viewKey( viewDataBeads ) );
+				filenames.put( new ViewId( timepointId, setupId == null ? -1 : setupId ), viewDataBeads.getFileName() );
 			}
 		}
 		if ( conf.isHuiskenFormat() )
@@ -192,6 +256,19 @@ public class SpimRegistrationSequence
 
 	protected static ArrayList< ViewSetup > createViewSetups( final SPIMConfiguration conf )
 	{
+		return createViewSetups( conf, createViewStructure( conf, 0 ) );
+	}
+
+	/**
+	 * Create the {@link ViewSetup}s of {@code conf}, taking image sizes and
+	 * voxel sizes from the views of the first timepoint.
+	 */
+	protected static ArrayList< ViewSetup > createViewSetups( final SPIMConfiguration conf, final ViewStructure firstTimepoint )
+	{
+		final HashMap< List< Integer >, ViewDataBeads > views = new HashMap<>();
+		for ( final ViewDataBeads viewDataBeads : firstTimepoint.getViews() )
+			views.putIfAbsent( viewKey( viewDataBeads ), viewDataBeads );
+
 		final ArrayList< ViewSetup > setups = new ArrayList<>();
 		int setup_id = 0;
 		for ( int channelIndex = 0; channelIndex < conf.file[ 0 ].length; channelIndex++ )
@@ -217,17 +294,11 @@ public class SpimRegistrationSequence
 
 					Dimensions size = null;
 					VoxelDimensions voxelSize = null;
-					final ViewStructure viewStructure = ViewStructure.initViewStructure( conf, 0, new mpicbg.models.AffineModel3D(), "ViewStructure Timepoint " + 0, conf.debugLevelInt );
-					for ( final ViewDataBeads viewDataBeads : viewStructure.getViews() )
+					final ViewDataBeads viewDataBeads = views.get( viewKey( angle.getId(), illumination.getId(), channel.getId() ) );
+					if ( viewDataBeads != null )
 					{
-						if ( angle.getId() == viewDataBeads.getAcqusitionAngle() &&
-								illumination.getId() == viewDataBeads.getIllumination() &&
-								channel.getId() == viewDataBeads.getChannel() )
-						{
-							voxelSize = new FinalVoxelDimensions( "px", 1.0, 1.0, viewDataBeads.getZStretching() );
-							size = new FinalDimensions( viewDataBeads.getImageSize() );
-							break;
-						}
+						voxelSize = new FinalVoxelDimensions( "px", 1.0, 1.0, viewDataBeads.getZStretching() );
+						size = getImageSize( conf, viewDataBeads );
 					}
 
 					setups.add( new ViewSetup( setup_id++, name, size, voxelSize, channel, angle, illumination ) );
@@ -235,6 +306,25 @@ public class SpimRegistrationSequence
 		return setups;
 	}
 
+	/**
+	 * Get the image size of a view from the file headers, falling back to
+	 * {@link ViewDataBeads#getImageSize()} (which may load the image).
+	 */
+	protected static Dimensions getImageSize( final SPIMConfiguration conf, final ViewDataBeads viewDataBeads )
+	{
+		if ( conf.isHuiskenFormat() && conf.spimExperiment != null )
+			return HuiskenImageLoader.getImageSize( conf.spimExperiment );
+
+		try
+		{
+			return ImageHeaders.read( viewDataBeads.getFileName() ).getDimensions();
+		}
+		catch ( final IOException e )
+		{
+			return new FinalDimensions( viewDataBeads.getImageSize() );
+		}
+	}
+
 	protected static TimePoints createTimePoints( final SPIMConfiguration conf )
 	{
 		final ArrayList< TimePoint > timepoints = new ArrayList<>();
@@ -360,6 +450,20 @@ public class SpimRegistrationSequence
 
 	protected static ViewRegistrations createViewRegistrations( final SPIMConfiguration conf, final ArrayList< ViewSetup > setups )
 	{
+		return createViewRegistrations( conf, setups, createViewStructures( conf ) );
+	}
+
+	/**
+	 * Create {@link ViewRegistrations} from the given view structures (indexed
+	 * like {@code conf.timepoints}). Note that this loads and applies the
+	 * registrations to the views of {@code viewStructures}, and sets each
+	 * element of {@code viewStructures} to {@code null} once its timepoint is
+	 * done, so that the loaded registrations of only one timepoint are kept at
+	 * a time.
+	 */
+	protected static ViewRegistrations createViewRegistrations( final SPIMConfiguration conf, final ArrayList< ViewSetup > setups, final ViewStructure[] viewStructures )
+	{
+		final Map< List< Integer >, Integer > setupIds = getViewSetupIds( setups );
 		final ArrayList< ViewRegistration > regs = new ArrayList<>();
 
 		// for each time-point initialize the view structure, load&apply
@@ -367,7 +471,7 @@ public class SpimRegistrationSequence
 		for ( int i = 0; i < conf.timepoints.length; ++i )
 		{
 			final int timepointId = conf.timepoints[ i ];
-			final ViewStructure viewStructure = ViewStructure.initViewStructure( conf, i, new mpicbg.models.AffineModel3D(), "ViewStructure Timepoint " + timepointId, conf.debugLevelInt );
+			final ViewStructure viewStructure = viewStructures[ i ];
 
 			for ( final ViewDataBeads viewDataBeads : viewStructure.getViews() )
 			{
@@ -381,20 +485,18 @@ public class SpimRegistrationSequence
 				// apply the z-scaling to the transformation
 				BeadRegistration.concatenateAxialScaling( viewDataBeads, viewStructure.getDebugLevel() );
 
-				final int angle = viewDataBeads.getAcqusitionAngle();
-				final int illumination = viewDataBeads.getIllumination();
-				final int channel = viewDataBeads.getChannel();
 				final AffineTransform3D model = new AffineTransform3D();
 				final double[][] tmp = new double[3][4];
 				( ( mpicbg.models.AffineModel3D ) viewDataBeads.getTile().getModel() ).toMatrix( tmp );
 				model.set( tmp );
 
 				// get corresponding setup id
-				final int setupId = getViewSetupId( setups, angle, illumination, channel );
+				final Integer setupId = setupIds.get( viewKey( viewDataBeads ) );
 
 				// create ViewRegistration
-				regs.add( new ViewRegistration( timepointId, setupId, model ) );
+				regs.add( new ViewRegistration( timepointId, setupId == null ? -1 : setupId, model ) );
 			}
+			viewStructures[ i ] = null;
 		}
 
 		return new ViewRegistrations( regs );
@@ -422,6 +524,28 @@ public class SpimRegistrationSequence
 		return -1;
 	}
 
+	/**
+	 * Map (angle, illumination, channel) keys, as created by
+	 * {@link #viewKey(int, int, int)}, to ViewSetup ids.
+	 */
+	private static Map< List< Integer >, Integer > getViewSetupIds( final ArrayList< ViewSetup > setups )
+	{
+		final HashMap< List< Integer >, Integer > setupIds = new HashMap<>();
+		for ( final ViewSetup s : setups )
+			setupIds.putIfAbsent( viewKey( s.getAngle().getId(), s.getIllumination().getId(), s.getChannel().getId() ), s.getId() );
+		return setupIds;
+	}
+
+	private static List< Integer > viewKey( final ViewDataBeads viewDataBeads )
+	{
+		return viewKey( viewDataBeads.getAcqusitionAngle(), viewDataBeads.getIllumination(), viewDataBeads.getChannel() );
+	}
+
+	private static List< Integer > viewKey( final int angle, final int illumination, final int channel )
+	{
+		return Arrays.asList( angle, illumination, channel );
+	}
+
 	public SPIMConfiguration getConf()
 	{
 		return conf;
@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.imgloader;
+
+import java.lang.reflect.Array;
+
+import net.imglib2.converter.RealUnsignedShortConverter;
+
+/**
+ * Bulk conversion of whole primitive pixel arrays to unsigned 16-bit and
+ * float, as a replacement for per-pixel {@code Converter}s on the export read
+ * path.
+ * <p>
+ * Scaling to unsigned 16-bit maps {@code [min, max]} linearly to
+ * {@code [0, 65535]}, clamping values outside. Every value is computed with the
+ * same formula as {@link RealUnsignedShortConverter}, so results are identical
+ * to it, also for {@code NaN} and for {@code max <= min}. For 8-bit and 16-bit
+ * input this is done by table lookup.
+ */
+public final class ArrayConversions
+{
+	private ArrayConversions()
+	{}
+
+	/**
+	 * Inputs shorter than this are converted arithmetically instead of through
+	 * a 65536-entry lookup table.
+	 */
+	private static final int MIN_LENGTH_FOR_SHORT_LUT = 1 << 14;
+
+	/**
+	 * Copy unsigned 8-bit values to unsigned 16-bit.
+	 */
+	public static void copy( final byte[] src, final short[] dst )
+	{
+		final int n = src.length;
+		for ( int i = 0; i < n; ++i )
+			dst[ i ] = ( short ) ( src[ i ] & 0xff );
+	}
+
+	/**
+	 * Copy unsigned 8-bit values to float.
+	 */
+	public static void copy( final byte[] src, final float[] dst )
+	{
+		final int n = src.length;
+		for ( int i = 0; i < n; ++i )
+			dst[ i ] = src[ i ] & 0xff;
+	}
+
+	/**
+	 * Copy unsigned 16-bit values to float.
+	 */
+	public static void copy( final short[] src, final float[] dst )
+	{
+		final int n = src.length;
+		for ( int i = 0; i < n; ++i )
+			dst[ i ] = src[ i ] & 0xffff;
+	}
+
+	/**
+	 * Scale unsigned 8-bit values from {@code [min, max]} to unsigned 16-bit.
+	 */
+	public static void scale( final byte[] src, final short[] dst, final double min, final double max )
+	{
+		final short[] lut = createLut( 0x100, min, max );
+		final int n = src.length;
+		for ( int i = 0; i < n; ++i )
+			dst[ i ] = lut[ src[ i ] & 0xff ];
+	}
+
+	/**
+	 * Scale unsigned 16-bit values from {@code [min, max]} to unsigned 16-bit.
+	 */
+	public static void scale( final short[] src, final short[] dst, final double min, final double max )
+	{
+		final int n = src.length;
+		if ( n >= MIN_LENGTH_FOR_SHORT_LUT )
+		{
+			final short[] lut = createLut( 0x10000, min, max );
+			for ( int i = 0; i < n; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+		else
+		{
+			for ( int i = 0; i < n; ++i )
+				dst[ i ] = convert( src[ i ] & 0xffff, min, max );
+		}
+	}
+
+	/**
+	 * Scale float values from {@code [min, max]} to unsigned 16-bit.
+	 * {@code NaN} maps to 0.
+	 */
+	public static void scale( final float[] src, final short[] dst, final double min, final double max )
+	{
+		final int n = src.length;
+		for ( int i = 0; i < n; ++i )
+			dst[ i ] = convert( src[ i ], min, max );
+	}
+
+	/**
+	 * Scale a {@code byte[]}, {@code short[]}, or {@code float[]} pixel array
+	 * from {@code [min, max]} to unsigned 16-bit {@code dst}.
+	 */
+	public static void scale( final Object pixels, final short[] dst, final double min, final double max )
+	{
+		if ( pixels instanceof byte[] )
+			scale( ( byte[] ) pixels, dst, min, max );
+		else if ( pixels instanceof short[] )
+			scale( ( short[] ) pixels, dst, min, max );
+		else if ( pixels instanceof float[] )
+			scale( ( float[] ) pixels, dst, min, max );
+		else
+			throw new IllegalArgumentException( "unsupported pixel array " + pixels.getClass().getSimpleName() );
+	}
+
+	/**
+	 * Scale a {@code byte[]}, {@code short[]}, or {@code float[]} pixel array
+	 * from {@code [min, max]} to a new unsigned 16-bit array.
+	 */
+	public static short[] toUnsignedShort( final Object pixels, final double min, final double max )
+	{
+		final short[] dst = new short[ Array.getLength( pixels ) ];
+		scale( pixels, dst, min, max );
+		return dst;
+	}
+
+	/**
+	 * Convert a {@code byte[]} (unsigned 8-bit), {@code short[]} (unsigned
+	 * 16-bit), or {@code float[]} pixel array to a float array. Float arrays
+	 * are returned as is.
+	 */
+	public static float[] toFloat( final Object pixels )
+	{
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] src = ( byte[] ) pixels;
+			final float[] dst = new float[ src.length ];
+			copy( src, dst );
+			return dst;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] src = ( short[] ) pixels;
+			final float[] dst = new float[ src.length ];
+			copy( src, dst );
+			return dst;
+		}
+		else if ( pixels instanceof float[] )
+			return ( float[] ) pixels;
+		else
+			throw new IllegalArgumentException( "unsupported pixel array " + pixels.getClass().getSimpleName() );
+	}
+
+	private static short[] createLut( final int size, final double min, final double max )
+	{
+		final short[] lut = new short[ size ];
+		for ( int i = 0; i < size; ++i )
+			lut[ i ] = convert( i, min, max );
+		return lut;
+	}
+
+	/**
+	 * Same formula as {@link RealUnsignedShortConverter}. Do not precompute
+	 * {@code 65535 / (max - min)}: that rounds differently and changes the
+	 * result for {@code max <= min}.
+	 */
+	private static short convert( final double a, final double min, final double max )
+	{
+		return ( short ) Math.min( 65535, roundPositive( Math.max( 0, ( ( a - min ) / ( max - min ) * 65535.0 ) ) ) );
+	}
+
+	private static int roundPositive( final double a )
+	{
+		return ( int ) ( a + 0.5 );
+	}
+}
@@ -21,9 +21,16 @@
  */
 package bdv.ij.export.imgloader;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import bdv.ij.util.PluginHelper;
 import ij.ImagePlus;
 import io.scif.img.ImgIOException;
 import io.scif.img.ImgOpener;
@@ -38,18 +45,25 @@ import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealUnsignedShortConverter;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 /**
@@ -83,6 +97,16 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 
 	private final HashMap< Integer, SetupLoader > setupIdToSetupImgLoader;
 
+	private final double sliceValueMin;
+
+	private final double sliceValueMax;
+
+	private int numThreads = PluginHelper.numThreads();
+
+	private boolean lazy = false;
+
+	private long maxCacheSizeInBytes = Runtime.getRuntime().maxMemory() / 4;
+
 	public FusionImageLoader( final String pattern, final HashMap< Integer, Integer > setupIdToChannelId, final int numSlices, final SliceLoader< T > sliceLoader, final double sliceValueMin, final double sliceValueMax )
 	{
 		this( pattern, setupIdToChannelId, numSlices, sliceLoader, sliceValueMin, sliceValueMax, new PlanarImgFactory< UnsignedShortType >() );
@@ -93,6 +117,8 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 		this.pattern = pattern;
 		this.numSlices = numSlices;
 		this.sliceLoader = sliceLoader;
+		this.sliceValueMin = sliceValueMin;
+		this.sliceValueMax = sliceValueMax;
 		converter = new RealUnsignedShortConverter<>( sliceValueMin, sliceValueMax );
 		this.factory = factory;
 		type = new UnsignedShortType();
@@ -101,9 +127,51 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 			setupIdToSetupImgLoader.put( entry.getKey(), new SetupLoader( entry.getValue() ) );
 	}
 
+	/**
+	 * Set how many slice files are loaded concurrently.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * If {@code lazy}, {@link SetupLoader#getImage(int, ImgLoaderHint...)}
+	 * returns a cached cell image with one cell per slice, where slices are
+	 * loaded from their files on demand. Otherwise, the whole volume is loaded
+	 * into memory.
+	 */
+	public void setLazy( final boolean lazy )
+	{
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Set the approximate maximum number of bytes of slices to keep cached per
+	 * image in {@link #setLazy(boolean) lazy} mode. The default is a quarter
+	 * of the maximum heap size.
+	 */
+	public void setMaxCacheSizeInBytes( final long maxCacheSizeInBytes )
+	{
+		this.maxCacheSizeInBytes = maxCacheSizeInBytes;
+	}
+
 	public static interface SliceLoader< T >
 	{
 		public RandomAccessibleInterval< T > load( String fn );
+
+		/**
+		 * Load the pixels of a slice file as a primitive {@code byte[]}
+		 * (unsigned 8-bit), {@code short[]} (unsigned 16-bit), or
+		 * {@code float[]} array, in flat iteration order.
+		 *
+		 * @return the pixel array, or {@code null} if this is not supported. In
+		 *         this case, {@link #load(String)} is used.
+		 */
+		public default Object loadPlane( final String fn )
+		{
+			return null;
+		}
 	}
 
 	public static class ArrayImgLoader< T extends RealType< T > & NativeType< T > > implements SliceLoader< T >
@@ -144,6 +212,12 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 		{
 			return ImageJFunctions.wrapFloat( new ImagePlus( fn ) );
 		}
+
+		@Override
+		public Object loadPlane( final String fn )
+		{
+			return new ImagePlus( fn ).getProcessor().getPixels();
+		}
 	}
 
 	public static class Gray16ImagePlusLoader implements SliceLoader< UnsignedShortType >
@@ -153,6 +227,12 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 		{
 			return ImageJFunctions.wrapShort( new ImagePlus( fn ) );
 		}
+
+		@Override
+		public Object loadPlane( final String fn )
+		{
+			return new ImagePlus( fn ).getProcessor().getPixels();
+		}
 	}
 
 	public static class Gray8ImagePlusLoader implements SliceLoader< UnsignedByteType >
@@ -162,6 +242,12 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 		{
 			return ImageJFunctions.wrapByte( new ImagePlus( fn ) );
 		}
+
+		@Override
+		public Object loadPlane( final String fn )
+		{
+			return new ImagePlus( fn ).getProcessor().getPixels();
+		}
 	}
 
 	@Override
@@ -183,19 +269,97 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 		public RandomAccessibleInterval< UnsignedShortType > getImage( final int timepointId, final ImgLoaderHint... hints )
 		{
 			final Dimensions dimensions = getImageSize( timepointId );
+			if ( lazy )
+				return createLazyImage( dimensions, timepointId );
+
 			final Img< UnsignedShortType > img = factory.create( dimensions, type );
+			final boolean planar = img instanceof PlanarImg;
 
-			for ( int z = 0; z < numSlices; ++z )
+			// decode slices in parallel, at most numThreads at a time, and
+			// copy each into its plane as soon as it is decoded
+			final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, numSlices ) ) );
+			try
 			{
-				final RandomAccessibleInterval< T > slice = sliceLoader.load( String.format( pattern, timepointId, channelId, z ) );
-
-				final Cursor< UnsignedShortType > d = Views.flatIterable( Views.hyperSlice( img, 2, z ) ).cursor();
-				for ( final UnsignedShortType t : Converters.convert( Views.flatIterable( slice ), converter, type ) )
-					d.next().set( t );
+				final ArrayList< Future< ? > > futures = new ArrayList<>( numSlices );
+				for ( int z = 0; z < numSlices; ++z )
+				{
+					final int slice = z;
+					@SuppressWarnings( "unchecked" )
+					final short[] plane = planar
+							? ( ( PlanarImg< UnsignedShortType, ShortArray > ) img ).getPlane( slice ).getCurrentStorageArray()
+							: null;
+					futures.add( executor.submit( () -> loadSlice( timepointId, slice, plane, Views.hyperSlice( img, 2, slice ) ) ) );
+				}
+				for ( final Future< ? > future : futures )
+					future.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+			finally
+			{
+				executor.shutdown();
 			}
 			return img;
 		}
 
+		/**
+		 * Create a cached cell image with one cell per slice. Cells are loaded
+		 * from the slice files on demand.
+		 */
+		private RandomAccessibleInterval< UnsignedShortType > createLazyImage( final Dimensions dimensions, final int timepointId )
+		{
+			final int w = ( int ) dimensions.dimension( 0 );
+			final int h = ( int ) dimensions.dimension( 1 );
+			final long planeSizeInBytes = ( long ) w * h * 2;
+			final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+					.cellDimensions( w, h, 1 )
+					.cacheType( CacheType.BOUNDED_SOFTREF )
+					.maxCacheSize( Math.max( 1, maxCacheSizeInBytes / planeSizeInBytes ) );
+			return new ReadOnlyCachedCellImgFactory( options ).create(
+					Intervals.dimensionsAsLongArray( dimensions ),
+					type,
+					cell -> {
+						final int z = ( int ) cell.min( 2 );
+						final short[] plane = ( short[] ) ( ( ArrayDataAccess< ? > ) cell.update( null ) ).getCurrentStorageArray();
+						loadSlice( timepointId, z, plane, Views.hyperSlice( cell, 2, z ) );
+					} );
+		}
+
+		/**
+		 * Load slice {@code z} into {@code plane} if possible, otherwise into
+		 * {@code target}.
+		 *
+		 * @param plane
+		 *            flat storage of the slice, or {@code null}.
+		 * @param target
+		 *            the slice.
+		 */
+		private void loadSlice( final int timepointId, final int z, final short[] plane, final RandomAccessibleInterval< UnsignedShortType > target )
+		{
+			final String fn = String.format( pattern, timepointId, channelId, z );
+			if ( plane != null )
+			{
+				final Object pixels = sliceLoader.loadPlane( fn );
+				if ( pixels != null )
+				{
+					ArrayConversions.scale( pixels, plane, sliceValueMin, sliceValueMax );
+					return;
+				}
+			}
+
+			final RandomAccessibleInterval< T > slice = sliceLoader.load( fn );
+			final Cursor< UnsignedShortType > d = Views.flatIterable( target ).cursor();
+			for ( final UnsignedShortType t : Converters.convert( Views.flatIterable( slice ), converter, type ) )
+				d.next().set( t );
+		}
+
 		@Override
 		public UnsignedShortType getImageType()
 		{
@@ -211,11 +375,20 @@ public class FusionImageLoader< T extends RealType< T > > implements ImgLoader
 		@Override
 		public Dimensions getImageSize( final int timepointId )
 		{
-			final RandomAccessibleInterval< T > slice = sliceLoader.load( String.format( pattern, timepointId, channelId, 0 ) );
-			return new FinalDimensions(
-					slice.dimension( 0 ),
-					slice.dimension( 1 ),
-					numSlices );
+			final String fn = String.format( pattern, timepointId, channelId, 0 );
+			try
+			{
+				final ImageHeaders.Header header = ImageHeaders.read( fn );
+				return new FinalDimensions( header.getWidth(), header.getHeight(), numSlices );
+			}
+			catch ( final IOException e )
+			{
+				final RandomAccessibleInterval< T > slice = sliceLoader.load( fn );
+				return new FinalDimensions(
+						slice.dimension( 0 ),
+						slice.dimension( 1 ),
+						numSlices );
+			}
 		}
 
 		@Override
@@ -31,18 +31,28 @@ import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.ViewSetup;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.meta.Axes;
 import net.imglib2.meta.AxisType;
 import net.imglib2.meta.ImgPlus;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
 import spimopener.SPIMExperiment;
 
 /**
  * This {@link ImgLoader} implementation uses Benjamin Schmid's
  * <a href="http://fiji.sc/javadoc/spimopener/package-summary.html">spimopener</a>
  * to load images in Jan Husiken's format.
+ * <p>
+ * Images are cell images with one cell per plane. Planes are read on demand,
+ * and kept in a bounded cache.
  *
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
@@ -51,12 +61,14 @@ public class HuiskenImageLoader implements BasicImgLoader
 {
 	private final File expFile;
 
-	private SPIMExperiment exp;
+	private volatile SPIMExperiment exp;
 
 	private boolean hasAlternatingIllumination;
 
 	private final HashMap< Integer, SetupLoader > setupIdToSetupImgLoader;
 
+	private long maxCacheSizeInBytes = Runtime.getRuntime().maxMemory() / 4;
+
 	public HuiskenImageLoader( final File file, final HashMap< Integer, ViewSetup > setups )
 	{
 		expFile = file;
@@ -66,13 +78,32 @@ public class HuiskenImageLoader implements BasicImgLoader
 			setupIdToSetupImgLoader.put( entry.getKey(), new SetupLoader( entry.getValue() ) );
 	}
 
-	private synchronized void ensureExpIsOpen()
+	/**
+	 * Set the approximate maximum number of bytes of planes to keep cached per
+	 * image. The default is a quarter of the maximum heap size.
+	 */
+	public void setMaxCacheSizeInBytes( final long maxCacheSizeInBytes )
 	{
-		if ( exp == null )
+		this.maxCacheSizeInBytes = maxCacheSizeInBytes;
+	}
+
+	private SPIMExperiment ensureExpIsOpen()
+	{
+		SPIMExperiment e = exp;
+		if ( e == null )
 		{
-			exp = new SPIMExperiment( expFile.getAbsolutePath() );
-			hasAlternatingIllumination = exp.d < ( exp.planeEnd + 1 - exp.planeStart );
+			synchronized ( this )
+			{
+				e = exp;
+				if ( e == null )
+				{
+					e = new SPIMExperiment( expFile.getAbsolutePath() );
+					hasAlternatingIllumination = e.d < ( e.planeEnd + 1 - e.planeStart );
+					exp = e;
+				}
+			}
 		}
+		return e;
 	}
 
 	final static private String basenameFormatString = "t%05d-a%03d-c%03d-i%01d";
@@ -82,6 +113,21 @@ public class HuiskenImageLoader implements BasicImgLoader
 		return String.format( basenameFormatString, timepoint, angle, channel, illumination );
 	}
 
+	/**
+	 * Get the size of the stacks that {@link SetupLoader#getImage} opens, from
+	 * the experiment metadata only.
+	 */
+	public static Dimensions getImageSize( final SPIMExperiment exp )
+	{
+		final int numPlanes = exp.planeEnd + 1 - exp.planeStart;
+		final boolean alternatingIllumination = exp.d < numPlanes;
+		// with alternating illumination, every other plane of [planeStart, planeEnd - 1] or [planeStart + 1, planeEnd]
+		final int depth = alternatingIllumination
+				? ( numPlanes - 2 ) / 2 + 1
+				: numPlanes;
+		return new FinalDimensions( exp.w, exp.h, depth );
+	}
+
 	@Override
 	public BasicSetupImgLoader< ? > getSetupImgLoader( final int setupId )
 	{
@@ -103,15 +149,21 @@ public class HuiskenImageLoader implements BasicImgLoader
 		@Override
 		public ImgPlus< UnsignedShortType > getImage( final int timepointId, final ImgLoaderHint... hints )
 		{
-			ensureExpIsOpen();
+			final SPIMExperiment exp = ensureExpIsOpen();
+			final Dimensions dimensions = getImageSize( exp );
+			final long planeSizeInBytes = 2L * exp.w * exp.h;
+			final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+					.cellDimensions( exp.w, exp.h, 1 )
+					.cacheType( CacheType.BOUNDED_SOFTREF )
+					.maxCacheSize( Math.max( 1, maxCacheSizeInBytes / planeSizeInBytes ) );
+			final CachedCellImg< UnsignedShortType, ? > img = new ReadOnlyCachedCellImgFactory( options ).create(
+					Intervals.dimensionsAsLongArray( dimensions ),
+					type,
+					cell -> loadPlane( exp, timepointId, cell ) );
 
 			final int channel = setup.getChannel().getId();
 			final int illumination = setup.getIllumination().getId();
 			final int angle = setup.getAngle().getId();
-
-			final ImagePlus imp = getImagePlus( timepointId );
-			final Img< UnsignedShortType > img = ImageJFunctions.wrapShort( imp );
-
 			final String name = getBasename( timepointId, angle, channel, illumination );
 
 			final AxisType[] axes = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
@@ -128,37 +180,34 @@ public class HuiskenImageLoader implements BasicImgLoader
 			return type;
 		}
 
-		private ImagePlus getImagePlus( final int timepointId )
+		/**
+		 * Read the plane of {@code cell}. With alternating illumination, plane
+		 * {@code k} of illumination {@code i} is experiment plane
+		 * {@code planeStart + i + 2k}.
+		 */
+		private void loadPlane( final SPIMExperiment exp, final int timepointId, final SingleCellArrayImg< UnsignedShortType, ? > cell )
 		{
 			final int channel = setup.getChannel().getId();
 			final int illumination = setup.getIllumination().getId();
 			final int angle = setup.getAngle().getId();
 
+			final int k = ( int ) cell.min( 2 );
+			final int z = hasAlternatingIllumination
+					? exp.planeStart + illumination + 2 * k
+					: exp.planeStart + k;
+
 			final int s = exp.sampleStart;
 			final int r = exp.regionStart;
 			final int f = exp.frameStart;
-			final int zMin = exp.planeStart;
-			final int zMax = exp.planeEnd;
 			final int xMin = 0;
 			final int xMax = exp.w - 1;
 			final int yMin = 0;
 			final int yMax = exp.h - 1;
 
-			ImagePlus imp;
-			if ( hasAlternatingIllumination )
-			{
-				final int zStep = 2;
-				if ( illumination == 0 )
-					imp = exp.openNotProjected( s, timepointId, timepointId, r, angle, channel, zMin, zMax - 1, zStep, f, f, yMin, yMax, xMin, xMax, SPIMExperiment.X, SPIMExperiment.Y, SPIMExperiment.Z, false );
-				else
-					imp = exp.openNotProjected( s, timepointId, timepointId, r, angle, channel, zMin + 1, zMax, zStep, f, f, yMin, yMax, xMin, xMax, SPIMExperiment.X, SPIMExperiment.Y, SPIMExperiment.Z, false );
-			}
-			else
-			{
-				imp = exp.openNotProjected( s, timepointId, timepointId, r, angle, channel, zMin, zMax, f, f, yMin, yMax, xMin, xMax, SPIMExperiment.X, SPIMExperiment.Y, SPIMExperiment.Z, false );
-			}
-
-			return imp;
+			final ImagePlus imp = exp.openNotProjected( s, timepointId, timepointId, r, angle, channel, z, z, f, f, yMin, yMax, xMin, xMax, SPIMExperiment.X, SPIMExperiment.Y, SPIMExperiment.Z, false );
+			final short[] pixels = ( short[] ) imp.getStack().getPixels( 1 );
+			final short[] data = ( short[] ) ( ( ArrayDataAccess< ? > ) cell.update( null ) ).getCurrentStorageArray();
+			System.arraycopy( pixels, 0, data, 0, data.length );
 		}
 	}
 }
@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.imgloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.imagej.axis.Axes;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+
+import org.scijava.io.location.FileLocation;
+
+import bdv.img.tiff.TiffPlanes;
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.Metadata;
+import io.scif.SCIFIO;
+import io.scif.util.FormatTools;
+
+/**
+ * Reads image dimensions and pixel types from file headers, without reading
+ * pixel data. Uncompressed TIFF files are probed with {@link TiffPlanes}, all
+ * other files with SCIFIO. Results are cached by absolute path, and are
+ * re-read if the file's modification time or length changed.
+ */
+public final class ImageHeaders
+{
+	private ImageHeaders()
+	{}
+
+	public static class Header
+	{
+		private final long width;
+
+		private final long height;
+
+		private final long depth;
+
+		private final int bitsPerSample;
+
+		private final boolean isFloat;
+
+		public Header( final long width, final long height, final long depth, final int bitsPerSample, final boolean isFloat )
+		{
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			this.bitsPerSample = bitsPerSample;
+			this.isFloat = isFloat;
+		}
+
+		public long getWidth()
+		{
+			return width;
+		}
+
+		public long getHeight()
+		{
+			return height;
+		}
+
+		/**
+		 * @return the number of z slices.
+		 */
+		public long getDepth()
+		{
+			return depth;
+		}
+
+		public int getBitsPerSample()
+		{
+			return bitsPerSample;
+		}
+
+		public boolean isFloat()
+		{
+			return isFloat;
+		}
+
+		/**
+		 * @return width, height, and depth.
+		 */
+		public Dimensions getDimensions()
+		{
+			return new FinalDimensions( width, height, depth );
+		}
+	}
+
+	private static class Entry
+	{
+		final long lastModified;
+
+		final long length;
+
+		final Header header;
+
+		Entry( final long lastModified, final long length, final Header header )
+		{
+			this.lastModified = lastModified;
+			this.length = length;
+			this.header = header;
+		}
+	}
+
+	private static final ConcurrentHashMap< String, Entry > cache = new ConcurrentHashMap<>();
+
+	private static SCIFIO scifio;
+
+	public static Header read( final String path ) throws IOException
+	{
+		return read( new File( path ) );
+	}
+
+	/**
+	 * Get the header of {@code file}, from the cache if the file is unchanged
+	 * since it was last read.
+	 *
+	 * @throws IOException
+	 *             if the file does not exist or its header cannot be read.
+	 */
+	public static Header read( final File file ) throws IOException
+	{
+		final String key = file.getAbsolutePath();
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		if ( lastModified == 0 && !file.isFile() )
+			throw new IOException( file + " does not exist" );
+
+		final Entry entry = cache.get( key );
+		if ( entry != null && entry.lastModified == lastModified && entry.length == length )
+			return entry.header;
+
+		final Header header = probe( file );
+		cache.put( key, new Entry( lastModified, length, header ) );
+		return header;
+	}
+
+	/**
+	 * Remove all cached headers.
+	 */
+	public static void clear()
+	{
+		cache.clear();
+	}
+
+	private static Header probe( final File file ) throws IOException
+	{
+		try
+		{
+			final TiffPlanes tiff = TiffPlanes.readHeader( file );
+			return new Header( tiff.getWidth(), tiff.getHeight(), getDepth( tiff ), tiff.getBitsPerSample(), tiff.isFloat() );
+		}
+		catch ( final IOException e )
+		{
+			// not a TIFF we can parse, try SCIFIO
+		}
+
+		try
+		{
+			final Metadata metadata = getScifio().initializer().parseMetadata( new FileLocation( file ) );
+			try
+			{
+				final ImageMetadata meta = metadata.get( 0 );
+				final int pixelType = meta.getPixelType();
+				return new Header(
+						meta.getAxisLength( Axes.X ),
+						meta.getAxisLength( Axes.Y ),
+						meta.getAxisLength( Axes.Z ),
+						FormatTools.getBitsPerPixel( pixelType ),
+						FormatTools.isFloatingPoint( pixelType ) );
+			}
+			finally
+			{
+				metadata.close();
+			}
+		}
+		catch ( final FormatException e )
+		{
+			throw new IOException( e );
+		}
+	}
+
+	/**
+	 * The number of z slices of a TIFF. For ImageJ hyperstacks, planes are
+	 * interleaved channels, slices, and frames, so the number of slices is
+	 * read from the ImageJ ImageDescription. Otherwise every plane is a slice.
+	 */
+	private static long getDepth( final TiffPlanes tiff )
+	{
+		final String description = tiff.getDescription();
+		if ( description == null || !description.startsWith( "ImageJ" ) )
+			return tiff.numPlanes();
+		final int channels = getImageJProperty( description, IMAGEJ_CHANNELS, 1 );
+		final int frames = getImageJProperty( description, IMAGEJ_FRAMES, 1 );
+		if ( channels <= 1 && frames <= 1 )
+			return tiff.numPlanes();
+		return getImageJProperty( description, IMAGEJ_SLICES, 1 );
+	}
+
+	private static final Pattern IMAGEJ_CHANNELS = Pattern.compile( "(?m)^channels=(\\d+)" );
+
+	private static final Pattern IMAGEJ_SLICES = Pattern.compile( "(?m)^slices=(\\d+)" );
+
+	private static final Pattern IMAGEJ_FRAMES = Pattern.compile( "(?m)^frames=(\\d+)" );
+
+	private static int getImageJProperty( final String description, final Pattern pattern, final int defaultValue )
+	{
+		final Matcher matcher = pattern.matcher( description );
+		return matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : defaultValue;
+	}
+
+	private static synchronized SCIFIO getScifio()
+	{
+		if ( scifio == null )
+			scifio = new SCIFIO( ScifioContext.get() );
+		return scifio;
+	}
+}
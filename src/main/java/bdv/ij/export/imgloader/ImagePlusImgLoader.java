@@ -22,7 +22,11 @@
 package bdv.ij.export.imgloader;
 
 import java.util.ArrayList;
+import java.util.function.Function;
 
+import bdv.ij.export.stats.IntensityHistogram;
+import bdv.ij.export.stats.IntensityStatistics;
+import bdv.ij.util.PluginHelper;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.imagestack.ImageStackImageLoader;
 import bdv.img.virtualstack.VirtualStackImageLoader;
@@ -32,13 +36,12 @@ import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.converter.RealUnsignedShortConverter;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.Type;
+import net.imglib2.type.PrimitiveType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -48,7 +51,8 @@ import net.imglib2.type.numeric.real.FloatType;
  * {@link ImagePlus}. It is used for exporting {@link ImagePlus} to hdf5.
  *
  * Internally it relies on {@link VirtualStackImageLoader} to be able to handle
- * large virtual stacks.
+ * large virtual stacks. Planes of virtual stacks are kept in a cache bounded to
+ * a quarter of the maximum heap size, that is shared by all views.
  *
  * When loading images ({@link #getSetupImgLoader(int)},
  * {@link BasicSetupImgLoader#getImage(int, ImgLoaderHint...)}) the provided
@@ -58,13 +62,19 @@ import net.imglib2.type.numeric.real.FloatType;
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
 @Deprecated
-public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgLoader< T >
+public class ImagePlusImgLoader< T extends NativeType< T > > implements TypedBasicImgLoader< T >
 {
 	public static enum MinMaxOption
 	{
 		SET,
 		COMPUTE,
-		TAKE_FROM_IMAGEPROCESSOR
+		TAKE_FROM_IMAGEPROCESSOR,
+		/**
+		 * Compute the range from the intensity histogram, clipping the given
+		 * lower and upper percentiles. The {@code min} and {@code max}
+		 * arguments are the percentiles, e.g., {@code 0.1} and {@code 99.9}.
+		 */
+		PERCENTILE
 	}
 
 	public static ImagePlusImgLoader< UnsignedShortType > createGray8( final ImagePlus imp, final MinMaxOption minMaxOption, final double min, final double max )
@@ -113,6 +123,16 @@ public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgL
 
 	protected VolatileGlobalCellCache loadercache;
 
+	/**
+	 * Bounded cache of (source or converted) planes, or {@code null}.
+	 */
+	protected final ImagePlusPlaneCache planeCache;
+
+	/**
+	 * Whether {@link #planeCache} holds planes converted to {@code T}.
+	 */
+	protected final boolean convertsPlanes;
+
 	protected final ArrayList< SetupImgLoader< ? > > setupImgLoaders;
 
 	protected double impMin;
@@ -126,6 +146,20 @@ public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgL
 	public interface ConverterFactory< T >
 	{
 		public < S extends RealType< S > & NativeType< S > > Converter< S, T > create( double min, double max );
+
+		/**
+		 * Create a function that converts whole {@code byte[]},
+		 * {@code short[]}, or {@code float[]} planes to the primitive array
+		 * type backing {@code T}, equivalent to
+		 * {@link #create(double, double)}.
+		 *
+		 * @return the plane converter, or {@code null} if there is none, in
+		 *         which case pixels are converted one by one.
+		 */
+		public default Function< Object, Object > createPlaneConverter( final double min, final double max )
+		{
+			return null;
+		}
 	}
 
 	static class RealUnsignedShortConverterFactory implements ConverterFactory< UnsignedShortType >
@@ -135,6 +169,12 @@ public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgL
 		{
 			return new RealUnsignedShortConverter<>( min, max );
 		}
+
+		@Override
+		public Function< Object, Object > createPlaneConverter( final double min, final double max )
+		{
+			return pixels -> ArrayConversions.toUnsignedShort( pixels, min, max );
+		}
 	}
 
 	static class RealFloatConverterFactory implements ConverterFactory< FloatType >
@@ -144,6 +184,12 @@ public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgL
 		{
 			return new RealFloatConverter<>();
 		}
+
+		@Override
+		public Function< Object, Object > createPlaneConverter( final double min, final double max )
+		{
+			return ArrayConversions::toFloat;
+		}
 	}
 
 	protected < S extends RealType< S > & NativeType< S > > ImagePlusImgLoader( final ImagePlus imp,
@@ -162,30 +208,28 @@ public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgL
 		final int numSetups = imp.getNChannels();
 		setupImgLoaders = new ArrayList<>();
 		for ( int setupId = 0; setupId < numSetups; ++setupId )
-			setupImgLoaders.add( new SetupImgLoader<>( loader.getSetupImgLoader( setupId ) ) );
+			setupImgLoaders.add( new SetupImgLoader<>( setupId, loader.getSetupImgLoader( setupId ) ) );
 
-		if ( loader instanceof VirtualStackImageLoader )
+		final boolean isVirtual = loader instanceof VirtualStackImageLoader;
+		if ( isVirtual )
 			this.loadercache = ( ( VirtualStackImageLoader< ?, ?, ? > ) loader ).getCacheControl();
 		else
 			this.loadercache = null;
 
-		if ( minMaxOption == MinMaxOption.COMPUTE )
+		if ( minMaxOption == MinMaxOption.COMPUTE || minMaxOption == MinMaxOption.PERCENTILE )
 		{
-			impMin = Double.POSITIVE_INFINITY;
-			impMax = Double.NEGATIVE_INFINITY;
-			final S minT = loader.getSetupImgLoader( 0 ).getImageType().createVariable();
-			final S maxT = minT.createVariable();
-			final int numTimepoints = imp.getNFrames();
-			for ( int t = 0; t < numTimepoints; t++ )
-				for ( int s = 0; s < numSetups; ++s )
-				{
-					ComputeMinMax.computeMinMax( loader.getSetupImgLoader( s ).getImage( t ), minT, maxT );
-					impMin = Math.min( minT.getRealDouble(), impMin );
-					impMax = Math.max( maxT.getRealDouble(), impMax );
-					if ( loadercache != null )
-						loadercache.clearCache();
-				}
-			System.out.println( "COMPUTE" );
+			final IntensityHistogram histogram = IntensityStatistics.compute( imp, PluginHelper.numThreads() ).getHistogram();
+			if ( minMaxOption == MinMaxOption.COMPUTE )
+			{
+				impMin = histogram.getMin();
+				impMax = histogram.getMax();
+			}
+			else
+			{
+				impMin = histogram.getPercentile( min );
+				impMax = histogram.getPercentile( max );
+			}
+			System.out.println( minMaxOption );
 			System.out.println( impMin + "  " + impMax );
 		}
 		else if ( minMaxOption == MinMaxOption.TAKE_FROM_IMAGEPROCESSOR )
@@ -202,33 +246,63 @@ public class ImagePlusImgLoader< T extends Type< T > > implements TypedBasicImgL
 			System.out.println( "SET" );
 			System.out.println( impMin + "  " + impMax );
 		}
+
+		// convert whole planes in bulk, if possible
+		final long maxCacheSizeInBytes = Runtime.getRuntime().maxMemory() / 4;
+		final Function< Object, Object > planeConverter = converterFactory.createPlaneConverter( impMin, impMax );
+		convertsPlanes = planeConverter != null;
+		if ( convertsPlanes )
+			planeCache = new ImagePlusPlaneCache( imp, planeConverter, getByteCount( type.getNativeTypeFactory().getPrimitiveType() ), maxCacheSizeInBytes );
+		else if ( isVirtual )
+			planeCache = new ImagePlusPlaneCache( imp, pixels -> pixels, imp.getBytesPerPixel(), maxCacheSizeInBytes );
+		else
+			planeCache = null;
+	}
+
+	private static int getByteCount( final PrimitiveType primitiveType )
+	{
+		switch ( primitiveType )
+		{
+		case BYTE:
+			return 1;
+		case SHORT:
+			return 2;
+		case INT:
+		case FLOAT:
+		default:
+			return 4;
+		}
 	}
 
 	public void clearCache()
 	{
+		if ( planeCache != null )
+			planeCache.invalidateAll();
 		if ( loadercache != null )
-		{
 			loadercache.clearCache();
-			System.runFinalization();
-			System.gc();
-		}
 	}
 
 	public class SetupImgLoader< S extends RealType< S > & NativeType< S > > implements BasicSetupImgLoader< T >
 	{
+		final int setupId;
+
 		final BasicSetupImgLoader< S > loader;
 
-		protected SetupImgLoader( final BasicSetupImgLoader< S > loader )
+		protected SetupImgLoader( final int setupId, final BasicSetupImgLoader< S > loader )
 		{
+			this.setupId = setupId;
 			this.loader = loader;
 		}
 
 		@Override
 		public RandomAccessibleInterval< T > getImage( final int timepointId, final ImgLoaderHint... hints )
 		{
-			if ( loadercache != null )
-				loadercache.clearCache();
-			final RandomAccessibleInterval< S > img = loader.getImage( timepointId );
+			if ( convertsPlanes )
+				return planeCache.getImage( setupId, timepointId, type.createVariable() );
+
+			final RandomAccessibleInterval< S > img = planeCache != null
+					? planeCache.getImage( setupId, timepointId, loader.getImageType() )
+					: loader.getImage( timepointId );
 			return Converters.convert( img, converterFactory.< S >create( impMin, impMax ), type.createVariable() );
 		}
 
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.imgloader;
+
+import java.util.function.Function;
+
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.ref.BoundedSoftRefLoaderCache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.util.KeyBimap;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.NativeTypeFactory;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Planes of a (virtual) {@link ImagePlus} in a cache that is bounded by a
+ * byte budget. Planes beyond the budget are only weakly referenced, so they
+ * are reclaimed by the garbage collector without having to force collections
+ * or clear the cache.
+ * <p>
+ * All views ({@code setup}, {@code timepoint}) share the same cache. Cells
+ * are whole planes, backed by the pixel arrays of the {@link ImageStack}
+ * after an optional bulk conversion (see {@link ArrayConversions}).
+ */
+class ImagePlusPlaneCache
+{
+	private final ImagePlus imp;
+
+	private final CellGrid grid;
+
+	private final Function< Object, Object > convertPlane;
+
+	private final BoundedSoftRefLoaderCache< Key, Cell< ArrayDataAccess< ? > > > cache;
+
+	/**
+	 * @param imp
+	 *            the image.
+	 * @param convertPlane
+	 *            converts the pixel array of a plane to the {@code byte[]},
+	 *            {@code short[]}, or {@code float[]} array to cache.
+	 * @param bytesPerCachedPixel
+	 *            pixel size of the converted planes.
+	 * @param maxCacheSizeInBytes
+	 *            how many bytes of planes to keep softly referenced.
+	 */
+	public ImagePlusPlaneCache( final ImagePlus imp, final Function< Object, Object > convertPlane, final int bytesPerCachedPixel, final long maxCacheSizeInBytes )
+	{
+		this.imp = imp;
+		this.convertPlane = convertPlane;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		grid = new CellGrid( new long[] { w, h, imp.getNSlices() }, new int[] { w, h, 1 } );
+		final long planeSizeInBytes = ( long ) w * h * bytesPerCachedPixel;
+		final int maxNumPlanes = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, maxCacheSizeInBytes / planeSizeInBytes ) );
+		cache = new BoundedSoftRefLoaderCache<>( maxNumPlanes );
+	}
+
+	/**
+	 * Get the view ({@code setup}, {@code timepoint}) as a {@link CachedCellImg}
+	 * of the given type, which must match the type of the converted planes.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public < S extends NativeType< S > > CachedCellImg< S, ? > getImage( final int setup, final int timepoint, final S type )
+	{
+		final Cache< Long, Cell< ArrayDataAccess< ? > > > viewCache = cache
+				.mapKeys( KeyBimap.< Long, Key >build(
+						index -> new Key( setup, timepoint, index ),
+						key -> key.setup == setup && key.timepoint == timepoint ? key.index : null ) )
+				.withLoader( index -> loadPlane( setup, timepoint, index ) );
+		final CachedCellImg< S, ArrayDataAccess< ? > > img = new CachedCellImg( grid, type.getEntitiesPerPixel(), viewCache, null );
+		final NativeTypeFactory< S, ? super ArrayDataAccess< ? > > typeFactory = ( NativeTypeFactory ) type.getNativeTypeFactory();
+		img.setLinkedType( typeFactory.createLinkedType( img ) );
+		return img;
+	}
+
+	/**
+	 * Remove all planes from the cache.
+	 */
+	public void invalidateAll()
+	{
+		cache.invalidateAll();
+	}
+
+	private Cell< ArrayDataAccess< ? > > loadPlane( final int setup, final int timepoint, final long index )
+	{
+		final long[] cellMin = new long[ 3 ];
+		final int[] cellDims = new int[ 3 ];
+		grid.getCellDimensions( index, cellMin, cellDims );
+		final int stackIndex = imp.getStackIndex( setup + 1, ( int ) cellMin[ 2 ] + 1, timepoint + 1 );
+		final Object pixels = convertPlane.apply( imp.getStack().getPixels( stackIndex ) );
+		final ArrayDataAccess< ? > data;
+		if ( pixels instanceof byte[] )
+			data = new ByteArray( ( byte[] ) pixels );
+		else if ( pixels instanceof short[] )
+			data = new ShortArray( ( short[] ) pixels );
+		else if ( pixels instanceof float[] )
+			data = new FloatArray( ( float[] ) pixels );
+		else
+			throw new IllegalArgumentException( "Only 8, 16, 32-bit images are supported" );
+		return new Cell<>( cellDims, cellMin, data );
+	}
+
+	private static final class Key
+	{
+		final int setup;
+
+		final int timepoint;
+
+		final long index;
+
+		Key( final int setup, final int timepoint, final long index )
+		{
+			this.setup = setup;
+			this.timepoint = timepoint;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return setup == other.setup && timepoint == other.timepoint && index == other.index;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = Long.hashCode( index );
+			result = 31 * result + setup;
+			result = 31 * result + timepoint;
+			return result;
+		}
+	}
+}
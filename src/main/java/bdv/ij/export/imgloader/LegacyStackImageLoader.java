@@ -21,14 +21,23 @@
  */
 package bdv.ij.export.imgloader;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.scijava.Context;
-import org.scijava.app.AppService;
-import org.scijava.app.StatusService;
-
+import bdv.ij.util.PluginHelper;
 import ij.ImagePlus;
-import io.scif.SCIFIOService;
+import ij.ImageStack;
 import io.scif.img.ImgIOException;
 import io.scif.img.ImgOpener;
 import mpicbg.spim.data.legacy.LegacyBasicImgLoader;
@@ -36,13 +45,12 @@ import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.Converter;
-import net.imglib2.converter.Converters;
-import net.imglib2.img.ImgView;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.meta.ImgPlus;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 
@@ -58,7 +66,17 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 @Deprecated
 public class LegacyStackImageLoader implements LegacyBasicImgLoader< UnsignedShortType >
 {
-	private final ImgOpener opener;
+	/**
+	 * Decodes views for all loader instances. Idle threads time out, so the
+	 * pool does not hold threads between exports.
+	 */
+	private static ThreadPoolExecutor executor;
+
+	/**
+	 * Openers that are not currently in use. All openers share one SCIFIO
+	 * context, and are created on demand.
+	 */
+	private final ConcurrentLinkedQueue< ImgOpener > openers = new ConcurrentLinkedQueue<>();
 
 	private final ArrayImgFactory< UnsignedShortType > factory;
 
@@ -66,21 +84,196 @@ public class LegacyStackImageLoader implements LegacyBasicImgLoader< UnsignedSho
 
 	final HashMap< ViewId, String > filenames;
 
-	private boolean useImageJOpener;
+	private volatile boolean useImageJOpener;
+
+	/**
+	 * All views, ordered by timepoint and setup, which is the order in which
+	 * they are usually requested.
+	 */
+	private final List< ViewId > viewOrder;
+
+	private final HashMap< ViewId, Integer > viewIndex;
+
+	/**
+	 * Views that are being loaded, or loaded but not yet requested.
+	 */
+	private final HashMap< ViewId, Future< RandomAccessibleInterval< UnsignedShortType > > > pending = new HashMap<>();
+
+	/**
+	 * The index of the view last requested by each consumer thread. Threads
+	 * that have terminated are removed automatically.
+	 */
+	private final WeakHashMap< Thread, Integer > positions = new WeakHashMap<>();
+
+	private int prefetchWindow = -1;
 
 	public LegacyStackImageLoader( final HashMap< ViewId, String > filenames, final boolean useImageJOpener )
 	{
 		this.filenames = filenames;
 		this.useImageJOpener = useImageJOpener;
-		opener = useImageJOpener ? null : new ImgOpener( new Context( SCIFIOService.class, AppService.class, StatusService.class ) );
 		factory = new ArrayImgFactory<>();
 		type = new UnsignedShortType();
+
+		viewOrder = new ArrayList<>( filenames.keySet() );
+		viewOrder.sort( null );
+		viewIndex = new HashMap<>();
+		for ( int i = 0; i < viewOrder.size(); ++i )
+			viewIndex.put( viewOrder.get( i ), i );
 	}
 
+	/**
+	 * Load the requested view. The views following it (in timepoint, setup
+	 * order) are decoded concurrently in the background, as many as fit into
+	 * a quarter of the heap but at most one per thread. If several threads
+	 * request views concurrently (for example when partitions are written in
+	 * parallel), each thread gets its own share of that window, and
+	 * prefetched views are only dropped once no thread can still reach them.
+	 */
 	@Override
 	public RandomAccessibleInterval< UnsignedShortType > getImage( final ViewId view )
+	{
+		final Future< RandomAccessibleInterval< UnsignedShortType > > future;
+		synchronized ( pending )
+		{
+			final Future< RandomAccessibleInterval< UnsignedShortType > > prefetched = pending.remove( view );
+			future = prefetched != null ? prefetched : submit( view );
+
+			final Integer index = viewIndex.get( view );
+			if ( index != null )
+			{
+				positions.put( Thread.currentThread(), index );
+				final int window = getPrefetchWindow() / positions.size();
+
+				// drop prefetched views that are not ahead of any consumer
+				final Iterator< Map.Entry< ViewId, Future< RandomAccessibleInterval< UnsignedShortType > > > > it = pending.entrySet().iterator();
+				while ( it.hasNext() )
+				{
+					final Map.Entry< ViewId, Future< RandomAccessibleInterval< UnsignedShortType > > > entry = it.next();
+					if ( !isAhead( viewIndex.get( entry.getKey() ), window ) )
+					{
+						entry.getValue().cancel( false );
+						it.remove();
+					}
+				}
+
+				for ( int i = index + 1; i <= index + window && i < viewOrder.size(); ++i )
+				{
+					final ViewId next = viewOrder.get( i );
+					if ( !pending.containsKey( next ) )
+						pending.put( next, submit( next ) );
+				}
+			}
+		}
+
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			throw cause instanceof RuntimeException ? ( RuntimeException ) cause : new RuntimeException( cause );
+		}
+	}
+
+	/**
+	 * Drop all prefetched views. Call this when done reading from this loader:
+	 * views prefetched for a consumer that never requests them are otherwise
+	 * kept as long as the loader. The loader remains usable.
+	 */
+	public void close()
+	{
+		synchronized ( pending )
+		{
+			for ( final Future< RandomAccessibleInterval< UnsignedShortType > > future : pending.values() )
+				future.cancel( false );
+			pending.clear();
+			positions.clear();
+		}
+	}
+
+	/**
+	 * Whether view {@code i} lies within {@code window} views after the last
+	 * view requested by any consumer.
+	 */
+	private boolean isAhead( final int i, final int window )
+	{
+		for ( final int position : positions.values() )
+			if ( i > position && i <= position + window )
+				return true;
+		return false;
+	}
+
+	private Future< RandomAccessibleInterval< UnsignedShortType > > submit( final ViewId view )
 	{
 		final String fn = filenames.get( view );
+		return getExecutor().submit( () -> load( fn ) );
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor()
+	{
+		final int numThreads = PluginHelper.numThreads();
+		if ( executor == null )
+		{
+			executor = new ThreadPoolExecutor( numThreads, numThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				final Thread thread = new Thread( r, "LegacyStackImageLoader" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			executor.allowCoreThreadTimeOut( true );
+		}
+		else if ( executor.getMaximumPoolSize() != numThreads )
+		{
+			// numThreads is a user setting and may change between exports
+			if ( numThreads > executor.getMaximumPoolSize() )
+			{
+				executor.setMaximumPoolSize( numThreads );
+				executor.setCorePoolSize( numThreads );
+			}
+			else
+			{
+				executor.setCorePoolSize( numThreads );
+				executor.setMaximumPoolSize( numThreads );
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Number of views to decode ahead of the requested one. Estimated from the
+	 * header of the first file, so that prefetched views fit into a quarter
+	 * of the heap.
+	 */
+	private int getPrefetchWindow()
+	{
+		if ( prefetchWindow < 0 )
+		{
+			prefetchWindow = 0;
+			if ( !viewOrder.isEmpty() )
+			{
+				try
+				{
+					final ImageHeaders.Header header = ImageHeaders.read( filenames.get( viewOrder.get( 0 ) ) );
+					final long viewSizeInBytes = 2 * header.getWidth() * header.getHeight() * header.getDepth();
+					final long maxViews = Runtime.getRuntime().maxMemory() / 4 / Math.max( 1, viewSizeInBytes );
+					prefetchWindow = ( int ) Math.min( maxViews, PluginHelper.numThreads() - 1 );
+				}
+				catch ( final IOException e )
+				{
+					// size unknown, don't prefetch
+				}
+			}
+		}
+		return prefetchWindow;
+	}
+
+	private RandomAccessibleInterval< UnsignedShortType > load( final String fn )
+	{
 		if ( useImageJOpener )
 		{
 			final ImagePlus imp = new ImagePlus( fn );
@@ -88,25 +281,20 @@ public class LegacyStackImageLoader implements LegacyBasicImgLoader< UnsignedSho
 				return new ImgPlus<>( ImageJFunctions.wrapShort( imp ) );
 			else if ( imp.getType() == ImagePlus.GRAY8 )
 			{
-				System.out.println( "wrapping" );
-				return new ImgPlus<>(
-					new ImgView<>(
-							Converters.convert(
-									( RandomAccessibleInterval<UnsignedByteType> ) ImageJFunctions.wrapByte( imp ),
-									new Converter< UnsignedByteType, UnsignedShortType >() {
-										@Override
-										public void convert( final UnsignedByteType input, final UnsignedShortType output )
-										{
-											output.set( input.get() );
-										}
-									},
-									new UnsignedShortType()
-							), null ) );
+				final ImageStack stack = imp.getStack();
+				final int n = stack.getSize();
+				final PlanarImg< UnsignedShortType, ShortArray > img = PlanarImgs.unsignedShorts( imp.getWidth(), imp.getHeight(), n );
+				for ( int z = 0; z < n; ++z )
+					ArrayConversions.copy( ( byte[] ) stack.getPixels( z + 1 ), img.getPlane( z ).getCurrentStorageArray() );
+				return img;
 			}
 			else
 				useImageJOpener = false;
 		}
 
+		ImgOpener opener = openers.poll();
+		if ( opener == null )
+			opener = new ImgOpener( ScifioContext.get() );
 		try
 		{
 			return opener.openImg( fn, factory, type );
@@ -115,6 +303,10 @@ public class LegacyStackImageLoader implements LegacyBasicImgLoader< UnsignedSho
 		{
 			throw new RuntimeException( e );
 		}
+		finally
+		{
+			openers.offer( opener );
+		}
 	}
 
 	@Override
@@ -0,0 +1,47 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.imgloader;
+
+import org.scijava.Context;
+import org.scijava.app.AppService;
+import org.scijava.app.StatusService;
+
+import io.scif.SCIFIOService;
+
+/**
+ * The SCIFIO {@link Context} shared by the readers in this package. It is
+ * created on first use and lives as long as the class.
+ */
+final class ScifioContext
+{
+	private ScifioContext()
+	{}
+
+	private static Context context;
+
+	static synchronized Context get()
+	{
+		if ( context == null )
+			context = new Context( SCIFIOService.class, AppService.class, StatusService.class );
+		return context;
+	}
+}
@@ -42,8 +42,24 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 @Deprecated
 public class StackImageLoader extends LegacyBasicImgLoaderWrapper< UnsignedShortType, LegacyStackImageLoader >
 {
+	private final LegacyStackImageLoader loader;
+
 	public StackImageLoader( final HashMap< ViewId, String > filenames, final boolean useImageJOpener )
 	{
-		super( new LegacyStackImageLoader( filenames, useImageJOpener ) );
+		this( new LegacyStackImageLoader( filenames, useImageJOpener ) );
+	}
+
+	private StackImageLoader( final LegacyStackImageLoader loader )
+	{
+		super( loader );
+		this.loader = loader;
+	}
+
+	/**
+	 * Drop all prefetched views (see {@link LegacyStackImageLoader#close()}).
+	 */
+	public void close()
+	{
+		loader.close();
 	}
 }
@@ -0,0 +1,411 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.n5;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * Per-block minimum, maximum, and mean of one resolution level of an exported
+ * view.
+ * <p>
+ * The index is stored next to the image data as a {@link DataType#FLOAT64}
+ * dataset (see {@link #getPathName(int, int, int)}) of dimensions
+ * {@code [3, gridX, gridY, gridZ]}, where the first dimension holds min, max,
+ * and mean of the image block at that grid position. It allows to answer
+ * questions like "which blocks contain values above a threshold" without
+ * reading the image data.
+ */
+public class BlockIndex
+{
+	public static final String CHANNELS_KEY = "channels";
+
+	public static final String IMAGE_BLOCK_SIZE_KEY = "imageBlockSize";
+
+	private static final String[] CHANNELS = { "min", "max", "mean" };
+
+	/**
+	 * Size of the index blocks along the grid dimensions.
+	 */
+	private static final int INDEX_BLOCK_SIZE = 64;
+
+	private final long[] gridSize;
+
+	private final int[] imageBlockSize;
+
+	private final boolean unsigned;
+
+	private final double[] min;
+
+	private final double[] max;
+
+	private final double[] mean;
+
+	/**
+	 * Create an empty index for an image of the given dimensions and block
+	 * size.
+	 *
+	 * @param unsigned
+	 *            whether the integer block data passed to
+	 *            {@link #record(long[], Object)} is unsigned.
+	 */
+	public BlockIndex( final long[] imageDimensions, final int[] imageBlockSize, final boolean unsigned )
+	{
+		final int n = imageDimensions.length;
+		this.gridSize = new long[ n ];
+		this.imageBlockSize = imageBlockSize.clone();
+		this.unsigned = unsigned;
+		long numBlocks = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			gridSize[ d ] = ( imageDimensions[ d ] + imageBlockSize[ d ] - 1 ) / imageBlockSize[ d ];
+			numBlocks *= gridSize[ d ];
+		}
+		if ( numBlocks > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "too many blocks: " + numBlocks );
+		min = new double[ ( int ) numBlocks ];
+		max = new double[ ( int ) numBlocks ];
+		mean = new double[ ( int ) numBlocks ];
+	}
+
+	private BlockIndex( final long[] gridSize, final int[] imageBlockSize, final double[] min, final double[] max, final double[] mean )
+	{
+		this.gridSize = gridSize;
+		this.imageBlockSize = imageBlockSize;
+		this.unsigned = false;
+		this.min = min;
+		this.max = max;
+		this.mean = mean;
+	}
+
+	/**
+	 * Path of the index dataset of the given view and level.
+	 */
+	public static String getPathName( final int setupId, final int timepointId, final int level )
+	{
+		return String.format( "setup%d/timepoint%d/blockIndex/s%d", setupId, timepointId, level );
+	}
+
+	public long[] getGridSize()
+	{
+		return gridSize.clone();
+	}
+
+	public int[] getImageBlockSize()
+	{
+		return imageBlockSize.clone();
+	}
+
+	/**
+	 * Record the statistics of the image block at {@code gridPosition}.
+	 * Different blocks may be recorded concurrently.
+	 *
+	 * @param data
+	 *            primitive array of the block data.
+	 */
+	public void record( final long[] gridPosition, final Object data )
+	{
+		final int i = index( gridPosition );
+		double mi = Double.POSITIVE_INFINITY;
+		double ma = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		int count = 0;
+		if ( data instanceof byte[] )
+		{
+			for ( final byte b : ( byte[] ) data )
+			{
+				final double v = unsigned ? b & 0xff : b;
+				mi = Math.min( mi, v );
+				ma = Math.max( ma, v );
+				sum += v;
+			}
+			count = ( ( byte[] ) data ).length;
+		}
+		else if ( data instanceof short[] )
+		{
+			for ( final short s : ( short[] ) data )
+			{
+				final double v = unsigned ? s & 0xffff : s;
+				mi = Math.min( mi, v );
+				ma = Math.max( ma, v );
+				sum += v;
+			}
+			count = ( ( short[] ) data ).length;
+		}
+		else if ( data instanceof int[] )
+		{
+			for ( final int s : ( int[] ) data )
+			{
+				final double v = unsigned ? s & 0xffffffffL : s;
+				mi = Math.min( mi, v );
+				ma = Math.max( ma, v );
+				sum += v;
+			}
+			count = ( ( int[] ) data ).length;
+		}
+		else if ( data instanceof long[] )
+		{
+			for ( final long s : ( long[] ) data )
+			{
+				final double v = unsigned && s < 0 ? s + 0x1p64 : s;
+				mi = Math.min( mi, v );
+				ma = Math.max( ma, v );
+				sum += v;
+			}
+			count = ( ( long[] ) data ).length;
+		}
+		else if ( data instanceof float[] )
+		{
+			for ( final float s : ( float[] ) data )
+			{
+				final double v = s;
+				mi = Math.min( mi, v );
+				ma = Math.max( ma, v );
+				sum += v;
+			}
+			count = ( ( float[] ) data ).length;
+		}
+		else if ( data instanceof double[] )
+		{
+			for ( final double v : ( double[] ) data )
+			{
+				mi = Math.min( mi, v );
+				ma = Math.max( ma, v );
+				sum += v;
+			}
+			count = ( ( double[] ) data ).length;
+		}
+		else
+			throw new IllegalArgumentException( "Unsupported block data: " + data.getClass().getSimpleName() );
+		min[ i ] = mi;
+		max[ i ] = ma;
+		mean[ i ] = count == 0 ? 0 : sum / count;
+	}
+
+	public double getMin( final long... gridPosition )
+	{
+		return min[ index( gridPosition ) ];
+	}
+
+	public double getMax( final long... gridPosition )
+	{
+		return max[ index( gridPosition ) ];
+	}
+
+	public double getMean( final long... gridPosition )
+	{
+		return mean[ index( gridPosition ) ];
+	}
+
+	/**
+	 * @return grid positions of all blocks that contain a value greater than
+	 *         {@code threshold}.
+	 */
+	public List< long[] > getBlocksAbove( final double threshold )
+	{
+		final ArrayList< long[] > blocks = new ArrayList<>();
+		for ( int i = 0; i < max.length; ++i )
+			if ( max[ i ] > threshold )
+				blocks.add( position( i ) );
+		return blocks;
+	}
+
+	/**
+	 * @return the minimum and maximum over all blocks.
+	 */
+	public double[] getRange()
+	{
+		double mi = Double.POSITIVE_INFINITY;
+		double ma = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < min.length; ++i )
+		{
+			mi = Math.min( mi, min[ i ] );
+			ma = Math.max( ma, max[ i ] );
+		}
+		return new double[] { mi, ma };
+	}
+
+	/**
+	 * Write this index to {@code pathName}, replacing any existing index.
+	 */
+	public void write( final N5Writer n5, final String pathName ) throws IOException
+	{
+		final int n = gridSize.length;
+		final long[] dimensions = new long[ n + 1 ];
+		final int[] blockSize = new int[ n + 1 ];
+		dimensions[ 0 ] = CHANNELS.length;
+		blockSize[ 0 ] = CHANNELS.length;
+		for ( int d = 0; d < n; ++d )
+		{
+			dimensions[ d + 1 ] = gridSize[ d ];
+			blockSize[ d + 1 ] = ( int ) Math.min( gridSize[ d ], INDEX_BLOCK_SIZE );
+		}
+		n5.createDataset( pathName, dimensions, blockSize, DataType.FLOAT64, new RawCompression() );
+		n5.setAttribute( pathName, CHANNELS_KEY, CHANNELS );
+		n5.setAttribute( pathName, IMAGE_BLOCK_SIZE_KEY, imageBlockSize );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( pathName );
+
+		final long[] indexGridSize = new long[ n ];
+		long numIndexBlocks = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			indexGridSize[ d ] = ( gridSize[ d ] + blockSize[ d + 1 ] - 1 ) / blockSize[ d + 1 ];
+			numIndexBlocks *= indexGridSize[ d ];
+		}
+
+		final long[] indexGridPosition = new long[ n + 1 ];
+		final int[] size = new int[ n + 1 ];
+		final long[] offset = new long[ n ];
+		for ( long b = 0; b < numIndexBlocks; ++b )
+		{
+			long r = b;
+			size[ 0 ] = CHANNELS.length;
+			int numElements = CHANNELS.length;
+			for ( int d = 0; d < n; ++d )
+			{
+				indexGridPosition[ d + 1 ] = r % indexGridSize[ d ];
+				r /= indexGridSize[ d ];
+				offset[ d ] = indexGridPosition[ d + 1 ] * blockSize[ d + 1 ];
+				size[ d + 1 ] = ( int ) Math.min( blockSize[ d + 1 ], gridSize[ d ] - offset[ d ] );
+				numElements *= size[ d + 1 ];
+			}
+			final DataBlock< ? > block = DataType.FLOAT64.createDataBlock( size.clone(), indexGridPosition.clone(), numElements );
+			final double[] data = ( double[] ) block.getData();
+			final long[] pos = new long[ n ];
+			for ( int e = 0; e < numElements / CHANNELS.length; ++e )
+			{
+				long q = e;
+				for ( int d = 0; d < n; ++d )
+				{
+					pos[ d ] = offset[ d ] + q % size[ d + 1 ];
+					q /= size[ d + 1 ];
+				}
+				final int i = index( pos );
+				data[ CHANNELS.length * e ] = min[ i ];
+				data[ CHANNELS.length * e + 1 ] = max[ i ];
+				data[ CHANNELS.length * e + 2 ] = mean[ i ];
+			}
+			n5.writeBlock( pathName, attributes, block );
+		}
+	}
+
+	/**
+	 * Read the index of the given view and level.
+	 *
+	 * @return the index, or {@code null} if there is none.
+	 */
+	public static BlockIndex read( final N5Reader n5, final int setupId, final int timepointId, final int level ) throws IOException
+	{
+		return read( n5, getPathName( setupId, timepointId, level ) );
+	}
+
+	/**
+	 * Read the index stored at {@code pathName}.
+	 *
+	 * @return the index, or {@code null} if there is none.
+	 */
+	public static BlockIndex read( final N5Reader n5, final String pathName ) throws IOException
+	{
+		if ( !n5.datasetExists( pathName ) )
+			return null;
+		final DatasetAttributes attributes = n5.getDatasetAttributes( pathName );
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final int n = dimensions.length - 1;
+		final long[] gridSize = new long[ n ];
+		final long[] indexGridSize = new long[ n ];
+		long numBlocks = 1;
+		long numIndexBlocks = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			gridSize[ d ] = dimensions[ d + 1 ];
+			indexGridSize[ d ] = ( gridSize[ d ] + blockSize[ d + 1 ] - 1 ) / blockSize[ d + 1 ];
+			numBlocks *= gridSize[ d ];
+			numIndexBlocks *= indexGridSize[ d ];
+		}
+		int[] imageBlockSize = n5.getAttribute( pathName, IMAGE_BLOCK_SIZE_KEY, int[].class );
+		if ( imageBlockSize == null )
+			imageBlockSize = new int[ n ];
+		final BlockIndex index = new BlockIndex( gridSize, imageBlockSize, new double[ ( int ) numBlocks ], new double[ ( int ) numBlocks ], new double[ ( int ) numBlocks ] );
+
+		final long[] indexGridPosition = new long[ n + 1 ];
+		final long[] offset = new long[ n ];
+		final long[] pos = new long[ n ];
+		for ( long b = 0; b < numIndexBlocks; ++b )
+		{
+			long r = b;
+			for ( int d = 0; d < n; ++d )
+			{
+				indexGridPosition[ d + 1 ] = r % indexGridSize[ d ];
+				r /= indexGridSize[ d ];
+				offset[ d ] = indexGridPosition[ d + 1 ] * blockSize[ d + 1 ];
+			}
+			final DataBlock< ? > block = n5.readBlock( pathName, attributes, indexGridPosition );
+			if ( block == null )
+				continue;
+			final int[] size = block.getSize();
+			final double[] data = ( double[] ) block.getData();
+			for ( int e = 0; e < data.length / CHANNELS.length; ++e )
+			{
+				long q = e;
+				for ( int d = 0; d < n; ++d )
+				{
+					pos[ d ] = offset[ d ] + q % size[ d + 1 ];
+					q /= size[ d + 1 ];
+				}
+				final int i = index.index( pos );
+				index.min[ i ] = data[ CHANNELS.length * e ];
+				index.max[ i ] = data[ CHANNELS.length * e + 1 ];
+				index.mean[ i ] = data[ CHANNELS.length * e + 2 ];
+			}
+		}
+		return index;
+	}
+
+	private int index( final long[] gridPosition )
+	{
+		long i = 0;
+		for ( int d = gridSize.length - 1; d >= 0; --d )
+			i = i * gridSize[ d ] + gridPosition[ d ];
+		return ( int ) i;
+	}
+
+	private long[] position( final int index )
+	{
+		final long[] position = new long[ gridSize.length ];
+		long r = index;
+		for ( int d = 0; d < gridSize.length; ++d )
+		{
+			position[ d ] = r % gridSize[ d ];
+			r /= gridSize[ d ];
+		}
+		return position;
+	}
+}
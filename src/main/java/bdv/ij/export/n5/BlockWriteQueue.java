@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.n5;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded write-behind queue. Block creator threads {@link #submit(Write)
+ * submit} writes, which are executed by a separate pool of I/O threads. When
+ * the queue is full, {@code submit} blocks, so that compute cannot run
+ * arbitrarily far ahead of I/O.
+ * <p>
+ * The first failed write is rethrown by the next {@link #submit(Write)},
+ * {@link #flush()}, or {@link #close()}.
+ */
+public class BlockWriteQueue implements AutoCloseable
+{
+	/**
+	 * A write to execute on an I/O thread.
+	 */
+	public interface Write
+	{
+		void run() throws IOException;
+	}
+
+	private static final Write SHUTDOWN = () -> {};
+
+	private final BlockingQueue< Write > queue;
+
+	private final Thread[] ioThreads;
+
+	private final Object lock = new Object();
+
+	private int pending;
+
+	private volatile IOException failure;
+
+	private final AtomicLong numSubmitted = new AtomicLong();
+
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	private final AtomicLong sumQueueDepth = new AtomicLong();
+
+	private final AtomicLong submitWaitNanos = new AtomicLong();
+
+	private final AtomicLong writeNanos = new AtomicLong();
+
+	/**
+	 * @param numIoThreads
+	 *            number of threads executing writes.
+	 * @param capacity
+	 *            maximum number of writes waiting in the queue.
+	 */
+	public BlockWriteQueue( final int numIoThreads, final int capacity )
+	{
+		queue = new ArrayBlockingQueue<>( Math.max( 1, capacity ) );
+		ioThreads = new Thread[ Math.max( 1, numIoThreads ) ];
+		for ( int i = 0; i < ioThreads.length; ++i )
+		{
+			ioThreads[ i ] = new Thread( this::runWrites, "block-writer-" + i );
+			ioThreads[ i ].setDaemon( true );
+			ioThreads[ i ].start();
+		}
+	}
+
+	/**
+	 * Queue a write, blocking while the queue is full.
+	 */
+	public void submit( final Write write ) throws IOException
+	{
+		checkFailure();
+		synchronized ( lock )
+		{
+			++pending;
+		}
+		final int depth = queue.size();
+		sumQueueDepth.addAndGet( depth );
+		maxQueueDepth.accumulateAndGet( depth, Math::max );
+		numSubmitted.incrementAndGet();
+		final long t0 = System.nanoTime();
+		try
+		{
+			queue.put( write );
+		}
+		catch ( final InterruptedException e )
+		{
+			done();
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		submitWaitNanos.addAndGet( System.nanoTime() - t0 );
+	}
+
+	/**
+	 * Wait until all submitted writes have been executed.
+	 */
+	public void flush() throws IOException
+	{
+		synchronized ( lock )
+		{
+			while ( pending > 0 )
+			{
+				try
+				{
+					lock.wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException( e );
+				}
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Wait until all submitted writes have been executed, and stop the I/O
+	 * threads.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			for ( int i = 0; i < ioThreads.length; ++i )
+				queue.offer( SHUTDOWN );
+		}
+	}
+
+	/**
+	 * @return a snapshot of the queue metrics.
+	 */
+	public Statistics getStatistics()
+	{
+		return new Statistics(
+				numSubmitted.get(),
+				maxQueueDepth.get(),
+				sumQueueDepth.get(),
+				submitWaitNanos.get(),
+				writeNanos.get(),
+				ioThreads.length );
+	}
+
+	private void runWrites()
+	{
+		while ( true )
+		{
+			final Write write;
+			try
+			{
+				write = queue.take();
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+			if ( write == SHUTDOWN )
+				return;
+			final long t0 = System.nanoTime();
+			try
+			{
+				if ( failure == null )
+					write.run();
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				if ( failure == null )
+					failure = e instanceof IOException ? ( IOException ) e : new IOException( e );
+			}
+			finally
+			{
+				writeNanos.addAndGet( System.nanoTime() - t0 );
+				done();
+			}
+		}
+	}
+
+	private void done()
+	{
+		synchronized ( lock )
+		{
+			if ( --pending == 0 )
+				lock.notifyAll();
+		}
+	}
+
+	private void checkFailure() throws IOException
+	{
+		final IOException e = failure;
+		if ( e != null )
+			throw e;
+	}
+
+	/**
+	 * Queue metrics. The queue depth is sampled whenever a write is
+	 * submitted.
+	 */
+	public static class Statistics
+	{
+		private final long numWrites;
+
+		private final int maxQueueDepth;
+
+		private final long sumQueueDepth;
+
+		private final long submitWaitNanos;
+
+		private final long writeNanos;
+
+		private final int numIoThreads;
+
+		Statistics( final long numWrites, final int maxQueueDepth, final long sumQueueDepth, final long submitWaitNanos, final long writeNanos, final int numIoThreads )
+		{
+			this.numWrites = numWrites;
+			this.maxQueueDepth = maxQueueDepth;
+			this.sumQueueDepth = sumQueueDepth;
+			this.submitWaitNanos = submitWaitNanos;
+			this.writeNanos = writeNanos;
+			this.numIoThreads = numIoThreads;
+		}
+
+		/**
+		 * @return number of submitted writes.
+		 */
+		public long getNumWrites()
+		{
+			return numWrites;
+		}
+
+		/**
+		 * @return maximum number of writes found waiting when submitting.
+		 */
+		public int getMaxQueueDepth()
+		{
+			return maxQueueDepth;
+		}
+
+		/**
+		 * @return average number of writes found waiting when submitting.
+		 */
+		public double getMeanQueueDepth()
+		{
+			return numWrites == 0 ? 0 : ( double ) sumQueueDepth / numWrites;
+		}
+
+		/**
+		 * @return total time block creator threads were blocked because the
+		 *         queue was full, in nanoseconds. If this is large, I/O is the
+		 *         bottleneck.
+		 */
+		public long getSubmitWaitNanos()
+		{
+			return submitWaitNanos;
+		}
+
+		/**
+		 * @return total time spent executing writes, summed over I/O threads,
+		 *         in nanoseconds.
+		 */
+		public long getWriteNanos()
+		{
+			return writeNanos;
+		}
+
+		public int getNumIoThreads()
+		{
+			return numIoThreads;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "%d block writes on %d I/O threads: queue depth mean %.1f, max %d; compute blocked on full queue %.1f s; writing %.1f s",
+					numWrites, numIoThreads, getMeanQueueDepth(), maxQueueDepth, submitWaitNanos * 1e-9, writeNanos * 1e-9 );
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.n5;
+
+import static bdv.img.n5.BdvN5Format.DATA_TYPE_KEY;
+import static bdv.img.n5.BdvN5Format.DOWNSAMPLING_FACTORS_KEY;
+import static bdv.img.n5.BdvN5Format.getPathName;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.export.ExportScalePyramid;
+import bdv.export.ExportScalePyramid.AfterEachPlane;
+import bdv.export.ExportScalePyramid.Block;
+import bdv.export.ExportScalePyramid.DatasetIO;
+import bdv.export.ExportScalePyramid.LoopbackHeuristic;
+import bdv.export.ProgressWriter;
+import bdv.export.ProgressWriterConsole;
+import bdv.export.SubTaskProgressWriter;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Write a sequence to an N5 container in the layout of
+ * {@link bdv.export.n5.WriteSequenceToN5}, with block creation and block
+ * writing decoupled.
+ * <p>
+ * Block creator threads downsample blocks and hand them to a
+ * {@link BlockWriteQueue}, whose I/O threads compress and write them. A slow
+ * file system then no longer stalls the computation of the next blocks, as
+ * long as the queue is not full.
+ * <p>
+ * Blocks that are all zero are not written, because missing blocks are read as
+ * zeros.
+ * <p>
+ * For every resolution level, a {@link BlockIndex} with the minimum, maximum,
+ * and mean of each block is written next to the image data.
+ */
+public class WriteSequenceToN5Pipelined
+{
+	/**
+	 * Create a {@link File}-based N5 container and write the image data of all
+	 * views of {@code seq} to it, using {@code numCellCreatorThreads} (but at
+	 * least 2) I/O threads and a queue of 4 blocks per I/O thread.
+	 */
+	public static BlockWriteQueue.Statistics writeN5File(
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final Compression compression,
+			final File n5File,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final ProgressWriter progressWriter ) throws IOException
+	{
+		final int numIoThreads = Math.max( 2, numCellCreatorThreads );
+		return writeN5File( seq, perSetupMipmapInfo, compression, n5File, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, numIoThreads, 4 * numIoThreads, progressWriter );
+	}
+
+	/**
+	 * Create a {@link File}-based N5 container and write the image data of all
+	 * views of {@code seq} to it.
+	 *
+	 * @param seq
+	 *            description of the sequence to be stored as N5. (The
+	 *            {@link AbstractSequenceDescription} contains the number of
+	 *            setups and timepoints as well as an {@link BasicImgLoader}
+	 *            that provides the image data, Registration information is not
+	 *            needed here, that will go into the accompanying xml).
+	 * @param perSetupMipmapInfo
+	 *            this maps from setup {@link BasicViewSetup#getId() id} to
+	 *            {@link ExportMipmapInfo} for that setup. The
+	 *            {@link ExportMipmapInfo} contains for each mipmap level, the
+	 *            subsampling factors and subdivision block sizes.
+	 * @param compression
+	 *            n5 compression scheme.
+	 * @param n5File
+	 *            n5 root.
+	 * @param loopbackHeuristic
+	 *            heuristic to decide whether to create each resolution level
+	 *            by reading pixels from the original image or by reading back
+	 *            a finer resolution level already written to the N5. may be
+	 *            null (in this case always use the original image).
+	 * @param afterEachPlane
+	 *            this is called after each "plane of chunks" is written, giving
+	 *            the opportunity to clear caches, etc.
+	 * @param numCellCreatorThreads
+	 *            The number of threads that will be instantiated to generate
+	 *            cell data.
+	 * @param numIoThreads
+	 *            The number of threads that will be instantiated to compress
+	 *            and write cell data.
+	 * @param queueCapacity
+	 *            how many blocks may wait for I/O before block creator threads
+	 *            block.
+	 * @param progressWriter
+	 *            completion ratio and status output will be directed here.
+	 * @return metrics of the write queue.
+	 */
+	public static BlockWriteQueue.Statistics writeN5File(
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final Compression compression,
+			final File n5File,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final int numIoThreads,
+			final int queueCapacity,
+			final ProgressWriter progressWriter ) throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( n5File.getAbsolutePath() );
+		writeSetupAttributes( n5, seq, perSetupMipmapInfo );
+		return writeViews( n5, seq, perSetupMipmapInfo, compression, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, numIoThreads, queueCapacity, progressWriter );
+	}
+
+	/**
+	 * Create the setup groups of all setups of {@code seq}, with their
+	 * downsampling factors and data type attributes.
+	 * <p>
+	 * When views are written concurrently into the same container, this should
+	 * be called once before, so that concurrent {@link #writeViews} calls do
+	 * not update the same attributes.
+	 */
+	public static void writeSetupAttributes(
+			final N5Writer n5,
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo ) throws IOException
+	{
+		final BasicImgLoader imgLoader = seq.getImgLoader();
+		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+		{
+			final int setupId = setup.getId();
+			final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get( setupId );
+			final Object type = imgLoader.getSetupImgLoader( setupId ).getImageType();
+			if ( !( type instanceof RealType && type instanceof NativeType ) )
+				throw new IllegalArgumentException( "Unsupported pixel type: " + type.getClass().getSimpleName() );
+			final String pathName = getPathName( setupId );
+			n5.createGroup( pathName );
+			n5.setAttribute( pathName, DOWNSAMPLING_FACTORS_KEY, mipmapInfo.getResolutions() );
+			n5.setAttribute( pathName, DATA_TYPE_KEY, dataType( type ) );
+		}
+	}
+
+	/**
+	 * Write the image data of all views of {@code seq} to {@code n5}, using
+	 * {@code numCellCreatorThreads} (but at least 2) I/O threads and a queue
+	 * of 4 blocks per I/O thread. The setup groups must already exist (see
+	 * {@link #writeSetupAttributes}).
+	 */
+	public static BlockWriteQueue.Statistics writeViews(
+			final N5Writer n5,
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final Compression compression,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final ProgressWriter progressWriter ) throws IOException
+	{
+		final int numIoThreads = Math.max( 2, numCellCreatorThreads );
+		return writeViews( n5, seq, perSetupMipmapInfo, compression, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, numIoThreads, 4 * numIoThreads, progressWriter );
+	}
+
+	/**
+	 * Write the image data of all views of {@code seq} to {@code n5}. The
+	 * setup groups must already exist (see {@link #writeSetupAttributes}).
+	 * Parameters are as for
+	 * {@link #writeN5File(AbstractSequenceDescription, Map, Compression, File, LoopbackHeuristic, AfterEachPlane, int, int, int, ProgressWriter)}.
+	 *
+	 * @return metrics of the write queue.
+	 */
+	public static BlockWriteQueue.Statistics writeViews(
+			final N5Writer n5,
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final Compression compression,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final int numIoThreads,
+			final int queueCapacity,
+			ProgressWriter progressWriter ) throws IOException
+	{
+		if ( progressWriter == null )
+			progressWriter = new ProgressWriterConsole();
+		progressWriter.setProgress( 0 );
+
+		final BasicImgLoader imgLoader = seq.getImgLoader();
+		final List< ? extends BasicViewSetup > setups = seq.getViewSetupsOrdered();
+
+		// write image data for all views
+		final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+		final int numTasks = timepoints.size() * setups.size();
+		int numCompletedTasks = 0;
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( Math.max( 1, numCellCreatorThreads ) );
+		final BlockWriteQueue queue = new BlockWriteQueue( numIoThreads, queueCapacity );
+		final AtomicLong numBlocks = new AtomicLong();
+		final AtomicLong numSkippedBlocks = new AtomicLong();
+		try
+		{
+			for ( final TimePoint timepoint : timepoints )
+			{
+				final int timepointId = timepoint.getId();
+				for ( final BasicViewSetup setup : setups )
+				{
+					final int setupId = setup.getId();
+					final boolean missing = seq.getMissingViews() != null
+							&& seq.getMissingViews().getMissingViews().contains( new ViewId( timepointId, setupId ) );
+					if ( !missing )
+					{
+						final ProgressWriter subProgressWriter = new SubTaskProgressWriter(
+								progressWriter, ( double ) numCompletedTasks / numTasks,
+								( double ) ( numCompletedTasks + 1 ) / numTasks );
+						progressWriter.out().printf( "processing setup %d / timepoint %d\n", setupId, timepointId );
+						writeView( imgLoader.getSetupImgLoader( setupId ), n5, compression, setupId, timepointId,
+								perSetupMipmapInfo.get( setupId ), queue, numBlocks, numSkippedBlocks, executorService, numCellCreatorThreads,
+								loopbackHeuristic, afterEachPlane, subProgressWriter );
+					}
+					progressWriter.setProgress( ( double ) ++numCompletedTasks / numTasks );
+				}
+			}
+			queue.close();
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			try
+			{
+				queue.close();
+			}
+			catch ( final IOException suppressed )
+			{
+				e.addSuppressed( suppressed );
+			}
+			throw e;
+		}
+		finally
+		{
+			executorService.shutdown();
+		}
+
+		final BlockWriteQueue.Statistics statistics = queue.getStatistics();
+		progressWriter.out().println( statistics );
+		progressWriter.out().printf( "skipped %d of %d blocks that were all zero\n", numSkippedBlocks.get(), numBlocks.get() );
+		progressWriter.setProgress( 1.0 );
+		return statistics;
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static void writeView(
+			final BasicSetupImgLoader< ? > setupImgLoader,
+			final N5Writer n5,
+			final Compression compression,
+			final int setupId,
+			final int timepointId,
+			final ExportMipmapInfo mipmapInfo,
+			final BlockWriteQueue queue,
+			final AtomicLong numBlocks,
+			final AtomicLong numSkippedBlocks,
+			final ExecutorService executorService,
+			final int numCellCreatorThreads,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final ProgressWriter progressWriter ) throws IOException
+	{
+		final RandomAccessibleInterval img = setupImgLoader.getImage( timepointId );
+		final RealType type = ( RealType ) setupImgLoader.getImageType();
+		final N5DatasetIO io = new N5DatasetIO( n5, compression, setupId, timepointId, dataType( type ), queue, numBlocks, numSkippedBlocks );
+		ExportScalePyramid.writeScalePyramid( img, type, mipmapInfo, io, executorService, numCellCreatorThreads, loopbackHeuristic, afterEachPlane, progressWriter );
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static DataType dataType( final Object type )
+	{
+		return N5Utils.dataType( ( NativeType ) type );
+	}
+
+	/**
+	 * An N5 dataset being written, identified by its path.
+	 */
+	static final class Dataset
+	{
+		final String pathName;
+
+		final DatasetAttributes attributes;
+
+		/**
+		 * Whether the dataset existed before this export. Then, blocks that
+		 * are skipped must be deleted, to not leave stale data behind.
+		 */
+		final boolean existed;
+
+		final BlockIndex index;
+
+		final String indexPathName;
+
+		Dataset( final String pathName, final DatasetAttributes attributes, final boolean existed, final BlockIndex index, final String indexPathName )
+		{
+			this.pathName = pathName;
+			this.attributes = attributes;
+			this.existed = existed;
+			this.index = index;
+			this.indexPathName = indexPathName;
+		}
+	}
+
+	static class N5DatasetIO< T extends RealType< T > & NativeType< T > > implements DatasetIO< Dataset, T >
+	{
+		private final N5Writer n5;
+
+		private final Compression compression;
+
+		private final int setupId;
+
+		private final int timepointId;
+
+		private final DataType dataType;
+
+		private final BlockWriteQueue queue;
+
+		private final AtomicLong numBlocks;
+
+		private final AtomicLong numSkippedBlocks;
+
+		N5DatasetIO( final N5Writer n5, final Compression compression, final int setupId, final int timepointId, final DataType dataType, final BlockWriteQueue queue, final AtomicLong numBlocks, final AtomicLong numSkippedBlocks )
+		{
+			this.n5 = n5;
+			this.compression = compression;
+			this.setupId = setupId;
+			this.timepointId = timepointId;
+			this.dataType = dataType;
+			this.queue = queue;
+			this.numBlocks = numBlocks;
+			this.numSkippedBlocks = numSkippedBlocks;
+		}
+
+		@Override
+		public Dataset createDataset( final int level, final long[] dimensions, final int[] blockSize ) throws IOException
+		{
+			final String pathName = getPathName( setupId, timepointId, level );
+			final boolean existed = n5.datasetExists( pathName );
+			n5.createDataset( pathName, dimensions, blockSize, dataType, compression );
+			final boolean unsigned = dataType == DataType.UINT8 || dataType == DataType.UINT16 || dataType == DataType.UINT32 || dataType == DataType.UINT64;
+			final BlockIndex index = new BlockIndex( dimensions, blockSize, unsigned );
+			return new Dataset( pathName, n5.getDatasetAttributes( pathName ), existed, index, BlockIndex.getPathName( setupId, timepointId, level ) );
+		}
+
+		@Override
+		public void writeBlock( final Dataset dataset, final Block< T > dataBlock ) throws IOException
+		{
+			// copy on the block creator thread, compress and write on an I/O thread
+			final int[] size = dataBlock.getSize();
+			int numElements = 1;
+			for ( final int s : size )
+				numElements *= s;
+			final DataBlock< ? > block = dataType.createDataBlock( size, dataBlock.getGridPosition(), numElements );
+			copy( dataBlock.getData(), block.getData() );
+			numBlocks.incrementAndGet();
+			final long[] gridPosition = dataBlock.getGridPosition();
+			dataset.index.record( gridPosition, block.getData() );
+			if ( dataset.index.getMin( gridPosition ) == 0 && dataset.index.getMax( gridPosition ) == 0 )
+			{
+				// missing blocks are read as zeros
+				numSkippedBlocks.incrementAndGet();
+				if ( dataset.existed )
+					queue.submit( () -> n5.deleteBlock( dataset.pathName, block.getGridPosition() ) );
+				return;
+			}
+			queue.submit( () -> n5.writeBlock( dataset.pathName, dataset.attributes, block ) );
+		}
+
+		@Override
+		public void flush( final Dataset dataset ) throws IOException
+		{
+			// lower resolution levels may be computed from this one
+			queue.flush();
+			dataset.index.write( n5, dataset.indexPathName );
+		}
+
+		@Override
+		public RandomAccessibleInterval< T > getImage( final int level ) throws IOException
+		{
+			return N5Utils.open( n5, getPathName( setupId, timepointId, level ) );
+		}
+	}
+
+	/**
+	 * Copy {@code source} in flat iteration order into the primitive array
+	 * {@code target}.
+	 */
+	static < T extends RealType< T > > void copy( final RandomAccessibleInterval< T > source, final Object target )
+	{
+		final Cursor< T > c = Views.flatIterable( source ).cursor();
+		if ( target instanceof byte[] )
+		{
+			final byte[] a = ( byte[] ) target;
+			for ( int i = 0; i < a.length; ++i )
+				a[ i ] = ( byte ) ( long ) c.next().getRealDouble();
+		}
+		else if ( target instanceof short[] )
+		{
+			final short[] a = ( short[] ) target;
+			for ( int i = 0; i < a.length; ++i )
+				a[ i ] = ( short ) ( long ) c.next().getRealDouble();
+		}
+		else if ( target instanceof int[] )
+		{
+			final int[] a = ( int[] ) target;
+			for ( int i = 0; i < a.length; ++i )
+				a[ i ] = ( int ) ( long ) c.next().getRealDouble();
+		}
+		else if ( target instanceof long[] )
+		{
+			final long[] a = ( long[] ) target;
+			for ( int i = 0; i < a.length; ++i )
+				a[ i ] = ( long ) c.next().getRealDouble();
+		}
+		else if ( target instanceof float[] )
+		{
+			final float[] a = ( float[] ) target;
+			for ( int i = 0; i < a.length; ++i )
+				a[ i ] = c.next().getRealFloat();
+		}
+		else if ( target instanceof double[] )
+		{
+			final double[] a = ( double[] ) target;
+			for ( int i = 0; i < a.length; ++i )
+				a[ i ] = c.next().getRealDouble();
+		}
+		else
+			throw new IllegalArgumentException( "Unsupported block data: " + target.getClass().getSimpleName() );
+	}
+}
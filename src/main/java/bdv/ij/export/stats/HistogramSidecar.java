@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * Intensity histograms of an exported dataset, stored in a JSON file next to
+ * the dataset XML ({@code export.xml} → {@code export.histograms.json}).
+ * <p>
+ * The file contains one histogram per setup (over all timepoints) and one per
+ * view. To keep it small, histograms are trimmed to the occupied bins and
+ * neighbouring bins are merged until there are at most {@link #MAX_BINS}.
+ * That is plenty for choosing a display range from percentiles when the
+ * dataset is opened.
+ */
+public class HistogramSidecar
+{
+	/**
+	 * Maximum number of bins of a stored histogram.
+	 */
+	public static final int MAX_BINS = 1024;
+
+	/**
+	 * Default lower percentile for {@link #getDisplayRange(int)}.
+	 */
+	public static final double DEFAULT_LOWER_PERCENTILE = 0.1;
+
+	/**
+	 * Default upper percentile for {@link #getDisplayRange(int)}.
+	 */
+	public static final double DEFAULT_UPPER_PERCENTILE = 99.9;
+
+	private List< SetupHistograms > setups = new ArrayList<>();
+
+	/**
+	 * Histograms of one setup.
+	 */
+	public static class SetupHistograms
+	{
+		int setup;
+
+		Histogram histogram;
+
+		List< TimepointHistogram > timepoints = new ArrayList<>();
+	}
+
+	/**
+	 * Histogram of one view.
+	 */
+	public static class TimepointHistogram
+	{
+		int timepoint;
+
+		Histogram histogram;
+	}
+
+	/**
+	 * A compact histogram. Bin {@code i} covers
+	 * {@code [lowerBound + i * binWidth, lowerBound + (i + 1) * binWidth)}.
+	 */
+	public static class Histogram
+	{
+		long count;
+
+		double min;
+
+		double max;
+
+		double lowerBound;
+
+		double binWidth;
+
+		long[] counts;
+
+		static Histogram of( final IntensityHistogram histogram )
+		{
+			final Histogram h = new Histogram();
+			h.count = histogram.getCount();
+			h.min = histogram.getMin();
+			h.max = histogram.getMax();
+			final long[] c = histogram.getCounts();
+			int first = 0;
+			while ( first < c.length && c[ first ] == 0 )
+				++first;
+			int last = c.length - 1;
+			while ( last > first && c[ last ] == 0 )
+				--last;
+			if ( first >= c.length )
+			{
+				h.lowerBound = histogram.getLowerBound();
+				h.binWidth = histogram.getBinWidth();
+				h.counts = new long[ 0 ];
+				return h;
+			}
+
+			// merge neighbouring bins until the occupied range fits into MAX_BINS
+			int factor = 1;
+			while ( ( last / factor ) - ( first / factor ) + 1 > MAX_BINS )
+				factor *= 2;
+			final int firstMerged = first / factor;
+			h.counts = new long[ last / factor - firstMerged + 1 ];
+			for ( int i = first; i <= last; ++i )
+				h.counts[ i / factor - firstMerged ] += c[ i ];
+			h.binWidth = histogram.getBinWidth() * factor;
+			h.lowerBound = histogram.getLowerBound() + firstMerged * h.binWidth;
+			return h;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public double getMin()
+		{
+			return count == 0 ? Double.NaN : min;
+		}
+
+		public double getMax()
+		{
+			return count == 0 ? Double.NaN : max;
+		}
+
+		/**
+		 * Get the value below which {@code percentile} percent of the values
+		 * lie. Within a bin, values are assumed to be uniformly distributed.
+		 * The result is clamped to {@code [min, max]}.
+		 *
+		 * @return the percentile value, or {@code NaN} if the histogram is
+		 *         empty.
+		 */
+		public double getPercentile( final double percentile )
+		{
+			if ( count == 0 )
+				return Double.NaN;
+			if ( percentile <= 0 )
+				return min;
+			if ( percentile >= 100 )
+				return max;
+
+			final double target = percentile / 100.0 * count;
+			long cumulative = 0;
+			for ( int i = 0; i < counts.length; ++i )
+			{
+				final long n = counts[ i ];
+				if ( n != 0 && cumulative + n >= target )
+				{
+					final double value = lowerBound + ( i + ( target - cumulative ) / n ) * binWidth;
+					return Math.max( min, Math.min( max, value ) );
+				}
+				cumulative += n;
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * Create a sidecar from {@code statistics}. Setup and timepoint ids are
+	 * taken to be the indices used in {@code statistics}.
+	 */
+	public static HistogramSidecar of( final IntensityStatistics statistics )
+	{
+		final HistogramSidecar sidecar = new HistogramSidecar();
+		for ( int s = 0; s < statistics.numSetups(); ++s )
+		{
+			final SetupHistograms setup = new SetupHistograms();
+			setup.setup = s;
+			setup.histogram = Histogram.of( statistics.getSetupHistogram( s ) );
+			for ( int t = 0; t < statistics.numTimepoints(); ++t )
+			{
+				final TimepointHistogram timepoint = new TimepointHistogram();
+				timepoint.timepoint = t;
+				timepoint.histogram = Histogram.of( statistics.getHistogram( s, t ) );
+				setup.timepoints.add( timepoint );
+			}
+			sidecar.setups.add( setup );
+		}
+		return sidecar;
+	}
+
+	/**
+	 * @return the sidecar file of the dataset XML file {@code xmlFile}.
+	 */
+	public static File getFile( final File xmlFile )
+	{
+		final String xmlFilename = xmlFile.getAbsolutePath();
+		final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
+		return new File( basename + ".histograms.json" );
+	}
+
+	/**
+	 * Write the sidecar of the dataset XML file {@code xmlFile}.
+	 */
+	public void write( final File xmlFile ) throws IOException
+	{
+		try ( final Writer writer = Files.newBufferedWriter( getFile( xmlFile ).toPath(), StandardCharsets.UTF_8 ) )
+		{
+			new GsonBuilder().serializeSpecialFloatingPointValues().create().toJson( this, writer );
+		}
+	}
+
+	/**
+	 * Read the sidecar of the dataset XML file {@code xmlFile}.
+	 *
+	 * @return the sidecar, or {@code null} if there is none.
+	 */
+	public static HistogramSidecar read( final File xmlFile ) throws IOException
+	{
+		final File file = getFile( xmlFile );
+		if ( !file.isFile() )
+			return null;
+		try ( final Reader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ) )
+		{
+			final HistogramSidecar sidecar = new Gson().fromJson( reader, HistogramSidecar.class );
+			if ( sidecar == null || sidecar.setups == null )
+				throw new IOException( "invalid histogram file " + file );
+			return sidecar;
+		}
+		catch ( final JsonParseException e )
+		{
+			throw new IOException( "invalid histogram file " + file, e );
+		}
+	}
+
+	/**
+	 * @return the histogram of {@code setupId} over all timepoints, or
+	 *         {@code null} if there is none.
+	 */
+	public Histogram getHistogram( final int setupId )
+	{
+		for ( final SetupHistograms setup : setups )
+			if ( setup.setup == setupId )
+				return setup.histogram;
+		return null;
+	}
+
+	/**
+	 * @return the histogram of view ({@code setupId}, {@code timepointId}), or
+	 *         {@code null} if there is none.
+	 */
+	public Histogram getHistogram( final int setupId, final int timepointId )
+	{
+		for ( final SetupHistograms setup : setups )
+			if ( setup.setup == setupId && setup.timepoints != null )
+				for ( final TimepointHistogram timepoint : setup.timepoints )
+					if ( timepoint.timepoint == timepointId )
+						return timepoint.histogram;
+		return null;
+	}
+
+	/**
+	 * @return the display range of {@code setupId} from the
+	 *         {@link #DEFAULT_LOWER_PERCENTILE default} percentiles, or
+	 *         {@code null} if there is no (non-empty) histogram.
+	 */
+	public double[] getDisplayRange( final int setupId )
+	{
+		return getDisplayRange( setupId, DEFAULT_LOWER_PERCENTILE, DEFAULT_UPPER_PERCENTILE );
+	}
+
+	/**
+	 * @return {@code [lower, upper]} percentiles of the histogram of
+	 *         {@code setupId}, or {@code null} if there is no (non-empty)
+	 *         histogram.
+	 */
+	public double[] getDisplayRange( final int setupId, final double lowerPercentile, final double upperPercentile )
+	{
+		final Histogram histogram = getHistogram( setupId );
+		if ( histogram == null || histogram.count == 0 )
+			return null;
+		return new double[] { histogram.getPercentile( lowerPercentile ), histogram.getPercentile( upperPercentile ) };
+	}
+}
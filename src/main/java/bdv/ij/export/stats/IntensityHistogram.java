@@ -0,0 +1,439 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.stats;
+
+import java.util.Arrays;
+
+/**
+ * Streaming intensity histogram that can be merged with other histograms.
+ * <p>
+ * Bins have width {@code 2^k} and are aligned to multiples of the bin width.
+ * For unsigned integer data ({@link #forUnsignedInteger(int)}) there is one
+ * bin per value, so statistics are exact. For float data ({@link #forFloat()})
+ * the bin width adapts to the data: when a value falls outside the covered
+ * range, pairs of neighbouring bins are merged, doubling the range, until the
+ * value fits. Exact minimum and maximum are tracked in both cases.
+ * <p>
+ * Not thread-safe. Accumulate into one histogram per thread and
+ * {@link #add(IntensityHistogram) merge}.
+ */
+public class IntensityHistogram
+{
+	private static final int FLOAT_NUM_BINS = 1 << 14;
+
+	private final long[] counts;
+
+	/**
+	 * bin width is {@code 2^binExponent}.
+	 */
+	private int binExponent;
+
+	private double binWidth;
+
+	/**
+	 * bin {@code i} covers {@code [(firstBin + i) * binWidth, (firstBin + i + 1) * binWidth)}.
+	 */
+	private long firstBin;
+
+	private final boolean adaptive;
+
+	private boolean initialized;
+
+	private long count;
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	private IntensityHistogram( final int numBins, final boolean adaptive )
+	{
+		counts = new long[ numBins ];
+		this.adaptive = adaptive;
+		setBinExponent( 0 );
+		firstBin = 0;
+		initialized = !adaptive;
+	}
+
+	/**
+	 * Exact histogram for unsigned integer values of the given bit depth (at
+	 * most 16).
+	 */
+	public static IntensityHistogram forUnsignedInteger( final int bits )
+	{
+		if ( bits < 1 || bits > 16 )
+			throw new IllegalArgumentException( "unsupported bit depth " + bits );
+		return new IntensityHistogram( 1 << bits, false );
+	}
+
+	/**
+	 * Adaptive histogram for float values.
+	 */
+	public static IntensityHistogram forFloat()
+	{
+		return new IntensityHistogram( FLOAT_NUM_BINS, true );
+	}
+
+	/**
+	 * Create an empty histogram of the same kind (and, for unsigned integer
+	 * histograms, bit depth) as this one.
+	 */
+	public IntensityHistogram createEmpty()
+	{
+		return new IntensityHistogram( counts.length, adaptive );
+	}
+
+	/**
+	 * Add 8-bit unsigned values.
+	 */
+	public void add( final byte[] pixels )
+	{
+		if ( adaptive )
+		{
+			for ( final byte p : pixels )
+				add( p & 0xff );
+			return;
+		}
+		final long[] c = counts;
+		int lo = 0xff;
+		int hi = 0;
+		for ( final byte p : pixels )
+		{
+			final int v = p & 0xff;
+			++c[ v ];
+			lo = Math.min( lo, v );
+			hi = Math.max( hi, v );
+		}
+		updateMinMaxCount( lo, hi, pixels.length );
+	}
+
+	/**
+	 * Add 16-bit unsigned values.
+	 */
+	public void add( final short[] pixels )
+	{
+		if ( adaptive || counts.length < 0x10000 )
+		{
+			for ( final short p : pixels )
+				add( p & 0xffff );
+			return;
+		}
+		final long[] c = counts;
+		int lo = 0xffff;
+		int hi = 0;
+		for ( final short p : pixels )
+		{
+			final int v = p & 0xffff;
+			++c[ v ];
+			lo = Math.min( lo, v );
+			hi = Math.max( hi, v );
+		}
+		updateMinMaxCount( lo, hi, pixels.length );
+	}
+
+	/**
+	 * Add float values. {@code NaN}s and infinities are ignored.
+	 */
+	public void add( final float[] pixels )
+	{
+		float lo = Float.POSITIVE_INFINITY;
+		float hi = Float.NEGATIVE_INFINITY;
+		for ( final float p : pixels )
+		{
+			if ( !Float.isFinite( p ) )
+				continue;
+			if ( p < lo )
+				lo = p;
+			if ( p > hi )
+				hi = p;
+		}
+		if ( lo > hi )
+			return; // empty or no finite values
+
+		ensureRange( lo, hi );
+		final long[] c = counts;
+		final double scale = 1.0 / binWidth;
+		long n = 0;
+		for ( final float p : pixels )
+		{
+			if ( Float.isFinite( p ) )
+			{
+				++c[ ( int ) ( ( long ) Math.floor( p * scale ) - firstBin ) ];
+				++n;
+			}
+		}
+		updateMinMaxCount( lo, hi, n );
+	}
+
+	/**
+	 * Add a single value. {@code NaN}s and infinities are ignored.
+	 */
+	public void add( final double value )
+	{
+		if ( !Double.isFinite( value ) )
+			return;
+		ensureRange( value, value );
+		++counts[ binIndex( value ) ];
+		updateMinMaxCount( value, value, 1 );
+	}
+
+	/**
+	 * Merge the counts of {@code other} into this histogram. {@code other}
+	 * must be of the same kind as this.
+	 */
+	public void add( final IntensityHistogram other )
+	{
+		if ( other.count == 0 )
+			return;
+		if ( other.adaptive != adaptive || other.counts.length != counts.length )
+			throw new IllegalArgumentException( "incompatible histograms" );
+
+		ensureRange( other.min, other.max );
+		if ( other.binExponent > binExponent )
+			coarsen( other.binExponent - binExponent );
+		final int shift = binExponent - other.binExponent;
+		for ( int i = 0; i < other.counts.length; ++i )
+		{
+			final long n = other.counts[ i ];
+			if ( n != 0 )
+				counts[ ( int ) ( ( ( other.firstBin + i ) >> shift ) - firstBin ) ] += n;
+		}
+		updateMinMaxCount( other.min, other.max, other.count );
+	}
+
+	/**
+	 * @return number of values added (excluding {@code NaN}s and infinities).
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the exact minimum value, or {@code NaN} if the histogram is
+	 *         empty.
+	 */
+	public double getMin()
+	{
+		return count == 0 ? Double.NaN : min;
+	}
+
+	/**
+	 * @return the exact maximum value, or {@code NaN} if the histogram is
+	 *         empty.
+	 */
+	public double getMax()
+	{
+		return count == 0 ? Double.NaN : max;
+	}
+
+	/**
+	 * @return the width of each bin.
+	 */
+	public double getBinWidth()
+	{
+		return binWidth;
+	}
+
+	/**
+	 * @return the lower bound of the first bin.
+	 */
+	public double getLowerBound()
+	{
+		return firstBin * binWidth;
+	}
+
+	/**
+	 * @return a copy of the bin counts.
+	 */
+	public long[] getCounts()
+	{
+		return counts.clone();
+	}
+
+	/**
+	 * Get the value below which {@code percentile} percent of the values lie.
+	 * Within a bin, values are assumed to be uniformly distributed. The result
+	 * is clamped to {@code [min, max]}.
+	 *
+	 * @param percentile
+	 *            in {@code [0, 100]}.
+	 * @return the percentile value, or {@code NaN} if the histogram is empty.
+	 */
+	public double getPercentile( final double percentile )
+	{
+		if ( count == 0 )
+			return Double.NaN;
+		if ( percentile <= 0 )
+			return min;
+		if ( percentile >= 100 )
+			return max;
+
+		final double target = percentile / 100.0 * count;
+		long cumulative = 0;
+		for ( int i = 0; i < counts.length; ++i )
+		{
+			final long n = counts[ i ];
+			if ( n != 0 && cumulative + n >= target )
+			{
+				final double value;
+				if ( adaptive )
+					value = ( firstBin + i + ( target - cumulative ) / n ) * binWidth;
+				else
+					value = i;
+				return Math.max( min, Math.min( max, value ) );
+			}
+			cumulative += n;
+		}
+		return max;
+	}
+
+	/**
+	 * @return {@code [getPercentile(lower), getPercentile(upper)]}.
+	 */
+	public double[] getPercentileRange( final double lower, final double upper )
+	{
+		return new double[] { getPercentile( lower ), getPercentile( upper ) };
+	}
+
+	private void updateMinMaxCount( final double lo, final double hi, final long n )
+	{
+		if ( n == 0 )
+			return;
+		min = Math.min( min, lo );
+		max = Math.max( max, hi );
+		count += n;
+	}
+
+	private void setBinExponent( final int k )
+	{
+		binExponent = k;
+		binWidth = Math.scalb( 1.0, k );
+	}
+
+	private long bin( final double value )
+	{
+		return ( long ) Math.floor( value / binWidth );
+	}
+
+	private int binIndex( final double value )
+	{
+		return ( int ) ( bin( value ) - firstBin );
+	}
+
+	/**
+	 * Make sure that values in {@code [lo, hi]} fall into the covered range,
+	 * coarsening bins if necessary.
+	 */
+	private void ensureRange( final double lo, final double hi )
+	{
+		if ( !adaptive )
+		{
+			if ( lo < 0 || hi >= counts.length )
+				throw new IllegalArgumentException( "value out of range [0, " + ( counts.length - 1 ) + "]" );
+			return;
+		}
+
+		if ( !initialized )
+		{
+			// choose the finest bin width such that [lo, hi] fits
+			final double extent = Math.max( hi - lo, Math.ulp( Math.max( Math.abs( lo ), Math.abs( hi ) ) ) );
+			int k = Math.getExponent( extent / ( counts.length - 2 ) ) + 1;
+			k = Math.max( k, Double.MIN_EXPONENT );
+			setBinExponent( k );
+			firstBin = bin( lo );
+			while ( bin( hi ) - firstBin >= counts.length )
+			{
+				setBinExponent( binExponent + 1 );
+				firstBin = bin( lo );
+			}
+			initialized = true;
+			return;
+		}
+
+		while ( bin( lo ) < firstBin || bin( hi ) - firstBin >= counts.length )
+		{
+			// if the range is only exceeded on one side, [lo, hi] fits at the
+			// current bin width, and the bins at the other side are empty,
+			// shift instead of coarsening
+			final long below = firstBin - bin( lo );
+			final long above = bin( hi ) - firstBin - counts.length + 1;
+			final boolean fits = bin( hi ) - bin( lo ) < counts.length;
+			if ( fits && below > 0 && above <= 0 && below <= emptyBinsAtEnd() )
+				shift( -below );
+			else if ( fits && above > 0 && below <= 0 && above <= emptyBinsAtStart() )
+				shift( above );
+			else
+				coarsen( 1 );
+		}
+	}
+
+	private int emptyBinsAtStart()
+	{
+		int n = 0;
+		while ( n < counts.length && counts[ n ] == 0 )
+			++n;
+		return n;
+	}
+
+	private int emptyBinsAtEnd()
+	{
+		int n = 0;
+		while ( n < counts.length && counts[ counts.length - 1 - n ] == 0 )
+			++n;
+		return n;
+	}
+
+	/**
+	 * Move the covered range by {@code delta} bins. Bins shifted out must be
+	 * empty.
+	 */
+	private void shift( final long delta )
+	{
+		final int d = ( int ) delta;
+		if ( d > 0 )
+		{
+			System.arraycopy( counts, d, counts, 0, counts.length - d );
+			Arrays.fill( counts, counts.length - d, counts.length, 0 );
+		}
+		else
+		{
+			System.arraycopy( counts, 0, counts, -d, counts.length + d );
+			Arrays.fill( counts, 0, -d, 0 );
+		}
+		firstBin += delta;
+	}
+
+	/**
+	 * Multiply bin width by {@code 2^levels}, merging bins.
+	 */
+	private void coarsen( final int levels )
+	{
+		final long newFirstBin = firstBin >> levels;
+		final long[] merged = new long[ counts.length ];
+		for ( int i = 0; i < counts.length; ++i )
+			if ( counts[ i ] != 0 )
+				merged[ ( int ) ( ( ( firstBin + i ) >> levels ) - newFirstBin ) ] += counts[ i ];
+		System.arraycopy( merged, 0, counts, 0, counts.length );
+		firstBin = newFirstBin;
+		setBinExponent( binExponent + levels );
+	}
+}
@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Per-view ({@code setup}, {@code timepoint}) intensity histograms, that are
+ * accumulated concurrently from blocks of pixel data.
+ * <p>
+ * Blocks can be fed by {@link #compute(ImagePlus, int) scanning an ImagePlus}
+ * in parallel, or by an image loader during the export read pass (see
+ * {@code ExportInput.collectStatistics()}, which registers
+ * {@link #accumulate} as the loader's {@code BlockLoadListener}). Each block
+ * is identified by a cell index within its view, and is counted only once
+ * even if it is loaded repeatedly.
+ */
+public class IntensityStatistics
+{
+	private final int numSetups;
+
+	private final int numTimepoints;
+
+	private final IntensityHistogram prototype;
+
+	/**
+	 * Per view, a pool of partial histograms. Each thread takes a histogram
+	 * from the pool (or creates one), adds a block, and returns it to the pool.
+	 * So there are at most as many partial histograms per view as there are
+	 * concurrent threads.
+	 */
+	private final List< ConcurrentLinkedQueue< IntensityHistogram > > partials;
+
+	private final List< Set< Long > > accumulatedCells;
+
+	/**
+	 * @param numSetups
+	 *            number of setups, setup ids are {@code 0..numSetups-1}.
+	 * @param numTimepoints
+	 *            number of timepoints, timepoint ids are
+	 *            {@code 0..numTimepoints-1}.
+	 * @param prototype
+	 *            partial histograms are created by
+	 *            {@link IntensityHistogram#createEmpty()} from this.
+	 */
+	public IntensityStatistics( final int numSetups, final int numTimepoints, final IntensityHistogram prototype )
+	{
+		this.numSetups = numSetups;
+		this.numTimepoints = numTimepoints;
+		this.prototype = prototype;
+		final int numViews = numSetups * numTimepoints;
+		partials = new ArrayList<>( numViews );
+		accumulatedCells = new ArrayList<>( numViews );
+		for ( int i = 0; i < numViews; ++i )
+		{
+			partials.add( new ConcurrentLinkedQueue<>() );
+			accumulatedCells.add( ConcurrentHashMap.newKeySet() );
+		}
+	}
+
+	/**
+	 * Create empty statistics for the channels (setups) and frames
+	 * (timepoints) of a GRAY8, GRAY16, or GRAY32 {@link ImagePlus}.
+	 */
+	public static IntensityStatistics forImagePlus( final ImagePlus imp )
+	{
+		return new IntensityStatistics( imp.getNChannels(), imp.getNFrames(), createHistogram( imp ) );
+	}
+
+	/**
+	 * Compute statistics of all planes of a GRAY8, GRAY16, or GRAY32
+	 * {@link ImagePlus} in a single parallel pass.
+	 *
+	 * @param imp
+	 *            the image.
+	 * @param numThreads
+	 *            how many planes to process concurrently.
+	 */
+	public static IntensityStatistics compute( final ImagePlus imp, final int numThreads )
+	{
+		final IntensityStatistics stats = forImagePlus( imp );
+		final ImageStack stack = imp.getStack();
+		final int numPlanes = imp.getStackSize();
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, numPlanes ) ) );
+		try
+		{
+			final ArrayList< Future< ? > > futures = new ArrayList<>( numPlanes );
+			for ( int i = 1; i <= numPlanes; ++i )
+			{
+				final int index = i;
+				futures.add( executor.submit( () -> {
+					final int[] czt = imp.convertIndexToPosition( index );
+					stats.accumulate( czt[ 0 ] - 1, czt[ 2 ] - 1, czt[ 1 ] - 1, stack.getPixels( index ) );
+				} ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		return stats;
+	}
+
+	private static IntensityHistogram createHistogram( final ImagePlus imp )
+	{
+		switch ( imp.getType() )
+		{
+		case ImagePlus.GRAY8:
+			return IntensityHistogram.forUnsignedInteger( 8 );
+		case ImagePlus.GRAY16:
+			return IntensityHistogram.forUnsignedInteger( 16 );
+		case ImagePlus.GRAY32:
+			return IntensityHistogram.forFloat();
+		default:
+			throw new IllegalArgumentException( "Only 8, 16, 32-bit images are supported" );
+		}
+	}
+
+	public int numSetups()
+	{
+		return numSetups;
+	}
+
+	public int numTimepoints()
+	{
+		return numTimepoints;
+	}
+
+	/**
+	 * Add a block of pixels to the histogram of view ({@code setup},
+	 * {@code timepoint}). If a block with the same {@code cellIndex} has
+	 * already been added to this view, it is ignored.
+	 *
+	 * @param pixels
+	 *            {@code byte[]} (unsigned 8-bit), {@code short[]} (unsigned
+	 *            16-bit), or {@code float[]}.
+	 */
+	public void accumulate( final int setup, final int timepoint, final long cellIndex, final Object pixels )
+	{
+		final int view = setup + numSetups * timepoint;
+		if ( !accumulatedCells.get( view ).add( cellIndex ) )
+			return;
+
+		final ConcurrentLinkedQueue< IntensityHistogram > pool = partials.get( view );
+		IntensityHistogram histogram = pool.poll();
+		if ( histogram == null )
+			histogram = prototype.createEmpty();
+		try
+		{
+			if ( pixels instanceof byte[] )
+				histogram.add( ( byte[] ) pixels );
+			else if ( pixels instanceof short[] )
+				histogram.add( ( short[] ) pixels );
+			else if ( pixels instanceof float[] )
+				histogram.add( ( float[] ) pixels );
+			else
+				throw new IllegalArgumentException( "unsupported pixel array " + pixels.getClass().getSimpleName() );
+		}
+		finally
+		{
+			pool.offer( histogram );
+		}
+	}
+
+	/**
+	 * @return the histogram of view ({@code setup}, {@code timepoint}). This
+	 *         is a snapshot that is not updated by subsequent
+	 *         {@link #accumulate} calls.
+	 */
+	public IntensityHistogram getHistogram( final int setup, final int timepoint )
+	{
+		final IntensityHistogram histogram = prototype.createEmpty();
+		for ( final IntensityHistogram partial : partials.get( setup + numSetups * timepoint ) )
+			histogram.add( partial );
+		return histogram;
+	}
+
+	/**
+	 * @return the histogram of all timepoints of {@code setup}.
+	 */
+	public IntensityHistogram getSetupHistogram( final int setup )
+	{
+		final IntensityHistogram histogram = prototype.createEmpty();
+		for ( int t = 0; t < numTimepoints; ++t )
+			histogram.add( getHistogram( setup, t ) );
+		return histogram;
+	}
+
+	/**
+	 * @return the histogram of all views.
+	 */
+	public IntensityHistogram getHistogram()
+	{
+		final IntensityHistogram histogram = prototype.createEmpty();
+		for ( int s = 0; s < numSetups; ++s )
+			histogram.add( getSetupHistogram( s ) );
+		return histogram;
+	}
+}
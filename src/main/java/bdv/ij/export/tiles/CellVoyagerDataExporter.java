@@ -25,17 +25,26 @@ import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.janelia.saalfeldlab.n5.Compression;
+import org.jdom2.Attribute;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.input.SAXBuilder;
 
+import bdv.export.ExportMipmapInfo;
 import bdv.export.ProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
+import bdv.ij.export.ParallelExport;
 import bdv.ij.util.PluginHelper;
 import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.Partition;
+import bdv.img.n5.N5ImageLoader;
 import bdv.spimdata.SequenceDescriptionMinimal;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
@@ -46,6 +55,7 @@ import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Tile;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.TimePoints;
 import mpicbg.spim.data.sequence.VoxelDimensions;
@@ -126,6 +136,7 @@ public class CellVoyagerDataExporter
 		 * Channels
 		 */
 
+		final List< ChannelInfo > channelSettings = new ArrayList<>();
 		final Element channelsEl = root.getChild( CHANNELS_ELEMENT );
 		final List< Element > channelElements = channelsEl.getChildren();
 
@@ -138,7 +149,7 @@ public class CellVoyagerDataExporter
 			}
 
 			final ChannelInfo ci = new ChannelInfo();
-			channels.add( ci );
+			channelSettings.add( ci );
 
 			ci.isEnabled = true;
 
@@ -167,68 +178,41 @@ public class CellVoyagerDataExporter
 		}
 
 		/*
-		 * Fields, for each channel
+		 * Fields, for each well, area, and channel
 		 */
 
-		for ( final ChannelInfo channelInfo : channels )
+		final List< Element > wellElements = root.getChild( "Wells" ).getChildren( "Well" );
+		for ( final Element wellElement : wellElements )
 		{
-
-			final List< Element > fieldElements = root.getChild( "Wells" ).getChild( "Well" ).getChild( "Areas" ).getChild( "Area" ).getChild( "Fields" ).getChildren( "Field" );
-
-			// Read field position in um
-			double xmin = Double.POSITIVE_INFINITY;
-			double ymin = Double.POSITIVE_INFINITY;
-			double xmax = Double.NEGATIVE_INFINITY;
-			double ymax = Double.NEGATIVE_INFINITY;
-			final ArrayList< double[] > offsetsUm = new ArrayList<>();
-			for ( final Element fieldElement : fieldElements )
+			final int wellRow = readIndex( wellElement, "Row", 1 );
+			final int wellColumn = readIndex( wellElement, "Column", 1 );
+			final Element areasElement = wellElement.getChild( "Areas" );
+			if ( areasElement == null )
 			{
+				continue;
+			}
 
-				final double xum = Double.parseDouble( fieldElement.getChildText( "StageX_um" ) );
-				if ( xum < xmin )
-				{
-					xmin = xum;
-				}
-				if ( xum > xmax )
+			final List< Element > areaElements = areasElement.getChildren( "Area" );
+			for ( int areaOrdinal = 0; areaOrdinal < areaElements.size(); areaOrdinal++ )
+			{
+				final Element areaElement = areaElements.get( areaOrdinal );
+				final int areaIndex = readIndex( areaElement, "AreaIndex", areaOrdinal + 1 );
+				final Element fieldsElement = areaElement.getChild( "Fields" );
+				if ( fieldsElement == null || fieldsElement.getChildren( "Field" ).isEmpty() )
 				{
-					xmax = xum;
+					continue;
 				}
 
-				/*
-				 * Careful! For the fields to be padded correctly, we need to
-				 * invert their Y position, so that it matches the pixel
-				 * orientation.
-				 */
-				final double yum = -Double.parseDouble( fieldElement.getChildText( "StageY_um" ) );
-				if ( yum < ymin )
+				for ( final ChannelInfo settings : channelSettings )
 				{
-					ymin = yum;
+					final ChannelInfo channelInfo = settings.copy();
+					channelInfo.wellRow = wellRow;
+					channelInfo.wellColumn = wellColumn;
+					channelInfo.areaIndex = areaIndex;
+					readFields( channelInfo, fieldsElement.getChildren( "Field" ), magnification );
+					channels.add( channelInfo );
 				}
-				if ( yum > ymax )
-				{
-					ymax = yum;
-				}
-
-				offsetsUm.add( new double[] { xum, yum } );
 			}
-
-			// Convert in pixel position
-			final List< long[] > offsets = new ArrayList<>();
-			for ( final double[] offsetUm : offsetsUm )
-			{
-				final long x = ( long ) ( ( offsetUm[ 0 ] - xmin ) / ( channelInfo.unmagnifiedPixelWidth / magnification ) );
-				final long y = ( long ) ( ( offsetUm[ 1 ] - ymin ) / ( channelInfo.unmagnifiedPixelHeight / magnification ) );
-
-				offsets.add( new long[] { x, y } );
-			}
-
-			channelInfo.offsets = offsets;
-
-			final int width = 1 + ( int ) ( ( xmax - xmin ) / ( channelInfo.unmagnifiedPixelWidth / magnification ) );
-			final int height = 1 + ( int ) ( ( ymax - ymin ) / ( channelInfo.unmagnifiedPixelWidth / magnification ) );
-			channelInfo.width = width + channelInfo.tileWidth;
-			channelInfo.height = height + channelInfo.tileHeight;
-
 		}
 
 		/*
@@ -249,6 +233,98 @@ public class CellVoyagerDataExporter
 		return channels;
 	}
 
+	/**
+	 * Read the position of each field of an area, and set the field offsets
+	 * and the stitched size of {@code channelInfo}.
+	 */
+	private static void readFields( final ChannelInfo channelInfo, final List< Element > fieldElements, final double magnification )
+	{
+		// Read field position in um
+		double xmin = Double.POSITIVE_INFINITY;
+		double ymin = Double.POSITIVE_INFINITY;
+		double xmax = Double.NEGATIVE_INFINITY;
+		double ymax = Double.NEGATIVE_INFINITY;
+		final ArrayList< double[] > offsetsUm = new ArrayList<>();
+		for ( final Element fieldElement : fieldElements )
+		{
+
+			final double xum = Double.parseDouble( fieldElement.getChildText( "StageX_um" ) );
+			if ( xum < xmin )
+			{
+				xmin = xum;
+			}
+			if ( xum > xmax )
+			{
+				xmax = xum;
+			}
+
+			/*
+			 * Careful! For the fields to be padded correctly, we need to
+			 * invert their Y position, so that it matches the pixel
+			 * orientation.
+			 */
+			final double yum = -Double.parseDouble( fieldElement.getChildText( "StageY_um" ) );
+			if ( yum < ymin )
+			{
+				ymin = yum;
+			}
+			if ( yum > ymax )
+			{
+				ymax = yum;
+			}
+
+			offsetsUm.add( new double[] { xum, yum } );
+		}
+
+		// Convert in pixel position
+		final List< long[] > offsets = new ArrayList<>();
+		for ( final double[] offsetUm : offsetsUm )
+		{
+			final long x = ( long ) ( ( offsetUm[ 0 ] - xmin ) / ( channelInfo.unmagnifiedPixelWidth / magnification ) );
+			final long y = ( long ) ( ( offsetUm[ 1 ] - ymin ) / ( channelInfo.unmagnifiedPixelHeight / magnification ) );
+
+			offsets.add( new long[] { x, y } );
+		}
+
+		channelInfo.offsets = offsets;
+
+		final int width = 1 + ( int ) ( ( xmax - xmin ) / ( channelInfo.unmagnifiedPixelWidth / magnification ) );
+		final int height = 1 + ( int ) ( ( ymax - ymin ) / ( channelInfo.unmagnifiedPixelWidth / magnification ) );
+		channelInfo.width = width + channelInfo.tileWidth;
+		channelInfo.height = height + channelInfo.tileHeight;
+	}
+
+	/**
+	 * Read a 1-based index of a well or area, from a child element or an
+	 * attribute (in any namespace) with the given name.
+	 */
+	private static int readIndex( final Element element, final String name, final int defaultValue )
+	{
+		String value = element.getChildText( name );
+		if ( value == null )
+		{
+			for ( final Attribute attribute : element.getAttributes() )
+			{
+				if ( attribute.getName().equals( name ) )
+				{
+					value = attribute.getValue();
+				}
+			}
+		}
+		if ( value == null )
+		{
+			return defaultValue;
+		}
+		try
+		{
+			return Integer.parseInt( value.trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+
 	public TimePoints readTimePoints()
 	{
 		final Element root = document.getRootElement();
@@ -290,15 +366,119 @@ public class CellVoyagerDataExporter
 		progressWriter.setProgress( 0d );
 
 		final List< ChannelInfo > channelInfos = readInfo();
+		final SequenceDescriptionMinimal sequenceDescriptionHDF5 = createSequenceDescription( channelInfos );
+		final List< BasicViewSetup > setups = sequenceDescriptionHDF5.getViewSetupsOrdered();
+
+		/*
+		 * Write to HDF5, one partition per well if there are several
+		 */
+
+		final Map< String, List< Integer > > wellSetupIds = new LinkedHashMap<>();
+		for ( int i = 0; i < channelInfos.size(); i++ )
+		{
+			wellSetupIds.computeIfAbsent( channelInfos.get( i ).getWellName(), k -> new ArrayList<>() ).add( setups.get( i ).getId() );
+		}
+
+		final int numThreads = PluginHelper.numThreads();
+		final ArrayList< Partition > partitions;
+		if ( wellSetupIds.size() <= 1 )
+		{
+			partitions = null;
+			final int numCellCreatorThreads = Math.max( 1, numThreads - 1 );
+			WriteSequenceToHdf5.writeHdf5File( sequenceDescriptionHDF5, resolutions, chunks, true, hdf5File, null, null, numCellCreatorThreads, progressWriter );
+		}
+		else
+		{
+			partitions = writeWellPartitions( sequenceDescriptionHDF5, wellSetupIds, resolutions, chunks, hdf5File, numThreads, progressWriter );
+		}
+
+		/*
+		 * write XML sequence description
+		 */
+
+		final SequenceDescriptionMinimal sequenceDescriptionXML = sequenceDescriptionHDF5;
+		sequenceDescriptionXML.setImgLoader( new Hdf5ImageLoader( hdf5File, partitions, sequenceDescriptionXML, false ) );
+		saveXml( seqFile, sequenceDescriptionXML );
+
+		progressWriter.setProgress( 1d );
+
+	}
+
+	/**
+	 * Export the target dataset to a xml/n5 couple. Views are written
+	 * concurrently as decided by {@link ParallelExport}.
+	 *
+	 * @param seqFile
+	 *            the path to the target XML file to write.
+	 * @param n5File
+	 *            the path to the target N5 container to write.
+	 * @param resolutions
+	 *            the resolution definition for each level.
+	 * @param chunks
+	 *            the block size definition for each level.
+	 * @param compression
+	 *            the compression of N5 blocks.
+	 * @param progressWriter
+	 *            a {@link ProgressWriter} that will advance from 0 to 1 while
+	 *            this method executes.
+	 */
+	public void exportN5( final File seqFile, final File n5File, final int[][] resolutions, final int[][] chunks, final Compression compression, final ProgressWriter progressWriter )
+	{
+
+		progressWriter.setProgress( 0d );
+
+		final List< ChannelInfo > channelInfos = readInfo();
+		final SequenceDescriptionMinimal sequenceDescription = createSequenceDescription( channelInfos );
+
+		/*
+		 * Write to N5
+		 */
+
+		final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo = new HashMap<>();
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, chunks );
+		for ( final BasicViewSetup setup : sequenceDescription.getViewSetupsOrdered() )
+		{
+			perSetupMipmapInfo.put( setup.getId(), mipmapInfo );
+		}
+
+		try
+		{
+			ParallelExport.writeN5File( sequenceDescription, perSetupMipmapInfo, compression, n5File, null, null, PluginHelper.numThreads(), progressWriter );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		/*
+		 * write XML sequence description
+		 */
+
+		sequenceDescription.setImgLoader( new N5ImageLoader( n5File, null ) );
+		saveXml( seqFile, sequenceDescription );
+
+		progressWriter.setProgress( 1d );
+
+	}
+
+	/**
+	 * Create a sequence description with one setup per (well, area, channel)
+	 * and a {@link TileImgLoader}.
+	 */
+	private SequenceDescriptionMinimal createSequenceDescription( final List< ChannelInfo > channelInfos )
+	{
 		/*
 		 * Create view setups
 		 */
 
 		final List< BasicViewSetup > setups = new ArrayList<>( channelInfos.size() );
+		final Map< String, Tile > tiles = new LinkedHashMap<>();
 		int viewSetupIndex = 0;
 		for ( final ChannelInfo channelInfo : channelInfos )
 		{
 			final Channel channel = new Channel( channelInfo.channelNumber );
+			final String tileName = channelInfo.getWellName() + "-a" + channelInfo.areaIndex;
+			final Tile tile = tiles.computeIfAbsent( tileName, name -> new Tile( tiles.size(), name ) );
 			final Dimensions size = new FinalDimensions( new int[] {
 					channelInfo.width,
 					channelInfo.height,
@@ -308,8 +488,9 @@ public class CellVoyagerDataExporter
 					channelInfo.pixelWidth,
 					channelInfo.pixelHeight,
 					channelInfo.pixelDepth );
-			final BasicViewSetup viewSetup = new BasicViewSetup( viewSetupIndex++, null, size, voxelSize );
+			final BasicViewSetup viewSetup = new BasicViewSetup( viewSetupIndex++, tileName + "-c" + channelInfo.channelNumber, size, voxelSize );
 			viewSetup.setAttribute( channel );
+			viewSetup.setAttribute( tile );
 			setups.add( viewSetup );
 		}
 
@@ -329,31 +510,23 @@ public class CellVoyagerDataExporter
 		 * Sequence description
 		 */
 
-		final SequenceDescriptionMinimal sequenceDescriptionHDF5 = new SequenceDescriptionMinimal( timePoints, Entity.idMap( setups ), imgLoader, null );
-
-		/*
-		 * Write to HDF5
-		 */
-
-		final int numCellCreatorThreads = Math.max( 1, PluginHelper.numThreads() - 1 );
-		WriteSequenceToHdf5.writeHdf5File( sequenceDescriptionHDF5, resolutions, chunks, true, hdf5File, null, null, numCellCreatorThreads, progressWriter );
-
-		/*
-		 * write XML sequence description
-		 */
-
-		final SequenceDescriptionMinimal sequenceDescriptionXML = sequenceDescriptionHDF5;
-		sequenceDescriptionXML.setImgLoader( new Hdf5ImageLoader( hdf5File, null, sequenceDescriptionXML, false ) );
+		return new SequenceDescriptionMinimal( timePoints, Entity.idMap( setups ), imgLoader, null );
+	}
 
+	/**
+	 * Write the XML file for {@code sequenceDescription}, with a single
+	 * calibration transform for all time points of a view.
+	 */
+	private static void saveXml( final File seqFile, final SequenceDescriptionMinimal sequenceDescription )
+	{
 		/*
 		 * Build views
 		 */
 
 		final ArrayList< ViewRegistration > registrations = new ArrayList<>();
 
-		for ( int setupIndex = 0; setupIndex < setups.size(); setupIndex++ )
+		for ( final BasicViewSetup viewSetup : sequenceDescription.getViewSetupsOrdered() )
 		{
-			final BasicViewSetup viewSetup = setups.get( setupIndex );
 			final int setupId = viewSetup.getId();
 
 			// A single transform for all the time points of a view
@@ -364,7 +537,7 @@ public class CellVoyagerDataExporter
 			final AffineTransform3D sourceTransform = new AffineTransform3D();
 			sourceTransform.set( pw, 0, 0, 0, 0, ph, 0, 0, 0, 0, pd, 0 );
 
-			for ( final TimePoint timepoint : timePoints.getTimePointsOrdered() )
+			for ( final TimePoint timepoint : sequenceDescription.getTimePoints().getTimePointsOrdered() )
 			{
 				final int timepointId = timepoint.getId();
 				final ViewRegistration view = new ViewRegistration( timepointId, setupId, sourceTransform );
@@ -373,7 +546,7 @@ public class CellVoyagerDataExporter
 		}
 
 		final ViewRegistrations viewRegistrations = new ViewRegistrations( registrations );
-		final SpimDataMinimal spimData = new SpimDataMinimal( seqFile.getParentFile(), sequenceDescriptionXML, viewRegistrations );
+		final SpimDataMinimal spimData = new SpimDataMinimal( seqFile.getParentFile(), sequenceDescription, viewRegistrations );
 		try
 		{
 			new XmlIoSpimDataMinimal().save( spimData, seqFile.getAbsolutePath() );
@@ -383,9 +556,56 @@ public class CellVoyagerDataExporter
 		{
 			throw new RuntimeException( e );
 		}
+	}
+
+	/**
+	 * Write one HDF5 partition per well, and a link file {@code hdf5File}
+	 * that combines them. Wells are written concurrently (see
+	 * {@link ParallelExport}), and share the {@code numThreads} thread budget.
+	 *
+	 * @return the partitions.
+	 */
+	private static ArrayList< Partition > writeWellPartitions(
+			final SequenceDescriptionMinimal seq,
+			final Map< String, List< Integer > > wellSetupIds,
+			final int[][] resolutions,
+			final int[][] chunks,
+			final File hdf5File,
+			final int numThreads,
+			final ProgressWriter progressWriter )
+	{
+		final String hdf5Filename = hdf5File.getAbsolutePath();
+		final String basename = hdf5Filename.endsWith( ".h5" ) ? hdf5Filename.substring( 0, hdf5Filename.length() - 3 ) : hdf5Filename;
+
+		final HashMap< Integer, Integer > timepointIdentityMap = new HashMap<>();
+		for ( final TimePoint timepoint : seq.getTimePoints().getTimePointsOrdered() )
+		{
+			timepointIdentityMap.put( timepoint.getId(), timepoint.getId() );
+		}
 
-		progressWriter.setProgress( 1d );
+		final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo = new HashMap<>();
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, chunks );
+		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+		{
+			perSetupMipmapInfo.put( setup.getId(), mipmapInfo );
+		}
 
+		final ArrayList< Partition > partitions = new ArrayList<>();
+		for ( final Map.Entry< String, List< Integer > > well : wellSetupIds.entrySet() )
+		{
+			final HashMap< Integer, Integer > setupIdentityMap = new HashMap<>();
+			for ( final int setupId : well.getValue() )
+			{
+				setupIdentityMap.put( setupId, setupId );
+			}
+			final String path = String.format( "%s-%s.h5", basename, well.getKey() );
+			partitions.add( new Partition( path, timepointIdentityMap, setupIdentityMap ) );
+		}
+
+		ParallelExport.writeHdf5PartitionFiles( seq, perSetupMipmapInfo, true, partitions, null, null, numThreads, progressWriter );
+
+		WriteSequenceToHdf5.writeHdf5PartitionLinkFile( seq, perSetupMipmapInfo, partitions, hdf5File );
+		return partitions;
 	}
 
 	public static final class ChannelInfo
@@ -423,11 +643,64 @@ public class CellVoyagerDataExporter
 
 		public int channelNumber;
 
+		/**
+		 * 1-based row of the well.
+		 */
+		public int wellRow = 1;
+
+		/**
+		 * 1-based column of the well.
+		 */
+		public int wellColumn = 1;
+
+		/**
+		 * 1-based index of the area within the well.
+		 */
+		public int areaIndex = 1;
+
+		/**
+		 * @return a copy of this {@link ChannelInfo}. The list of offsets is
+		 *         shared.
+		 */
+		public ChannelInfo copy()
+		{
+			final ChannelInfo ci = new ChannelInfo();
+			ci.height = height;
+			ci.width = width;
+			ci.nZSlices = nZSlices;
+			ci.spaceUnits = spaceUnits;
+			ci.pixelHeight = pixelHeight;
+			ci.pixelWidth = pixelWidth;
+			ci.pixelDepth = pixelDepth;
+			ci.offsets = offsets;
+			ci.isEnabled = isEnabled;
+			ci.bitDepth = bitDepth;
+			ci.channelColor = channelColor;
+			ci.unmagnifiedPixelHeight = unmagnifiedPixelHeight;
+			ci.unmagnifiedPixelWidth = unmagnifiedPixelWidth;
+			ci.tileHeight = tileHeight;
+			ci.tileWidth = tileWidth;
+			ci.channelNumber = channelNumber;
+			ci.wellRow = wellRow;
+			ci.wellColumn = wellColumn;
+			ci.areaIndex = areaIndex;
+			return ci;
+		}
+
+		/**
+		 * @return a name for the well of this channel, e.g. {@code "r01c02"}.
+		 */
+		public String getWellName()
+		{
+			return String.format( "r%02dc%02d", wellRow, wellColumn );
+		}
+
 		@Override
 		public String toString()
 		{
 			final StringBuffer str = new StringBuffer();
 			str.append( "Channel " + channelNumber + ": \n" );
+			str.append( " - well: " + getWellName() + ", area: " + areaIndex + "\n" );
 			str.append( " - isEnabled: " + isEnabled + "\n" );
 			str.append( " - width: " + width + "\n" );
 			str.append( " - height: " + height + "\n" );
@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.tiles;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The non-MIP measurement records of a CellVoyager {@code ImageIndex.xml}
+ * file. The file is parsed with a streaming (StAX) parser, and records are
+ * stored in primitive arrays, indexed by (well row, well column, area,
+ * timepoint, channel). Records without {@code Row}, {@code Column}, or
+ * {@code AreaIndex} attributes are assigned to well (1, 1), area 1.
+ */
+class ImageIndex
+{
+	private static final String NAMESPACE_URI = "http://www.yokogawa.co.jp/BTS/BTSSchema/1.0";
+
+	private static final String ROOT_ELEMENT = "ImageIndex";
+
+	private static final String RECORD_ELEMENT = "MeasurementRecord";
+
+	private int numRecords;
+
+	private int[] fields = new int[ 1024 ];
+
+	private double[] zs = new double[ 1024 ];
+
+	private String[] filenames = new String[ 1024 ];
+
+	/**
+	 * Maps (well row, well column, area, timepoint, channel) to the indices of
+	 * its records.
+	 */
+	private final HashMap< Key, IntList > recordsByView = new HashMap<>();
+
+	private ImageIndex()
+	{}
+
+	/**
+	 * Parse the given {@code ImageIndex.xml} file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the file cannot be read or is not a CellVoyager Image
+	 *             Index file.
+	 */
+	public static ImageIndex read( final File imageIndexFile )
+	{
+		final ImageIndex index = new ImageIndex();
+		try ( final InputStream in = new FileInputStream( imageIndexFile ) )
+		{
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+			final XMLStreamReader reader = factory.createXMLStreamReader( in );
+			try
+			{
+				reader.nextTag();
+				if ( !reader.getLocalName().equals( ROOT_ELEMENT ) ) { throw new IllegalArgumentException( "The target file " + imageIndexFile + " is not a CellVoyager Image Index file." ); }
+
+				while ( reader.hasNext() )
+				{
+					if ( reader.next() == XMLStreamConstants.START_ELEMENT
+							&& reader.getLocalName().equals( RECORD_ELEMENT )
+							&& NAMESPACE_URI.equals( reader.getNamespaceURI() ) )
+						index.readRecord( reader );
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IllegalArgumentException( "The target file " + imageIndexFile + " is malformed:\n" + e.getMessage() );
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalArgumentException( "Trouble reading " + imageIndexFile + ":\n" + e.getMessage() );
+		}
+		index.trim();
+		return index;
+	}
+
+	private void readRecord( final XMLStreamReader reader ) throws XMLStreamException
+	{
+		final int row;
+		final int column;
+		final int area;
+		final int field;
+		final int timepoint;
+		final int channel;
+		final double z;
+		final boolean isMIP;
+		try
+		{
+			row = Integer.parseInt( attribute( reader, "Row", "1" ) );
+			column = Integer.parseInt( attribute( reader, "Column", "1" ) );
+			area = Integer.parseInt( attribute( reader, "AreaIndex", "1" ) );
+			field = Integer.parseInt( attribute( reader, "FieldIndex" ) );
+			timepoint = Integer.parseInt( attribute( reader, "TimePoint" ) );
+			z = Double.parseDouble( attribute( reader, "Z" ) );
+			channel = Integer.parseInt( attribute( reader, "Ch" ) );
+			isMIP = parseBoolean( attribute( reader, "Mip" ) );
+		}
+		catch ( final NumberFormatException | NullPointerException e )
+		{
+			System.err.println( "Incorrect attribute formatting for " + RECORD_ELEMENT + " at line " + reader.getLocation().getLineNumber() );
+			return;
+		}
+
+		// consumes the element up to its end tag
+		final String filename = reader.getElementText();
+		if ( isMIP )
+			return;
+
+		if ( numRecords == fields.length )
+		{
+			final int capacity = 2 * numRecords;
+			fields = Arrays.copyOf( fields, capacity );
+			zs = Arrays.copyOf( zs, capacity );
+			filenames = Arrays.copyOf( filenames, capacity );
+		}
+		fields[ numRecords ] = field;
+		zs[ numRecords ] = z;
+		// Comply to local path separator
+		filenames[ numRecords ] = filename.trim().replace( '\\', File.separatorChar );
+		recordsByView.computeIfAbsent( new Key( row, column, area, timepoint, channel ), k -> new IntList() ).add( numRecords );
+		++numRecords;
+	}
+
+	private void trim()
+	{
+		fields = Arrays.copyOf( fields, numRecords );
+		zs = Arrays.copyOf( zs, numRecords );
+		filenames = Arrays.copyOf( filenames, numRecords );
+		recordsByView.values().forEach( IntList::trim );
+	}
+
+	/**
+	 * Get the tiles of the given well, area, timepoint, and channel, as a map
+	 * of z to the tiles at that z. The tiles are a map of field index to
+	 * filename (relative to the image index file).
+	 */
+	public TreeMap< Double, Map< Integer, String > > getTiles( final int row, final int column, final int area, final int timepoint, final int channel )
+	{
+		final TreeMap< Double, Map< Integer, String > > tiles = new TreeMap<>();
+		final IntList records = recordsByView.get( new Key( row, column, area, timepoint, channel ) );
+		if ( records != null )
+			for ( int i = 0; i < records.size; ++i )
+			{
+				final int r = records.values[ i ];
+				tiles.computeIfAbsent( zs[ r ], k -> new HashMap<>() ).put( fields[ r ], filenames[ r ] );
+			}
+		return tiles;
+	}
+
+	/**
+	 * Get the tiles of the given timepoint and channel, regardless of well and
+	 * area. For experiments with a single well and area, where the well and
+	 * area attributes of the records need not agree with
+	 * {@code MeasurementSetting.xml}.
+	 */
+	public TreeMap< Double, Map< Integer, String > > getTiles( final int timepoint, final int channel )
+	{
+		final TreeMap< Double, Map< Integer, String > > tiles = new TreeMap<>();
+		for ( final Map.Entry< Key, IntList > entry : recordsByView.entrySet() )
+		{
+			final Key key = entry.getKey();
+			if ( key.timepoint != timepoint || key.channel != channel )
+				continue;
+			final IntList records = entry.getValue();
+			for ( int i = 0; i < records.size; ++i )
+			{
+				final int r = records.values[ i ];
+				tiles.computeIfAbsent( zs[ r ], k -> new HashMap<>() ).put( fields[ r ], filenames[ r ] );
+			}
+		}
+		return tiles;
+	}
+
+	public int numRecords()
+	{
+		return numRecords;
+	}
+
+	private static String attribute( final XMLStreamReader reader, final String name )
+	{
+		return reader.getAttributeValue( NAMESPACE_URI, name ).trim();
+	}
+
+	private static String attribute( final XMLStreamReader reader, final String name, final String defaultValue )
+	{
+		final String value = reader.getAttributeValue( NAMESPACE_URI, name );
+		return value == null ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Parse booleans the way JDOM's {@code Attribute.getBooleanValue()} does.
+	 */
+	private static boolean parseBoolean( final String value )
+	{
+		if ( value.equalsIgnoreCase( "true" ) || value.equalsIgnoreCase( "on" ) || value.equalsIgnoreCase( "yes" ) || value.equals( "1" ) )
+			return true;
+		if ( value.equalsIgnoreCase( "false" ) || value.equalsIgnoreCase( "off" ) || value.equalsIgnoreCase( "no" ) || value.equals( "0" ) )
+			return false;
+		throw new NumberFormatException( value );
+	}
+
+	private static final class Key
+	{
+		private final int row;
+
+		private final int column;
+
+		private final int area;
+
+		private final int timepoint;
+
+		private final int channel;
+
+		Key( final int row, final int column, final int area, final int timepoint, final int channel )
+		{
+			this.row = row;
+			this.column = column;
+			this.area = area;
+			this.timepoint = timepoint;
+			this.channel = channel;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key k = ( Key ) o;
+			return row == k.row && column == k.column && area == k.area && timepoint == k.timepoint && channel == k.channel;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = row;
+			h = 31 * h + column;
+			h = 31 * h + area;
+			h = 31 * h + timepoint;
+			return 31 * h + channel;
+		}
+	}
+
+	private static class IntList
+	{
+		int[] values = new int[ 16 ];
+
+		int size;
+
+		void add( final int value )
+		{
+			if ( size == values.length )
+				values = Arrays.copyOf( values, 2 * size );
+			values[ size++ ] = value;
+		}
+
+		void trim()
+		{
+			values = Arrays.copyOf( values, size );
+		}
+	}
+}
@@ -22,45 +22,58 @@
 package bdv.ij.export.tiles;
 
 import java.io.File;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-
-import org.jdom2.DataConversionException;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.JDOMException;
-import org.jdom2.Namespace;
-import org.jdom2.input.SAXBuilder;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import bdv.ij.export.tiles.CellVoyagerDataExporter.ChannelInfo;
 import ij.ImagePlus;
+import ij.process.ImageProcessor;
 import mpicbg.spim.data.legacy.LegacyBasicImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
-import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.array.ArrayRandomAccess;
-import net.imglib2.img.basictypeaccess.array.ShortArray;
-import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.cache.ref.BoundedSoftRefLoaderCache;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 
+/**
+ * Loads CellVoyager views as cell images, with one cell per tile-sized block
+ * of a z plane. Cells are assembled on demand from the fields that overlap
+ * them, so views of any size can be loaded without holding the stitched
+ * volume in memory.
+ */
 public class LegacyTileImgLoader implements LegacyBasicImgLoader< UnsignedShortType >
 {
 
-	private static final Namespace NAMESPACE = Namespace.getNamespace( "bts", "http://www.yokogawa.co.jp/BTS/BTSSchema/1.0" );
-
 	private final File imageIndexFile;
 
-	private Document document;
+	private final ImageIndex index;
 
 	private final List< ChannelInfo > channelInfos;
 
+	/**
+	 * Whether all channels belong to the same well and area. Then tiles are
+	 * matched by timepoint and channel only, as the well and area attributes
+	 * of {@code ImageIndex.xml} records need not agree with
+	 * {@code MeasurementSetting.xml}.
+	 */
+	private final boolean singleLocation;
+
+	/**
+	 * Decoded tiles, shared by all views. A tile usually overlaps several
+	 * cells, so it is kept until all of them are assembled.
+	 */
+	private final BoundedSoftRefLoaderCache< File, ImageProcessor > tileCache;
+
+	private final long maxCacheSizeInBytes = Runtime.getRuntime().maxMemory() / 4;
+
 	public LegacyTileImgLoader( final File imageIndexFile, final List< ChannelInfo > channelInfos )
 	{
 
@@ -69,22 +82,17 @@ public class LegacyTileImgLoader implements LegacyBasicImgLoader< UnsignedShortT
 
 		this.imageIndexFile = imageIndexFile;
 		this.channelInfos = channelInfos;
-		final SAXBuilder builder = new SAXBuilder();
-		try
-		{
-			document = builder.build( imageIndexFile );
-		}
-		catch ( final JDOMException e )
-		{
-			throw new IllegalArgumentException( "The target file " + imageIndexFile + " is malformed:\n" + e.getMessage() );
-		}
-		catch ( final IOException e )
-		{
-			throw new IllegalArgumentException( "Trouble reading " + imageIndexFile + ":\n" + e.getMessage() );
-		}
+		index = ImageIndex.read( imageIndexFile );
 
-		if ( !document.getRootElement().getName().equals( "ImageIndex" ) ) { throw new IllegalArgumentException( "The target file " + imageIndexFile + " is not a CellVoyager Image Index file." ); }
+		final Set< String > locations = new HashSet<>();
+		for ( final ChannelInfo channelInfo : channelInfos )
+			locations.add( channelInfo.getWellName() + "-a" + channelInfo.areaIndex );
+		singleLocation = locations.size() <= 1;
 
+		long maxTileSizeInBytes = 1;
+		for ( final ChannelInfo channelInfo : channelInfos )
+			maxTileSizeInBytes = Math.max( maxTileSizeInBytes, 2L * channelInfo.tileWidth * channelInfo.tileHeight );
+		tileCache = new BoundedSoftRefLoaderCache<>( ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, maxCacheSizeInBytes / 2 / maxTileSizeInBytes ) ) );
 	}
 
 	@Override
@@ -97,101 +105,143 @@ public class LegacyTileImgLoader implements LegacyBasicImgLoader< UnsignedShortT
 
 		final int viewChannel = channelInfo.channelNumber;
 
-		/*
-		 * Collect file names
-		 */
-
-		// Map of z -> all the tiles. The tiles are a map of field index ->
+		// List of z -> all the tiles. The tiles are a map of field index ->
 		// filename
-		final TreeMap< Double, Map< Integer, String > > filenames = new TreeMap<>();
-		final Element root = document.getRootElement();
+		final ArrayList< Map< Integer, String > > planes = new ArrayList<>( ( singleLocation
+				? index.getTiles( viewTimePoint, viewChannel )
+				: index.getTiles( channelInfo.wellRow, channelInfo.wellColumn, channelInfo.areaIndex, viewTimePoint, viewChannel ) ).values() );
+		if ( planes.isEmpty() )
+			throw new IllegalStateException( "No records in " + imageIndexFile + " for well " + channelInfo.getWellName()
+					+ ", area " + channelInfo.areaIndex + ", timepoint " + viewTimePoint + ", channel " + viewChannel
+					+ ". Do the Row, Column, and AreaIndex attributes of ImageIndex.xml match MeasurementSetting.xml?" );
+
+		final FieldGrid grid = new FieldGrid( channelInfo );
+		final long[] dimensions = new long[] { channelInfo.width, channelInfo.height, channelInfo.nZSlices };
+		final long cellSizeInBytes = 2L * grid.bucketWidth * grid.bucketHeight;
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( grid.bucketWidth, grid.bucketHeight, 1 )
+				.cacheType( CacheType.BOUNDED_SOFTREF )
+				.maxCacheSize( Math.max( 1, maxCacheSizeInBytes / 2 / cellSizeInBytes ) );
+		return new ReadOnlyCachedCellImgFactory( options ).create(
+				dimensions,
+				new UnsignedShortType(),
+				cell -> loadCell( cell, planes, grid, channelInfo ) );
+	}
 
-		for ( final Element element : root.getChildren( "MeasurementRecord", NAMESPACE ) )
+	/**
+	 * Assemble a cell from the fields of its z plane that overlap it. Fields
+	 * are pasted in order of increasing field index, so later fields cover
+	 * earlier ones where they overlap.
+	 */
+	private void loadCell( final SingleCellArrayImg< UnsignedShortType, ? > cell, final List< Map< Integer, String > > planes, final FieldGrid grid, final ChannelInfo channelInfo ) throws ExecutionException
+	{
+		final int z = ( int ) cell.min( 2 );
+		if ( z >= planes.size() )
+			return;
+		final Map< Integer, String > tilesFilenames = planes.get( z );
+
+		final short[] data = ( short[] ) ( ( ArrayDataAccess< ? > ) cell.update( null ) ).getCurrentStorageArray();
+		final long cx = cell.min( 0 );
+		final long cy = cell.min( 1 );
+		final int cw = ( int ) cell.dimension( 0 );
+		final int ch = ( int ) cell.dimension( 1 );
+		for ( final int fieldIndex : grid.getFields( cx, cy ) )
 		{
-			int field;
-			int timepoint;
-			int channel;
-			double z;
-			boolean isMIP;
-			try
-			{
-				field = element.getAttribute( "FieldIndex", NAMESPACE ).getIntValue();
-				timepoint = element.getAttribute( "TimePoint", NAMESPACE ).getIntValue();
-				z = element.getAttribute( "Z", NAMESPACE ).getDoubleValue();
-				channel = element.getAttribute( "Ch", NAMESPACE ).getIntValue();
-				isMIP = element.getAttribute( "Mip", NAMESPACE ).getBooleanValue();
-			}
-			catch ( final DataConversionException e )
-			{
-				System.err.println( "Incorrect attribute formatting for " + element );
+			// Filename for this Z, this field
+			final String filename = tilesFilenames.get( fieldIndex + 1 );
+			if ( filename == null )
 				continue;
-			}
 
-			if ( isMIP || timepoint != viewTimePoint || channel != viewChannel )
-			{
-				continue;
-			}
-
-			final String filename = element.getText();
-			final Double dz = Double.valueOf( z );
-			Map< Integer, String > tilesAtZ = filenames.get( dz );
-			if ( null == tilesAtZ )
-			{
-				tilesAtZ = new HashMap<>();
-				filenames.put( dz, tilesAtZ );
-			}
-			tilesAtZ.put( field, filename );
+			// Offset for this field index
+			final long[] offset = channelInfo.offsets.get( fieldIndex );
 
+			final ImageProcessor ip = tileCache.get( new File( imageIndexFile.getParentFile(), filename ), LegacyTileImgLoader::decode );
+			paste( ip, offset, data, cx, cy, cw, ch );
 		}
+	}
 
-		/*
-		 * Build stack
-		 */
-
-		final long[] dimensions = new long[] { channelInfo.width, channelInfo.height, channelInfo.nZSlices };
-		final ArrayImg< UnsignedShortType, ShortArray > stack = ArrayImgs.unsignedShorts( dimensions );
-		final ArrayRandomAccess< UnsignedShortType > randomAccess = stack.randomAccess();
+	/**
+	 * Open a tile as a 16-bit image.
+	 */
+	private static ImageProcessor decode( final File file )
+	{
+		final ImageProcessor ip = new ImagePlus( file.getAbsolutePath() ).getProcessor();
+		if ( ip == null )
+			throw new RuntimeException( "Could not open " + file );
+		return ip.getPixels() instanceof short[] ? ip : ip.convertToShort( false );
+	}
 
-		final Iterator< Map< Integer, String >> iterator = filenames.values().iterator();
+	/**
+	 * Copy the part of a tile at {@code offset} that intersects the cell at
+	 * {@code (cx, cy)} of size {@code (cw, ch)} into the cell, row by row.
+	 */
+	private static void paste( final ImageProcessor ip, final long[] offset, final short[] cell, final long cx, final long cy, final int cw, final int ch )
+	{
+		final short[] tile = ( short[] ) ip.getPixels();
+		final int tileWidth = ip.getWidth();
+		final long x0 = Math.max( offset[ 0 ], cx );
+		final long x1 = Math.min( offset[ 0 ] + tileWidth, cx + cw );
+		final long y0 = Math.max( offset[ 1 ], cy );
+		final long y1 = Math.min( offset[ 1 ] + ip.getHeight(), cy + ch );
+		if ( x0 >= x1 )
+			return;
+		final int w = ( int ) ( x1 - x0 );
+		for ( long y = y0; y < y1; ++y )
+			System.arraycopy(
+					tile, ( int ) ( ( y - offset[ 1 ] ) * tileWidth + x0 - offset[ 0 ] ),
+					cell, ( int ) ( ( y - cy ) * cw + x0 - cx ),
+					w );
+	}
 
-		for ( int zindex = 0; zindex < filenames.size(); zindex++ )
-		{
-			final Map< Integer, String > tilesFilenames = iterator.next();
+	/**
+	 * Spatial index of the fields of a channel. The stack is divided into
+	 * tile-sized buckets, and each bucket lists the fields that overlap it.
+	 */
+	private static final class FieldGrid
+	{
+		final int bucketWidth;
 
-			for ( final Integer fieldNumber : tilesFilenames.keySet() )
-			{
-				final int fieldIndex = fieldNumber - 1;
+		final int bucketHeight;
 
-				// Filename for this Z, this field
-				String filename = tilesFilenames.get( fieldNumber );
+		private final int numBucketsX;
 
-				// Comply to local path separator
-				filename = filename.replace( '\\', File.separatorChar );
+		private final int[][] buckets;
 
-				// Offset for this field index
+		FieldGrid( final ChannelInfo channelInfo )
+		{
+			bucketWidth = Math.max( 1, channelInfo.tileWidth );
+			bucketHeight = Math.max( 1, channelInfo.tileHeight );
+			numBucketsX = ( channelInfo.width + bucketWidth - 1 ) / bucketWidth;
+			final int numBucketsY = ( channelInfo.height + bucketHeight - 1 ) / bucketHeight;
+
+			final List< List< Integer > > lists = new ArrayList<>();
+			for ( int i = 0; i < numBucketsX * numBucketsY; ++i )
+				lists.add( new ArrayList<>() );
+			for ( int fieldIndex = 0; fieldIndex < channelInfo.offsets.size(); ++fieldIndex )
+			{
 				final long[] offset = channelInfo.offsets.get( fieldIndex );
-
-				// Open and copy this slice on the stack image
-				randomAccess.setPosition( zindex, 2 );
-				final File filePath = new File( imageIndexFile.getParentFile(), filename );
-				final ImagePlus imp = new ImagePlus( filePath.getAbsolutePath() );
-				final Img< UnsignedShortType > sliceImg = ImageJFunctions.wrapShort( imp );
-
-				final Cursor< UnsignedShortType > cursor = sliceImg.cursor();
-				while ( cursor.hasNext() )
-				{
-					cursor.fwd();
-					randomAccess.setPosition( offset[ 0 ] + cursor.getLongPosition( 0 ), 0 );
-					randomAccess.setPosition( offset[ 1 ] + cursor.getLongPosition( 1 ), 1 );
-					randomAccess.get().set( cursor.get() );
-
-				}
-
+				final int bx0 = ( int ) ( offset[ 0 ] / bucketWidth );
+				final int by0 = ( int ) ( offset[ 1 ] / bucketHeight );
+				final int bx1 = ( int ) Math.min( numBucketsX - 1, ( offset[ 0 ] + bucketWidth - 1 ) / bucketWidth );
+				final int by1 = ( int ) Math.min( numBucketsY - 1, ( offset[ 1 ] + bucketHeight - 1 ) / bucketHeight );
+				for ( int by = by0; by <= by1; ++by )
+					for ( int bx = bx0; bx <= bx1; ++bx )
+						lists.get( by * numBucketsX + bx ).add( fieldIndex );
 			}
 
+			buckets = new int[ lists.size() ][];
+			for ( int i = 0; i < buckets.length; ++i )
+				buckets[ i ] = lists.get( i ).stream().mapToInt( Integer::intValue ).toArray();
 		}
 
-		return stack;
+		/**
+		 * Get the indices of the fields overlapping the bucket that starts at
+		 * {@code (x, y)}, in increasing order.
+		 */
+		int[] getFields( final long x, final long y )
+		{
+			return buckets[ ( int ) ( y / bucketHeight ) * numBucketsX + ( int ) ( x / bucketWidth ) ];
+		}
 	}
 
 	@Override
@@ -0,0 +1,45 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img;
+
+/**
+ * Notified by an image loader whenever it has read a block of pixel data
+ * from its source, for example to collect statistics during an export.
+ * Implementations must be thread-safe, because blocks are loaded
+ * concurrently.
+ */
+public interface BlockLoadListener
+{
+	/**
+	 * @param setup
+	 *            setup (channel) index of the block.
+	 * @param timepoint
+	 *            timepoint index of the block.
+	 * @param blockIndex
+	 *            index of the block within its view (the plane index for
+	 *            planar loaders, otherwise the flattened cell grid index).
+	 * @param pixels
+	 *            the block's primitive storage array ({@code byte[]},
+	 *            {@code short[]}, or {@code float[]}). Must not be modified.
+	 */
+	void blockLoaded( int setup, int timepoint, long blockIndex, Object pixels );
+}
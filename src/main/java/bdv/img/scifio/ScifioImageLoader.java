@@ -0,0 +1,526 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img.scifio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Function;
+
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+import net.imglib2.util.IntervalIndexer;
+
+import org.scijava.Context;
+import org.scijava.io.location.FileLocation;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.img.BlockLoadListener;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.Plane;
+import io.scif.Reader;
+import io.scif.SCIFIO;
+import io.scif.SCIFIOService;
+import io.scif.util.FormatTools;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+
+/**
+ * ImageLoader that streams tiles of a file through a pool of SCIFIO
+ * {@link Reader readers} into a {@link VolatileGlobalCellCache}. Only the
+ * file metadata is read up front, so files much larger than the available
+ * memory can be viewed and exported.
+ * <p>
+ * The first image (series) of the file is used. Planes must be single-channel
+ * (X,Y planar axes), with 8-bit or 16-bit unsigned integer or 32-bit float
+ * pixels. The setup id is used as the channel index, the timepoint id as the
+ * time index.
+ *
+ * @param <T>
+ *            (non-volatile) pixel type
+ * @param <V>
+ *            volatile pixel type
+ * @param <A>
+ *            volatile array access type
+ */
+public class ScifioImageLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends DataAccess & VolatileAccess >
+		implements ViewerImgLoader, TypedBasicImgLoader< T >, Closeable
+{
+	/**
+	 * Cells are made at least this many pixels large, by combining optimal
+	 * tiles of consecutive rows.
+	 */
+	private static final int MIN_CELL_SIZE = 1 << 20;
+
+	/**
+	 * Open the first image of {@code file} for reading.
+	 *
+	 * @param context
+	 *            the SciJava context providing the {@link SCIFIOService}. It
+	 *            is not disposed when the loader is closed.
+	 * @param file
+	 *            the file to read.
+	 * @param maxReaders
+	 *            maximum number of readers that are opened concurrently on
+	 *            the file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read, or its pixel type or axes are not
+	 *             supported.
+	 */
+	public static ScifioImageLoader< ?, ?, ? > open( final Context context, final File file, final int maxReaders ) throws IOException
+	{
+		final ReaderPool pool = new ReaderPool( context, file, maxReaders );
+		try
+		{
+			final Reader reader = pool.acquire();
+			final ImageMetadata meta;
+			try
+			{
+				meta = reader.getMetadata().get( 0 );
+			}
+			finally
+			{
+				pool.release( reader );
+			}
+
+			if ( meta.getPlanarAxisCount() != 2
+					|| meta.getAxis( 0 ).type() != Axes.X
+					|| meta.getAxis( 1 ).type() != Axes.Y )
+				throw new IOException( file + ": only single-channel (X,Y) planes are supported" );
+
+			switch ( meta.getPixelType() )
+			{
+			case FormatTools.UINT8:
+				return new ScifioImageLoader<>( pool, meta, bytes -> new VolatileByteArray( bytes.array(), true ), new UnsignedByteType(), new VolatileUnsignedByteType(), 1 );
+			case FormatTools.UINT16:
+				return new ScifioImageLoader<>( pool, meta, bytes -> {
+					final short[] data = new short[ bytes.capacity() / 2 ];
+					bytes.asShortBuffer().get( data );
+					return new VolatileShortArray( data, true );
+				}, new UnsignedShortType(), new VolatileUnsignedShortType(), 2 );
+			case FormatTools.FLOAT:
+				return new ScifioImageLoader<>( pool, meta, bytes -> {
+					final float[] data = new float[ bytes.capacity() / 4 ];
+					bytes.asFloatBuffer().get( data );
+					return new VolatileFloatArray( data, true );
+				}, new FloatType(), new VolatileFloatType(), 4 );
+			default:
+				throw new IOException( file + ": unsupported pixel type " + FormatTools.getPixelTypeString( meta.getPixelType() ) );
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			pool.close();
+			throw e;
+		}
+	}
+
+	private static double[][] mipmapResolutions = new double[][] { { 1, 1, 1 } };
+
+	private static AffineTransform3D[] mipmapTransforms = new AffineTransform3D[] { new AffineTransform3D() };
+
+	private final ReaderPool pool;
+
+	private final ScifioArrayLoader< A > loader;
+
+	private final VolatileGlobalCellCache cache;
+
+	private final long[] dimensions;
+
+	private final int[] cellDimensions;
+
+	private final VoxelDimensions voxelSize;
+
+	private final int numChannels;
+
+	private final int numTimepoints;
+
+	private final int bytesPerPixel;
+
+	private final HashMap< Integer, SetupImgLoader > setupImgLoaders;
+
+	private ScifioImageLoader( final ReaderPool pool, final ImageMetadata meta, final Function< ByteBuffer, A > wrapBytes, final T type, final V volatileType, final int bytesPerPixel )
+	{
+		this.pool = pool;
+		this.bytesPerPixel = bytesPerPixel;
+
+		final long w = meta.getAxisLength( Axes.X );
+		final long h = meta.getAxisLength( Axes.Y );
+		dimensions = new long[] { w, h, meta.getAxisLength( Axes.Z ) };
+		numChannels = ( int ) meta.getAxisLength( Axes.CHANNEL );
+		numTimepoints = ( int ) meta.getAxisLength( Axes.TIME );
+
+		final long tileWidth = meta.getOptimalTileWidth() > 0 ? Math.min( w, meta.getOptimalTileWidth() ) : w;
+		final long tileHeight = meta.getOptimalTileHeight() > 0 ? Math.min( h, meta.getOptimalTileHeight() ) : h;
+		final long minRows = ( MIN_CELL_SIZE + tileWidth - 1 ) / tileWidth;
+		final long cellHeight = Math.min( h, tileHeight * Math.max( 1, ( minRows + tileHeight - 1 ) / tileHeight ) );
+		cellDimensions = new int[] { ( int ) tileWidth, ( int ) cellHeight, 1 };
+
+		voxelSize = new FinalVoxelDimensions(
+				getUnit( meta ),
+				getScale( meta, Axes.X ),
+				getScale( meta, Axes.Y ),
+				getScale( meta, Axes.Z ) );
+
+		loader = new ScifioArrayLoader<>( pool, meta, wrapBytes, bytesPerPixel, new CellGrid( dimensions, cellDimensions ) );
+		cache = new VolatileGlobalCellCache( 1, 1 );
+		setupImgLoaders = new HashMap<>();
+		for ( int setupId = 0; setupId < numChannels; ++setupId )
+			setupImgLoaders.put( setupId, new SetupImgLoader( setupId, type, volatileType ) );
+	}
+
+	private static double getScale( final ImageMetadata meta, final AxisType axisType )
+	{
+		final int d = meta.getAxisIndex( axisType );
+		if ( d < 0 )
+			return 1;
+		final double scale = meta.getAxis( d ).averageScale( 0, 1 );
+		return scale > 0 && !Double.isInfinite( scale ) ? scale : 1;
+	}
+
+	private static String getUnit( final ImageMetadata meta )
+	{
+		final int d = meta.getAxisIndex( Axes.X );
+		final String unit = d < 0 ? null : meta.getAxis( d ).unit();
+		return unit == null || unit.isEmpty() ? "px" : unit;
+	}
+
+	/**
+	 * @return the 3D size of each view.
+	 */
+	public Dimensions getSize()
+	{
+		return new FinalDimensions( dimensions );
+	}
+
+	public VoxelDimensions getVoxelSize()
+	{
+		return voxelSize;
+	}
+
+	public int numChannels()
+	{
+		return numChannels;
+	}
+
+	public int numTimepoints()
+	{
+		return numTimepoints;
+	}
+
+	public int getBytesPerPixel()
+	{
+		return bytesPerPixel;
+	}
+
+	/**
+	 * Notify {@code listener} of every cell that is loaded (or stop doing so,
+	 * if {@code listener == null}).
+	 */
+	public void setBlockLoadListener( final BlockLoadListener listener )
+	{
+		loader.listener = listener;
+	}
+
+	@Override
+	public VolatileGlobalCellCache getCacheControl()
+	{
+		return cache;
+	}
+
+	@Override
+	public SetupImgLoader getSetupImgLoader( final int setupId )
+	{
+		return setupImgLoaders.get( setupId );
+	}
+
+	/**
+	 * Clear the cache and close all readers.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		cache.clearCache();
+		pool.close();
+	}
+
+	/**
+	 * Pool of up to {@code maxReaders} readers on the same file, that are
+	 * created on demand.
+	 */
+	static class ReaderPool implements Closeable
+	{
+		private final File file;
+
+		private final int maxReaders;
+
+		private final SCIFIO scifio;
+
+		private final BlockingQueue< Reader > idle;
+
+		private final List< Reader > all = new ArrayList<>();
+
+		ReaderPool( final Context context, final File file, final int maxReaders )
+		{
+			this.file = file;
+			this.maxReaders = Math.max( 1, maxReaders );
+			scifio = new SCIFIO( context );
+			idle = new ArrayBlockingQueue<>( this.maxReaders );
+		}
+
+		Reader acquire() throws IOException
+		{
+			Reader reader = idle.poll();
+			if ( reader != null )
+				return reader;
+
+			synchronized ( all )
+			{
+				if ( all.size() < maxReaders )
+				{
+					try
+					{
+						reader = scifio.initializer().initializeReader( new FileLocation( file ) );
+					}
+					catch ( final FormatException e )
+					{
+						throw new IOException( e );
+					}
+					all.add( reader );
+					return reader;
+				}
+			}
+
+			try
+			{
+				return idle.take();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( e );
+			}
+		}
+
+		void release( final Reader reader )
+		{
+			idle.offer( reader );
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			synchronized ( all )
+			{
+				for ( final Reader reader : all )
+					reader.close();
+				all.clear();
+				idle.clear();
+			}
+		}
+	}
+
+	static class ScifioArrayLoader< A extends DataAccess > implements CacheArrayLoader< A >
+	{
+		private final ReaderPool pool;
+
+		private final Function< ByteBuffer, A > wrapBytes;
+
+		private final int bytesPerElement;
+
+		private final ByteOrder byteOrder;
+
+		private final long[] nonPlanarLengths;
+
+		private final AxisType[] nonPlanarAxes;
+
+		private final CellGrid grid;
+
+		volatile BlockLoadListener listener;
+
+		ScifioArrayLoader( final ReaderPool pool, final ImageMetadata meta, final Function< ByteBuffer, A > wrapBytes, final int bytesPerElement, final CellGrid grid )
+		{
+			this.pool = pool;
+			this.grid = grid;
+			this.wrapBytes = wrapBytes;
+			this.bytesPerElement = bytesPerElement;
+			byteOrder = meta.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			nonPlanarLengths = meta.getAxesLengthsNonPlanar();
+			final List< CalibratedAxis > axes = meta.getAxesNonPlanar();
+			nonPlanarAxes = new AxisType[ axes.size() ];
+			for ( int i = 0; i < nonPlanarAxes.length; ++i )
+				nonPlanarAxes[ i ] = axes.get( i ).type();
+		}
+
+		@Override
+		public A loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+		{
+			final long[] position = new long[ nonPlanarAxes.length ];
+			for ( int i = 0; i < position.length; ++i )
+			{
+				if ( nonPlanarAxes[ i ] == Axes.Z )
+					position[ i ] = min[ 2 ];
+				else if ( nonPlanarAxes[ i ] == Axes.CHANNEL )
+					position[ i ] = setup;
+				else if ( nonPlanarAxes[ i ] == Axes.TIME )
+					position[ i ] = timepoint;
+			}
+			final long planeIndex = FormatTools.positionToRaster( nonPlanarLengths, position );
+			final FinalInterval bounds = new FinalInterval(
+					new long[] { min[ 0 ], min[ 1 ] },
+					new long[] { min[ 0 ] + dimensions[ 0 ] - 1, min[ 1 ] + dimensions[ 1 ] - 1 } );
+
+			try
+			{
+				final Reader reader = pool.acquire();
+				try
+				{
+					final Plane plane = reader.openPlane( 0, planeIndex, bounds );
+					final int numBytes = dimensions[ 0 ] * dimensions[ 1 ] * bytesPerElement;
+					byte[] bytes = plane.getBytes();
+					if ( bytes.length != numBytes )
+					{
+						final byte[] copy = new byte[ numBytes ];
+						System.arraycopy( bytes, 0, copy, 0, Math.min( numBytes, bytes.length ) );
+						bytes = copy;
+					}
+					final A access = wrapBytes.apply( ByteBuffer.wrap( bytes ).order( byteOrder ) );
+					final BlockLoadListener l = listener;
+					if ( l != null )
+					{
+						final long[] cellPos = new long[ 3 ];
+						for ( int d = 0; d < 3; ++d )
+							cellPos[ d ] = min[ d ] / grid.cellDimension( d );
+						final long cellIndex = IntervalIndexer.positionToIndex( cellPos, grid.getGridDimensions() );
+						l.blockLoaded( setup, timepoint, cellIndex, ( ( ArrayDataAccess< ? > ) access ).getCurrentStorageArray() );
+					}
+					return access;
+				}
+				finally
+				{
+					pool.release( reader );
+				}
+			}
+			catch ( final IOException | FormatException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return bytesPerElement;
+		}
+	}
+
+	public class SetupImgLoader extends AbstractViewerSetupImgLoader< T, V >
+	{
+		private final int setupId;
+
+		protected SetupImgLoader( final int setupId, final T type, final V volatileType )
+		{
+			super( type, volatileType );
+			this.setupId = setupId;
+		}
+
+		@Override
+		public RandomAccessibleInterval< V > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return prepareCachedImage( timepointId, level, LoadingStrategy.BUDGETED, volatileType );
+		}
+
+		@Override
+		public RandomAccessibleInterval< T > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return prepareCachedImage( timepointId, level, LoadingStrategy.BLOCKING, type );
+		}
+
+		/**
+		 * Create a {@link CachedCellImg} backed by the cache.
+		 */
+		protected < T extends NativeType< T > > AbstractCellImg< T, A, ?, ? > prepareCachedImage( final int timepointId, final int level, final LoadingStrategy loadingStrategy, final T type )
+		{
+			final int priority = 0;
+			final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
+			final CellGrid grid = new CellGrid( dimensions, cellDimensions );
+			return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
+		}
+
+		@Override
+		public double[][] getMipmapResolutions()
+		{
+			return mipmapResolutions;
+		}
+
+		@Override
+		public AffineTransform3D[] getMipmapTransforms()
+		{
+			return mipmapTransforms;
+		}
+
+		@Override
+		public int numMipmapLevels()
+		{
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img.tiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.function.Function;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.img.BlockLoadListener;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.virtualstack.VirtualStackImageLoader;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.generic.sequence.TypedBasicImgLoader;
+
+/**
+ * ImageLoader that reads planes directly from a memory-mapped, uncompressed
+ * TIFF file (see {@link TiffPlanes}), bypassing the {@link ImagePlus} virtual
+ * stack and its per-plane {@code ImageProcessor} allocations. Like
+ * {@link VirtualStackImageLoader}, planes are stored in a
+ * {@link VolatileGlobalCellCache}.
+ * <p>
+ * The planes of the file are assumed to be in ImageJ hyperstack order (channel
+ * varies fastest, then slice, then frame). The setup id is used as the channel
+ * index, the timepoint id as the frame index.
+ * <p>
+ * Use {@link #fromImagePlus(ImagePlus, int)} to obtain a loader for the file
+ * backing a virtual stack, if possible.
+ *
+ * @param <T>
+ *            (non-volatile) pixel type
+ * @param <V>
+ *            volatile pixel type
+ * @param <A>
+ *            volatile array access type
+ */
+public class TiffImageLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends DataAccess & VolatileAccess >
+		implements ViewerImgLoader, TypedBasicImgLoader< T >
+{
+	public static TiffImageLoader< FloatType, VolatileFloatType, VolatileFloatArray > createFloatInstance( final TiffPlanes planes, final int numChannels, final int numSlices, final int setupOffset )
+	{
+		return new TiffImageLoader<>( planes, numChannels, numSlices, array -> new VolatileFloatArray( ( float[] ) array, true ), new FloatType(), new VolatileFloatType(), setupOffset );
+	}
+
+	public static TiffImageLoader< UnsignedShortType, VolatileUnsignedShortType, VolatileShortArray > createUnsignedShortInstance( final TiffPlanes planes, final int numChannels, final int numSlices, final int setupOffset )
+	{
+		return new TiffImageLoader<>( planes, numChannels, numSlices, array -> new VolatileShortArray( ( short[] ) array, true ), new UnsignedShortType(), new VolatileUnsignedShortType(), setupOffset );
+	}
+
+	public static TiffImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray > createUnsignedByteInstance( final TiffPlanes planes, final int numChannels, final int numSlices, final int setupOffset )
+	{
+		return new TiffImageLoader<>( planes, numChannels, numSlices, array -> new VolatileByteArray( ( byte[] ) array, true ), new UnsignedByteType(), new VolatileUnsignedByteType(), setupOffset );
+	}
+
+	/**
+	 * Create a loader with pixel type matching the given {@link TiffPlanes}.
+	 */
+	public static TiffImageLoader< ?, ?, ? > create( final TiffPlanes planes, final int numChannels, final int numSlices, final int setupOffset )
+	{
+		switch ( planes.getBitsPerSample() )
+		{
+		case 8:
+			return createUnsignedByteInstance( planes, numChannels, numSlices, setupOffset );
+		case 16:
+			return createUnsignedShortInstance( planes, numChannels, numSlices, setupOffset );
+		case 32:
+		default:
+			return createFloatInstance( planes, numChannels, numSlices, setupOffset );
+		}
+	}
+
+	/**
+	 * Create a loader that reads the planes of a virtual {@link ImagePlus}
+	 * directly from the TIFF file it was opened from.
+	 *
+	 * @return the loader, or {@code null} if {@code imp} is not a virtual
+	 *         stack backed by a single uncompressed TIFF file with matching
+	 *         dimensions and pixel type. In this case, use
+	 *         {@link VirtualStackImageLoader} instead.
+	 */
+	public static TiffImageLoader< ?, ?, ? > fromImagePlus( final ImagePlus imp, final int setupOffset )
+	{
+		if ( !imp.getStack().isVirtual() )
+			return null;
+		final FileInfo fi = imp.getOriginalFileInfo();
+		if ( fi == null || fi.fileName == null || fi.directory == null )
+			return null;
+		final File file = new File( fi.directory, fi.fileName );
+		final String name = file.getName().toLowerCase();
+		if ( !file.isFile() || !( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) ) )
+			return null;
+
+		final TiffPlanes planes;
+		try
+		{
+			planes = TiffPlanes.open( file );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+
+		final int bitDepth = imp.getBitDepth();
+		if ( planes.getWidth() != imp.getWidth()
+				|| planes.getHeight() != imp.getHeight()
+				|| planes.numPlanes() != imp.getStackSize()
+				|| planes.getBitsPerSample() != bitDepth
+				|| planes.isFloat() != ( bitDepth == 32 ) )
+			return null;
+
+		return create( planes, imp.getNChannels(), imp.getNSlices(), setupOffset );
+	}
+
+	private static double[][] mipmapResolutions = new double[][] { { 1, 1, 1 } };
+
+	private static AffineTransform3D[] mipmapTransforms = new AffineTransform3D[] { new AffineTransform3D() };
+
+	private final TiffArrayLoader< A > loader;
+
+	private final VolatileGlobalCellCache cache;
+
+	private final long[] dimensions;
+
+	private final int[] cellDimensions;
+
+	private final HashMap< Integer, SetupImgLoader > setupImgLoaders;
+
+	protected TiffImageLoader( final TiffPlanes planes, final int numChannels, final int numSlices, final Function< Object, A > wrapPixels, final T type, final V volatileType, final int setupOffset )
+	{
+		this.loader = new TiffArrayLoader<>( planes, numChannels, numSlices, wrapPixels );
+		dimensions = new long[] { planes.getWidth(), planes.getHeight(), numSlices };
+		cellDimensions = new int[] { planes.getWidth(), planes.getHeight(), 1 };
+		cache = new VolatileGlobalCellCache( 1, 1 );
+		setupImgLoaders = new HashMap<>();
+		for ( int setupId = 0; setupId < numChannels; ++setupId )
+			setupImgLoaders.put( setupOffset + setupId, new SetupImgLoader( setupId, type, volatileType ) );
+	}
+
+	/**
+	 * Notify {@code listener} of every plane that is loaded (or stop doing so,
+	 * if {@code listener == null}).
+	 */
+	public void setBlockLoadListener( final BlockLoadListener listener )
+	{
+		loader.listener = listener;
+	}
+
+	@Override
+	public VolatileGlobalCellCache getCacheControl()
+	{
+		return cache;
+	}
+
+	@Override
+	public SetupImgLoader getSetupImgLoader( final int setupId )
+	{
+		return setupImgLoaders.get( setupId );
+	}
+
+	static class TiffArrayLoader< A extends DataAccess > implements CacheArrayLoader< A >
+	{
+		private final TiffPlanes planes;
+
+		private final int numChannels;
+
+		private final int numSlices;
+
+		private final Function< Object, A > wrapPixels;
+
+		volatile BlockLoadListener listener;
+
+		public TiffArrayLoader( final TiffPlanes planes, final int numChannels, final int numSlices, final Function< Object, A > wrapPixels )
+		{
+			this.planes = planes;
+			this.numChannels = numChannels;
+			this.numSlices = numSlices;
+			this.wrapPixels = wrapPixels;
+		}
+
+		@Override
+		public A loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+		{
+			final int slice = ( int ) min[ 2 ];
+			final int plane = setup + numChannels * ( slice + numSlices * timepoint );
+			final Object pixels = planes.readPlane( plane );
+			final BlockLoadListener l = listener;
+			if ( l != null )
+				l.blockLoaded( setup, timepoint, slice, pixels );
+			return wrapPixels.apply( pixels );
+		}
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return planes.getBytesPerSample();
+		}
+	}
+
+	public class SetupImgLoader extends AbstractViewerSetupImgLoader< T, V >
+	{
+		private final int setupId;
+
+		protected SetupImgLoader( final int setupId, final T type, final V volatileType )
+		{
+			super( type, volatileType );
+			this.setupId = setupId;
+		}
+
+		@Override
+		public RandomAccessibleInterval< V > getVolatileImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return prepareCachedImage( timepointId, level, LoadingStrategy.BUDGETED, volatileType );
+		}
+
+		@Override
+		public RandomAccessibleInterval< T > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
+		{
+			return prepareCachedImage( timepointId, level, LoadingStrategy.BLOCKING, type );
+		}
+
+		/**
+		 * Create a {@link CachedCellImg} backed by the cache.
+		 */
+		protected < T extends NativeType< T > > AbstractCellImg< T, A, ?, ? > prepareCachedImage( final int timepointId, final int level, final LoadingStrategy loadingStrategy, final T type )
+		{
+			final int priority = 0;
+			final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
+			final CellGrid grid = new CellGrid( dimensions, cellDimensions );
+			return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
+		}
+
+		@Override
+		public double[][] getMipmapResolutions()
+		{
+			return mipmapResolutions;
+		}
+
+		@Override
+		public AffineTransform3D[] getMipmapTransforms()
+		{
+			return mipmapTransforms;
+		}
+
+		@Override
+		public int numMipmapLevels()
+		{
+			return 1;
+		}
+	}
+}
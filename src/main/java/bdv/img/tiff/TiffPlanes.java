@@ -0,0 +1,565 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img.tiff;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The planes of an uncompressed, single-sample (grayscale) TIFF or BigTIFF
+ * file. All IFDs are parsed once on {@link #open(File)}, and the strips of all
+ * planes are memory-mapped. {@link #readPlane(int)} then copies a plane from
+ * the mapping into a primitive array with a single bulk read per strip.
+ * <p>
+ * Large stacks written by ImageJ, which contain only one IFD and announce the
+ * number of images in the ImageJ description, are supported as well.
+ */
+public class TiffPlanes
+{
+	/**
+	 * Maximum size of one memory mapping. Consecutive planes are combined into
+	 * mappings of at most this size.
+	 */
+	private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private static final int TAG_IMAGE_WIDTH = 256;
+
+	private static final int TAG_IMAGE_LENGTH = 257;
+
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+
+	private static final int TAG_COMPRESSION = 259;
+
+	private static final int TAG_IMAGE_DESCRIPTION = 270;
+
+	private static final int TAG_STRIP_OFFSETS = 273;
+
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+
+	private static final int TAG_STRIP_BYTE_COUNTS = 279;
+
+	private static final int TAG_TILE_WIDTH = 322;
+
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	private static final int SAMPLE_FORMAT_UINT = 1;
+
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	private final int width;
+
+	private final int height;
+
+	private final int bitsPerSample;
+
+	private final int sampleFormat;
+
+	private final ByteOrder byteOrder;
+
+	private final String description;
+
+	private final long[][] stripOffsets;
+
+	private final long[][] stripByteCounts;
+
+	private final MappedByteBuffer[] segments;
+
+	private final long[] segmentStart;
+
+	private final int[] planeSegment;
+
+	private TiffPlanes(
+			final int width,
+			final int height,
+			final int bitsPerSample,
+			final int sampleFormat,
+			final ByteOrder byteOrder,
+			final String description,
+			final long[][] stripOffsets,
+			final long[][] stripByteCounts,
+			final FileChannel channel ) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.bitsPerSample = bitsPerSample;
+		this.sampleFormat = sampleFormat;
+		this.byteOrder = byteOrder;
+		this.description = description;
+		this.stripOffsets = stripOffsets;
+		this.stripByteCounts = stripByteCounts;
+
+		if ( channel == null )
+		{
+			segments = null;
+			segmentStart = null;
+			planeSegment = null;
+			return;
+		}
+
+		// combine consecutive planes into segments and map them
+		final int numPlanes = stripOffsets.length;
+		planeSegment = new int[ numPlanes ];
+		final ArrayList< long[] > spans = new ArrayList<>();
+		long segStart = -1;
+		long segEnd = -1;
+		for ( int i = 0; i < numPlanes; ++i )
+		{
+			long start = Long.MAX_VALUE;
+			long end = 0;
+			for ( int s = 0; s < stripOffsets[ i ].length; ++s )
+			{
+				start = Math.min( start, stripOffsets[ i ][ s ] );
+				end = Math.max( end, stripOffsets[ i ][ s ] + stripByteCounts[ i ][ s ] );
+			}
+			if ( segStart < 0 || start < segStart || end - segStart > MAX_SEGMENT_SIZE )
+			{
+				if ( segStart >= 0 )
+					spans.add( new long[] { segStart, segEnd } );
+				segStart = start;
+				segEnd = end;
+			}
+			else
+				segEnd = Math.max( segEnd, end );
+			planeSegment[ i ] = spans.size();
+		}
+		if ( segStart >= 0 )
+			spans.add( new long[] { segStart, segEnd } );
+
+		segments = new MappedByteBuffer[ spans.size() ];
+		segmentStart = new long[ spans.size() ];
+		for ( int i = 0; i < segments.length; ++i )
+		{
+			final long[] span = spans.get( i );
+			segmentStart[ i ] = span[ 0 ];
+			segments[ i ] = channel.map( FileChannel.MapMode.READ_ONLY, span[ 0 ], span[ 1 ] - span[ 0 ] );
+		}
+	}
+
+	/**
+	 * Parse all IFDs of the given file and map its planes into memory.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read, or is not an uncompressed,
+	 *             stripped, single-sample 8-bit, 16-bit, or 32-bit float TIFF.
+	 */
+	public static TiffPlanes open( final File file ) throws IOException
+	{
+		return parse( file, true );
+	}
+
+	/**
+	 * Parse all IFDs of the given file without mapping its planes. The
+	 * returned {@link TiffPlanes} provides size, type, and description, but
+	 * cannot {@link #readPlane(int) read planes}.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read, or is not an uncompressed,
+	 *             stripped, single-sample 8-bit, 16-bit, or 32-bit float TIFF.
+	 */
+	public static TiffPlanes readHeader( final File file ) throws IOException
+	{
+		return parse( file, false );
+	}
+
+	private static TiffPlanes parse( final File file, final boolean map ) throws IOException
+	{
+		try ( final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+				final FileChannel channel = raf.getChannel() )
+		{
+			final ByteBuffer header = read( channel, 0, 8, ByteOrder.BIG_ENDIAN );
+			final int b0 = header.get( 0 );
+			final int b1 = header.get( 1 );
+			final ByteOrder order;
+			if ( b0 == 'I' && b1 == 'I' )
+				order = ByteOrder.LITTLE_ENDIAN;
+			else if ( b0 == 'M' && b1 == 'M' )
+				order = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException( file + " is not a TIFF file" );
+			header.order( order );
+
+			final int magic = header.getShort( 2 ) & 0xffff;
+			final boolean bigTiff;
+			final long firstIfd;
+			if ( magic == 42 )
+			{
+				bigTiff = false;
+				firstIfd = header.getInt( 4 ) & 0xffffffffL;
+			}
+			else if ( magic == 43 )
+			{
+				bigTiff = true;
+				firstIfd = read( channel, 8, 8, order ).getLong( 0 );
+			}
+			else
+				throw new IOException( file + " is not a TIFF file" );
+
+			final IfdReader reader = new IfdReader( channel, order, bigTiff );
+			final ArrayList< long[] > offsets = new ArrayList<>();
+			final ArrayList< long[] > counts = new ArrayList<>();
+			final HashSet< Long > visited = new HashSet<>();
+			int width = -1;
+			int height = -1;
+			int bitsPerSample = -1;
+			int sampleFormat = -1;
+			String description = null;
+			for ( long ifd = firstIfd; ifd != 0 && visited.add( ifd ); ifd = reader.next )
+			{
+				reader.read( ifd, offsets.isEmpty() );
+				if ( reader.get( TAG_COMPRESSION, 1 ) != 1 )
+					throw new IOException( file + ": compressed TIFF is not supported" );
+				if ( reader.get( TAG_SAMPLES_PER_PIXEL, 1 ) != 1 )
+					throw new IOException( file + ": only single-sample TIFF is supported" );
+				if ( reader.get( TAG_TILE_WIDTH, -1 ) != -1 )
+					throw new IOException( file + ": tiled TIFF is not supported" );
+				final int w = ( int ) reader.get( TAG_IMAGE_WIDTH, -1 );
+				final int h = ( int ) reader.get( TAG_IMAGE_LENGTH, -1 );
+				final int bits = ( int ) reader.get( TAG_BITS_PER_SAMPLE, 1 );
+				final int format = ( int ) reader.get( TAG_SAMPLE_FORMAT, SAMPLE_FORMAT_UINT );
+				if ( offsets.isEmpty() )
+				{
+					width = w;
+					height = h;
+					bitsPerSample = bits;
+					sampleFormat = format;
+					description = reader.description;
+					final boolean supported =
+							( bits == 8 && format == SAMPLE_FORMAT_UINT ) ||
+							( bits == 16 && format == SAMPLE_FORMAT_UINT ) ||
+							( bits == 32 && format == SAMPLE_FORMAT_FLOAT );
+					if ( !supported )
+						throw new IOException( file + ": unsupported pixel type (" + bits + " bits, sample format " + format + ")" );
+				}
+				else if ( w != width || h != height || bits != bitsPerSample || format != sampleFormat )
+					throw new IOException( file + ": planes of different size or type are not supported" );
+				final long[] stripOffsets = reader.values.get( TAG_STRIP_OFFSETS );
+				final long[] stripByteCounts = reader.values.get( TAG_STRIP_BYTE_COUNTS );
+				if ( stripOffsets == null || stripByteCounts == null || stripOffsets.length != stripByteCounts.length )
+					throw new IOException( file + ": missing or inconsistent strip offsets" );
+				offsets.add( stripOffsets );
+				counts.add( stripByteCounts );
+			}
+			if ( offsets.isEmpty() )
+				throw new IOException( file + " contains no images" );
+
+			// ImageJ writes only one IFD for stacks larger than 4GB
+			final int numImages = getImageJNumImages( description );
+			if ( offsets.size() == 1 && numImages > 1 )
+			{
+				final long planeBytes = ( long ) width * height * ( bitsPerSample / 8 );
+				final long[] first = offsets.get( 0 );
+				final long[] firstCounts = counts.get( 0 );
+				for ( int s = 1; s < first.length; ++s )
+					if ( first[ s ] != first[ s - 1 ] + firstCounts[ s - 1 ] )
+						throw new IOException( file + ": non-contiguous ImageJ stack" );
+				if ( first[ 0 ] + numImages * planeBytes > channel.size() )
+					throw new IOException( file + " is truncated" );
+				for ( int i = 1; i < numImages; ++i )
+				{
+					offsets.add( new long[] { first[ 0 ] + i * planeBytes } );
+					counts.add( new long[] { planeBytes } );
+				}
+			}
+
+			return new TiffPlanes( width, height, bitsPerSample, sampleFormat, order, description,
+					offsets.toArray( new long[ 0 ][] ),
+					counts.toArray( new long[ 0 ][] ),
+					map ? channel : null );
+		}
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int numPlanes()
+	{
+		return stripOffsets.length;
+	}
+
+	/**
+	 * @return 8, 16, or 32.
+	 */
+	public int getBitsPerSample()
+	{
+		return bitsPerSample;
+	}
+
+	public int getBytesPerSample()
+	{
+		return bitsPerSample / 8;
+	}
+
+	/**
+	 * @return whether samples are 32-bit floats (otherwise they are unsigned
+	 *         integers).
+	 */
+	public boolean isFloat()
+	{
+		return sampleFormat == SAMPLE_FORMAT_FLOAT;
+	}
+
+	/**
+	 * @return the ImageDescription of the first IFD, or {@code null}.
+	 */
+	public String getDescription()
+	{
+		return description;
+	}
+
+	/**
+	 * Read plane {@code index} (0-based) into a new {@code byte[]},
+	 * {@code short[]}, or {@code float[]} array, depending on the bits per
+	 * sample.
+	 */
+	public Object readPlane( final int index )
+	{
+		if ( segments == null )
+			throw new IllegalStateException( "planes are not mapped" );
+		final int segment = planeSegment[ index ];
+		final ByteBuffer src = segments[ segment ].duplicate();
+		src.order( byteOrder );
+		final long[] offsets = stripOffsets[ index ];
+		final long[] counts = stripByteCounts[ index ];
+		final int bytesPerSample = getBytesPerSample();
+		final int n = width * height;
+
+		final Object pixels;
+		switch ( bitsPerSample )
+		{
+		case 8:
+			pixels = new byte[ n ];
+			break;
+		case 16:
+			pixels = new short[ n ];
+			break;
+		case 32:
+		default:
+			pixels = new float[ n ];
+			break;
+		}
+
+		int pos = 0;
+		for ( int s = 0; s < offsets.length && pos < n; ++s )
+		{
+			final int len = ( int ) Math.min( counts[ s ] / bytesPerSample, n - pos );
+			src.clear();
+			src.position( ( int ) ( offsets[ s ] - segmentStart[ segment ] ) );
+			switch ( bitsPerSample )
+			{
+			case 8:
+				src.get( ( byte[] ) pixels, pos, len );
+				break;
+			case 16:
+				src.asShortBuffer().get( ( short[] ) pixels, pos, len );
+				break;
+			case 32:
+			default:
+				src.asFloatBuffer().get( ( float[] ) pixels, pos, len );
+				break;
+			}
+			pos += len;
+		}
+		return pixels;
+	}
+
+	private static final Pattern IMAGEJ_IMAGES = Pattern.compile( "(?m)^images=(\\d+)" );
+
+	private static int getImageJNumImages( final String description )
+	{
+		if ( description == null || !description.startsWith( "ImageJ" ) )
+			return -1;
+		final Matcher matcher = IMAGEJ_IMAGES.matcher( description );
+		return matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : -1;
+	}
+
+	private static ByteBuffer read( final FileChannel channel, final long position, final int length, final ByteOrder order ) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.allocate( length ).order( order );
+		while ( buf.hasRemaining() )
+			if ( channel.read( buf, position + buf.position() ) < 0 )
+				throw new EOFException();
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Reads the entries of one IFD that are relevant for locating plane data.
+	 */
+	private static class IfdReader
+	{
+		private final FileChannel channel;
+
+		private final ByteOrder order;
+
+		private final boolean bigTiff;
+
+		final HashMap< Integer, long[] > values = new HashMap<>();
+
+		String description;
+
+		long next;
+
+		IfdReader( final FileChannel channel, final ByteOrder order, final boolean bigTiff )
+		{
+			this.channel = channel;
+			this.order = order;
+			this.bigTiff = bigTiff;
+		}
+
+		long get( final int tag, final long defaultValue )
+		{
+			final long[] v = values.get( tag );
+			return v == null || v.length == 0 ? defaultValue : v[ 0 ];
+		}
+
+		void read( final long ifd, final boolean readDescription ) throws IOException
+		{
+			values.clear();
+			description = null;
+
+			final int countSize = bigTiff ? 8 : 2;
+			final int entrySize = bigTiff ? 20 : 12;
+			final int offsetSize = bigTiff ? 8 : 4;
+			final ByteBuffer countBuf = TiffPlanes.read( channel, ifd, countSize, order );
+			final long numEntries = bigTiff ? countBuf.getLong( 0 ) : countBuf.getShort( 0 ) & 0xffff;
+			if ( numEntries <= 0 || numEntries > 0xffff )
+				throw new IOException( "invalid IFD at offset " + ifd );
+			final ByteBuffer entries = TiffPlanes.read( channel, ifd + countSize, ( int ) numEntries * entrySize + offsetSize, order );
+
+			for ( int e = 0; e < numEntries; ++e )
+			{
+				final int base = e * entrySize;
+				final int tag = entries.getShort( base ) & 0xffff;
+				final int type = entries.getShort( base + 2 ) & 0xffff;
+				final long count = bigTiff ? entries.getLong( base + 4 ) : entries.getInt( base + 4 ) & 0xffffffffL;
+				final int valuePos = base + ( bigTiff ? 12 : 8 );
+				switch ( tag )
+				{
+				case TAG_IMAGE_DESCRIPTION:
+					if ( readDescription && type == 2 && count > 0 && count < Integer.MAX_VALUE )
+					{
+						final ByteBuffer bytes = count <= offsetSize
+								? slice( entries, valuePos, ( int ) count )
+								: TiffPlanes.read( channel, offset( entries, valuePos ), ( int ) count, order );
+						final byte[] chars = new byte[ ( int ) count ];
+						bytes.get( chars );
+						description = new String( chars, StandardCharsets.ISO_8859_1 ).trim();
+					}
+					break;
+				case TAG_IMAGE_WIDTH:
+				case TAG_IMAGE_LENGTH:
+				case TAG_BITS_PER_SAMPLE:
+				case TAG_COMPRESSION:
+				case TAG_STRIP_OFFSETS:
+				case TAG_SAMPLES_PER_PIXEL:
+				case TAG_STRIP_BYTE_COUNTS:
+				case TAG_TILE_WIDTH:
+				case TAG_SAMPLE_FORMAT:
+				{
+					final int size = typeSize( type );
+					if ( size <= 0 || count > Integer.MAX_VALUE / size )
+						throw new IOException( "unsupported type " + type + " for TIFF tag " + tag );
+					final ByteBuffer bytes = count * size <= offsetSize
+							? slice( entries, valuePos, ( int ) count * size )
+							: TiffPlanes.read( channel, offset( entries, valuePos ), ( int ) count * size, order );
+					final long[] v = new long[ ( int ) count ];
+					for ( int i = 0; i < v.length; ++i )
+					{
+						switch ( type )
+						{
+						case 1: // BYTE
+							v[ i ] = bytes.get( i ) & 0xff;
+							break;
+						case 3: // SHORT
+							v[ i ] = bytes.getShort( 2 * i ) & 0xffff;
+							break;
+						case 4: // LONG
+							v[ i ] = bytes.getInt( 4 * i ) & 0xffffffffL;
+							break;
+						case 16: // LONG8
+						default:
+							v[ i ] = bytes.getLong( 8 * i );
+							break;
+						}
+					}
+					values.put( tag, v );
+					break;
+				}
+				default:
+					break;
+				}
+			}
+
+			final int nextPos = ( int ) numEntries * entrySize;
+			next = bigTiff ? entries.getLong( nextPos ) : entries.getInt( nextPos ) & 0xffffffffL;
+		}
+
+		private long offset( final ByteBuffer entries, final int valuePos )
+		{
+			return bigTiff ? entries.getLong( valuePos ) : entries.getInt( valuePos ) & 0xffffffffL;
+		}
+
+		private ByteBuffer slice( final ByteBuffer entries, final int pos, final int length )
+		{
+			final ByteBuffer dup = entries.duplicate();
+			dup.position( pos );
+			dup.limit( pos + length );
+			return dup.slice().order( order );
+		}
+
+		private static int typeSize( final int type )
+		{
+			switch ( type )
+			{
+			case 1: // BYTE
+				return 1;
+			case 3: // SHORT
+				return 2;
+			case 4: // LONG
+				return 4;
+			case 16: // LONG8
+				return 8;
+			default:
+				return -1;
+			}
+		}
+	}
+}
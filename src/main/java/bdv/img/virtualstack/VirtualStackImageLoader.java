@@ -51,6 +51,7 @@ import net.imglib2.type.volatiles.VolatileUnsignedShortType;
 
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
+import bdv.img.BlockLoadListener;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.VolatileGlobalCellCache;
 import ij.ImagePlus;
@@ -129,7 +130,7 @@ public class VirtualStackImageLoader< T extends NativeType< T >, V extends Volat
 
 	private static AffineTransform3D[] mipmapTransforms = new AffineTransform3D[] { new AffineTransform3D() };
 
-	private final CacheArrayLoader< A > loader;
+	private final VirtualStackArrayLoader< A > loader;
 
 	private final VolatileGlobalCellCache cache;
 
@@ -172,6 +173,16 @@ public class VirtualStackImageLoader< T extends NativeType< T >, V extends Volat
 		this( imp, wrapPixels, type, volatileType, 0 );
 	}
 
+	/**
+	 * Notify {@code listener} of every plane that is loaded (or stop doing so,
+	 * if {@code listener == null}). Only for GRAY8, GRAY16, and GRAY32
+	 * images.
+	 */
+	public void setBlockLoadListener( final BlockLoadListener listener )
+	{
+		loader.listener = listener;
+	}
+
 	@Override
 	public VolatileGlobalCellCache getCacheControl()
 	{
@@ -192,6 +203,8 @@ public class VirtualStackImageLoader< T extends NativeType< T >, V extends Volat
 
 		private final int bytesPerElement;
 
+		volatile BlockLoadListener listener;
+
 		public VirtualStackArrayLoader( final ImagePlus imp, final Function< Object, A > wrapPixels, final int bytesPerElement )
 		{
 			this.imp = imp;
@@ -205,7 +218,11 @@ public class VirtualStackImageLoader< T extends NativeType< T >, V extends Volat
 			final int channel = setup + 1;
 			final int slice = ( int ) min[ 2 ] + 1;
 			final int frame = timepoint + 1;
-			return wrapPixels.apply( imp.getStack().getProcessor( imp.getStackIndex( channel, slice, frame ) ).getPixels() );
+			final Object pixels = imp.getStack().getProcessor( imp.getStackIndex( channel, slice, frame ) ).getPixels();
+			final BlockLoadListener l = listener;
+			if ( l != null )
+				l.blockLoaded( setup, timepoint, slice - 1, pixels );
+			return wrapPixels.apply( pixels );
 		}
 
 		@Override
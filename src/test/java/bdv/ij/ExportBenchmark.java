@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+
+import bdv.export.ProgressWriter;
+import bdv.ij.util.PluginHelper;
+import bdv.img.SyntheticStacks;
+import bdv.img.SyntheticStacks.PixelType;
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * End-to-end benchmark of {@link ExportImagePlusPlugIn} and
+ * {@link ExportImagePlusAsN5PlugIn} on synthetic datasets, run without any
+ * dialogs. Sweeps output format, codec, chunk size, number of threads and
+ * virtual vs in-memory input, and prints one CSV line per run with throughput
+ * (uncompressed input MB per second), output size, peak RSS and peak heap.
+ * <p>
+ * All settings are taken from system properties (defaults in brackets):
+ * <ul>
+ * <li>{@code bench.type} pixel type: GRAY8, GRAY16, GRAY32 [GRAY16]</li>
+ * <li>{@code bench.size} width,height,depth [512,512,128]</li>
+ * <li>{@code bench.channels} [1]</li>
+ * <li>{@code bench.frames} [1]</li>
+ * <li>{@code bench.formats} [hdf5,n5]</li>
+ * <li>{@code bench.hdf5.codecs} deflate, raw [deflate,raw]</li>
+ * <li>{@code bench.n5.codecs} raw, gzip, lz4, xz, bzip2 [raw,gzip,lz4]</li>
+ * <li>{@code bench.chunks} chunk sizes, one per sweep step, used for all
+ * mipmap levels [{32,32,4};{64,64,64}]</li>
+ * <li>{@code bench.threads} [1,2,4,8]</li>
+ * <li>{@code bench.inputs} virtual, memory [virtual,memory]</li>
+ * <li>{@code bench.repeats} [1]</li>
+ * <li>{@code bench.dir} working directory [a new temporary directory]</li>
+ * </ul>
+ * Virtual input is a TIFF written to the working directory once and opened
+ * with {@link IJ#openVirtual(String)}. Exported files are deleted after each
+ * run. Peak RSS is read from {@code /proc/self/status} and reset between runs
+ * where the kernel supports it, so it is only reported on Linux.
+ */
+public class ExportBenchmark
+{
+	public static void main( final String[] args ) throws IOException
+	{
+		final PixelType pixelType = PixelType.valueOf( System.getProperty( "bench.type", "GRAY16" ) );
+		final int[] size = parseInts( System.getProperty( "bench.size", "512,512,128" ) );
+		final int numChannels = Integer.parseInt( System.getProperty( "bench.channels", "1" ) );
+		final int numFrames = Integer.parseInt( System.getProperty( "bench.frames", "1" ) );
+		final String[] formats = parseStrings( System.getProperty( "bench.formats", "hdf5,n5" ) );
+		final String[] hdf5Codecs = parseStrings( System.getProperty( "bench.hdf5.codecs", "deflate,raw" ) );
+		final String[] n5Codecs = parseStrings( System.getProperty( "bench.n5.codecs", "raw,gzip,lz4" ) );
+		final String[] chunks = System.getProperty( "bench.chunks", "{32,32,4};{64,64,64}" ).split( ";" );
+		final int[] threads = parseInts( System.getProperty( "bench.threads", "1,2,4,8" ) );
+		final String[] inputs = parseStrings( System.getProperty( "bench.inputs", "virtual,memory" ) );
+		final int repeats = Integer.parseInt( System.getProperty( "bench.repeats", "1" ) );
+		final String dirName = System.getProperty( "bench.dir" );
+		final File dir = dirName == null
+				? Files.createTempDirectory( "bdv-export-benchmark" ).toFile()
+				: new File( dirName );
+		dir.mkdirs();
+
+		final ImagePlus inMemory = SyntheticStacks.create( pixelType, size[ 0 ], size[ 1 ], numChannels, size[ 2 ], numFrames, false );
+		final long inputBytes = ( long ) inMemory.getWidth() * inMemory.getHeight() * inMemory.getStackSize() * inMemory.getBytesPerPixel();
+		final File tiff = new File( dir, "input.tif" );
+
+		System.out.println( "format,codec,chunk,threads,input,seconds,MBps,outputMB,peakRssMB,peakHeapMB" );
+		for ( final String input : inputs )
+		{
+			final ImagePlus imp;
+			if ( input.equals( "virtual" ) )
+			{
+				if ( !tiff.exists() )
+					IJ.saveAsTiff( inMemory, tiff.getAbsolutePath() );
+				imp = IJ.openVirtual( tiff.getAbsolutePath() );
+			}
+			else
+				imp = inMemory;
+
+			for ( final String format : formats )
+			{
+				final String[] codecs = format.equals( "n5" ) ? n5Codecs : hdf5Codecs;
+				for ( final String codec : codecs )
+					for ( final String chunk : chunks )
+						for ( final int numThreads : threads )
+							for ( int r = 0; r < repeats; ++r )
+							{
+								final File seqFile = new File( dir, "export.xml" );
+								final int[][] resolutions = ( format.equals( "n5" )
+										? ExportImagePlusAsN5PlugIn.proposeMipmaps( imp )
+										: ExportImagePlusPlugIn.proposeMipmaps( imp ) ).getExportResolutions();
+								final int[][] subdivisions = new int[ resolutions.length ][];
+								for ( int l = 0; l < resolutions.length; ++l )
+									subdivisions[ l ] = PluginHelper.parseResolutionsString( chunk )[ 0 ];
+
+								resetPeakMemory();
+								final long t0 = System.nanoTime();
+								final File output;
+								if ( format.equals( "n5" ) )
+								{
+									output = new File( dir, "export.n5" );
+									final ExportImagePlusAsN5PlugIn.Parameters params = new ExportImagePlusAsN5PlugIn.Parameters(
+											true, resolutions, subdivisions, seqFile, output, n5Compression( codec ) );
+									ExportImagePlusAsN5PlugIn.export( imp, params, numThreads, silentProgressWriter() );
+								}
+								else
+								{
+									output = new File( dir, "export.h5" );
+									final ExportImagePlusPlugIn.Parameters params = new ExportImagePlusPlugIn.Parameters(
+											true, resolutions, subdivisions, seqFile, output, codec.equals( "deflate" ), false, 0, 0 );
+									ExportImagePlusPlugIn.export( imp, params, numThreads, silentProgressWriter() );
+								}
+								final double seconds = ( System.nanoTime() - t0 ) * 1e-9;
+
+								final long outputBytes = sizeOf( output.toPath() );
+								System.out.println( String.format( "%s,%s,%s,%d,%s,%.3f,%.1f,%.1f,%.1f,%.1f",
+										format, codec, chunk.replace( ",", " " ), numThreads, input,
+										seconds, inputBytes / 1e6 / seconds, outputBytes / 1e6,
+										peakRssBytes() / 1e6, peakHeapBytes() / 1e6 ) );
+
+								delete( output.toPath() );
+								delete( seqFile.toPath() );
+							}
+			}
+		}
+		System.exit( 0 );
+	}
+
+	static Compression n5Compression( final String codec )
+	{
+		switch ( codec )
+		{
+		case "gzip":
+			return new GzipCompression();
+		case "lz4":
+			return new Lz4Compression();
+		case "xz":
+			return new XzCompression();
+		case "bzip2":
+			return new Bzip2Compression();
+		case "raw":
+			return new RawCompression();
+		default:
+			throw new IllegalArgumentException( "unknown n5 codec: " + codec );
+		}
+	}
+
+	static ProgressWriter silentProgressWriter()
+	{
+		final PrintStream nowhere = new PrintStream( new OutputStream()
+		{
+			@Override
+			public void write( final int b )
+			{}
+		} );
+		return new ProgressWriter()
+		{
+			@Override
+			public PrintStream out()
+			{
+				return nowhere;
+			}
+
+			@Override
+			public PrintStream err()
+			{
+				return System.err;
+			}
+
+			@Override
+			public void setProgress( final double completionRatio )
+			{}
+		};
+	}
+
+	/**
+	 * Reset peak heap usage of the JVM, and the peak resident set size of the
+	 * process (Linux only, silently ignored elsewhere).
+	 */
+	static void resetPeakMemory()
+	{
+		System.gc();
+		for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+			pool.resetPeakUsage();
+		try
+		{
+			Files.write( Paths.get( "/proc/self/clear_refs" ), "5".getBytes( StandardCharsets.US_ASCII ) );
+		}
+		catch ( final IOException | SecurityException e )
+		{
+			// not supported on this platform
+		}
+	}
+
+	/**
+	 * @return peak resident set size of the process in bytes, or -1 if not
+	 *         available.
+	 */
+	static long peakRssBytes()
+	{
+		try
+		{
+			for ( final String line : Files.readAllLines( Paths.get( "/proc/self/status" ) ) )
+				if ( line.startsWith( "VmHWM:" ) )
+					return 1024 * Long.parseLong( line.replaceAll( "[^0-9]", "" ) );
+		}
+		catch ( final IOException | SecurityException e )
+		{
+			// not supported on this platform
+		}
+		return -1;
+	}
+
+	static long peakHeapBytes()
+	{
+		long peak = 0;
+		for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+			if ( pool.getType() == MemoryType.HEAP )
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	static long sizeOf( final Path path ) throws IOException
+	{
+		if ( !Files.exists( path ) )
+			return 0;
+		try ( Stream< Path > files = Files.walk( path ) )
+		{
+			return files.filter( Files::isRegularFile ).mapToLong( p -> p.toFile().length() ).sum();
+		}
+	}
+
+	static void delete( final Path path ) throws IOException
+	{
+		if ( !Files.exists( path ) )
+			return;
+		try ( Stream< Path > files = Files.walk( path ) )
+		{
+			final List< Path > sorted = new ArrayList<>();
+			files.sorted( Comparator.reverseOrder() ).forEach( sorted::add );
+			for ( final Path p : sorted )
+				Files.delete( p );
+		}
+	}
+
+	private static int[] parseInts( final String s )
+	{
+		final String[] parts = parseStrings( s );
+		final int[] ints = new int[ parts.length ];
+		for ( int i = 0; i < parts.length; ++i )
+			ints[ i ] = Integer.parseInt( parts[ i ] );
+		return ints;
+	}
+
+	private static String[] parseStrings( final String s )
+	{
+		return s.trim().split( "\\s*,\\s*" );
+	}
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.n5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.junit.Test;
+
+public class BlockIndexTest
+{
+	@Test
+	public void testWriteReadRoundTrip() throws IOException
+	{
+		// 139 = 69 * 2 + 1, 8 = 2 * 3 + 2, 10 = 2 * 4 + 2: partial image
+		// blocks at the upper edge of every dimension. The grid is 70 blocks
+		// wide, so the index itself is split into a full and a partial block
+		// along X.
+		final long[] imageDimensions = { 139, 8, 10 };
+		final int[] imageBlockSize = { 2, 3, 4 };
+		final BlockIndex index = new BlockIndex( imageDimensions, imageBlockSize, true );
+		final long[] gridSize = index.getGridSize();
+		assertArrayEquals( new long[] { 70, 3, 3 }, gridSize );
+
+		final long[] pos = new long[ 3 ];
+		for ( pos[ 2 ] = 0; pos[ 2 ] < gridSize[ 2 ]; ++pos[ 2 ] )
+			for ( pos[ 1 ] = 0; pos[ 1 ] < gridSize[ 1 ]; ++pos[ 1 ] )
+				for ( pos[ 0 ] = 0; pos[ 0 ] < gridSize[ 0 ]; ++pos[ 0 ] )
+					index.record( pos, blockData( pos, imageDimensions, imageBlockSize ) );
+
+		final N5Writer n5 = new N5FSWriter( Files.createTempDirectory( "blockindex" ).toString() );
+		try
+		{
+			final String pathName = BlockIndex.getPathName( 1, 2, 0 );
+			index.write( n5, pathName );
+			assertNull( BlockIndex.read( n5, 1, 2, 1 ) );
+
+			final BlockIndex read = BlockIndex.read( n5, 1, 2, 0 );
+			assertNotNull( read );
+			assertArrayEquals( gridSize, read.getGridSize() );
+			assertArrayEquals( imageBlockSize, read.getImageBlockSize() );
+			for ( pos[ 2 ] = 0; pos[ 2 ] < gridSize[ 2 ]; ++pos[ 2 ] )
+				for ( pos[ 1 ] = 0; pos[ 1 ] < gridSize[ 1 ]; ++pos[ 1 ] )
+					for ( pos[ 0 ] = 0; pos[ 0 ] < gridSize[ 0 ]; ++pos[ 0 ] )
+					{
+						assertEquals( index.getMin( pos ), read.getMin( pos ), 0 );
+						assertEquals( index.getMax( pos ), read.getMax( pos ), 0 );
+						assertEquals( index.getMean( pos ), read.getMean( pos ), 0 );
+					}
+			assertArrayEquals( index.getRange(), read.getRange(), 0 );
+			assertEquals( index.getBlocksAbove( 40000 ).size(), read.getBlocksAbove( 40000 ).size() );
+		}
+		finally
+		{
+			n5.remove();
+		}
+	}
+
+	@Test
+	public void testPartialEdgeBlock()
+	{
+		final BlockIndex index = new BlockIndex( new long[] { 5, 3 }, new int[] { 4, 4 }, true );
+		assertArrayEquals( new long[] { 2, 1 }, index.getGridSize() );
+		// the edge block at grid position (1, 0) holds 1 x 3 values
+		index.record( new long[] { 1, 0 }, new short[] { 1, ( short ) 65535, 2 } );
+		assertEquals( 1, index.getMin( 1, 0 ), 0 );
+		assertEquals( 65535, index.getMax( 1, 0 ), 0 );
+		assertEquals( ( 1 + 65535 + 2 ) / 3.0, index.getMean( 1, 0 ), 1e-9 );
+	}
+
+	/**
+	 * Unsigned short data of the (possibly partial) image block at
+	 * {@code gridPosition}, with values that differ between blocks and exceed
+	 * the signed range in some of them.
+	 */
+	private static short[] blockData( final long[] gridPosition, final long[] imageDimensions, final int[] imageBlockSize )
+	{
+		int numElements = 1;
+		for ( int d = 0; d < gridPosition.length; ++d )
+			numElements *= ( int ) Math.min( imageBlockSize[ d ], imageDimensions[ d ] - gridPosition[ d ] * imageBlockSize[ d ] );
+		final short[] data = new short[ numElements ];
+		final long seed = gridPosition[ 0 ] + 97 * gridPosition[ 1 ] + 1009 * gridPosition[ 2 ];
+		for ( int i = 0; i < numElements; ++i )
+			data[ i ] = ( short ) ( seed * 211 + i * 37 );
+		return data;
+	}
+}
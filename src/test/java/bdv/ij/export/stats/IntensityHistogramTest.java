@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.ij.export.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IntensityHistogramTest
+{
+	@Test
+	public void testNonFiniteFloatsAreIgnored()
+	{
+		final IntensityHistogram h = IntensityHistogram.forFloat();
+		h.add( new float[] { 1, 2, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 3 } );
+		assertEquals( 3, h.getCount() );
+		assertEquals( 1, h.getMin(), 0 );
+		assertEquals( 3, h.getMax(), 0 );
+		assertTrue( Double.isFinite( h.getBinWidth() ) );
+		assertEquals( 2, h.getPercentile( 50 ), 1e-3 );
+
+		h.add( Double.NaN );
+		h.add( Double.POSITIVE_INFINITY );
+		h.add( Double.NEGATIVE_INFINITY );
+		assertEquals( 3, h.getCount() );
+		assertEquals( 1, h.getMin(), 0 );
+		assertEquals( 3, h.getMax(), 0 );
+	}
+
+	@Test
+	public void testOnlyNonFiniteFloats()
+	{
+		final IntensityHistogram h = IntensityHistogram.forFloat();
+		h.add( new float[] { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY } );
+		assertEquals( 0, h.getCount() );
+		assertTrue( Double.isNaN( h.getMin() ) );
+		assertTrue( Double.isNaN( h.getPercentile( 50 ) ) );
+
+		// an infinity seen first must not fix the bin layout
+		h.add( new float[] { 0.25f, 0.5f, 0.75f } );
+		assertEquals( 3, h.getCount() );
+		assertTrue( h.getBinWidth() < 0.25 );
+		assertEquals( 0.5, h.getPercentile( 50 ), 1e-3 );
+	}
+
+	@Test
+	public void testCoarsening()
+	{
+		final IntensityHistogram h = IntensityHistogram.forFloat();
+		final float[] small = new float[ 1000 ];
+		for ( int i = 0; i < small.length; ++i )
+			small[ i ] = i / 1000f;
+		h.add( small );
+		final double fineBinWidth = h.getBinWidth();
+
+		h.add( new float[] { -1e6f, 1e6f } );
+		assertTrue( h.getBinWidth() > fineBinWidth );
+		assertTrue( h.getBinWidth() < 1e6 );
+		assertEquals( 1002, h.getCount() );
+		assertEquals( -1e6, h.getMin(), 0 );
+		assertEquals( 1e6, h.getMax(), 0 );
+
+		long total = 0;
+		for ( final long n : h.getCounts() )
+			total += n;
+		assertEquals( 1002, total );
+		assertEquals( 0.5, h.getPercentile( 50 ), h.getBinWidth() );
+	}
+
+	@Test
+	public void testPercentileFloat()
+	{
+		final IntensityHistogram h = IntensityHistogram.forFloat();
+		final float[] values = new float[ 10000 ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = i;
+		h.add( values );
+		assertEquals( 0, h.getPercentile( 0 ), 0 );
+		assertEquals( 9999, h.getPercentile( 100 ), 0 );
+		assertEquals( 5000, h.getPercentile( 50 ), h.getBinWidth() + 1 );
+		assertEquals( 9990, h.getPercentile( 99.9 ), h.getBinWidth() + 1 );
+	}
+
+	@Test
+	public void testPercentileUnsignedInteger()
+	{
+		final IntensityHistogram h = IntensityHistogram.forUnsignedInteger( 8 );
+		final byte[] values = new byte[ 100 ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = ( byte ) ( i + 100 );
+		h.add( values );
+		assertEquals( 100, h.getCount() );
+		assertEquals( 100, h.getMin(), 0 );
+		assertEquals( 199, h.getMax(), 0 );
+		assertEquals( 149, h.getPercentile( 50 ), 0 );
+		assertEquals( 100, h.getPercentile( 0 ), 0 );
+		assertEquals( 199, h.getPercentile( 100 ), 0 );
+	}
+
+	@Test
+	public void testMerge()
+	{
+		final IntensityHistogram a = IntensityHistogram.forFloat();
+		final IntensityHistogram b = a.createEmpty();
+		final IntensityHistogram all = a.createEmpty();
+		final float[] low = new float[ 500 ];
+		final float[] high = new float[ 500 ];
+		for ( int i = 0; i < 500; ++i )
+		{
+			low[ i ] = i / 500f;
+			high[ i ] = 1000 + i;
+		}
+		a.add( low );
+		b.add( high );
+		all.add( low );
+		all.add( high );
+
+		a.add( b );
+		assertEquals( 1000, a.getCount() );
+		assertEquals( all.getMin(), a.getMin(), 0 );
+		assertEquals( all.getMax(), a.getMax(), 0 );
+		final double tolerance = Math.max( a.getBinWidth(), all.getBinWidth() );
+		assertEquals( all.getPercentile( 25 ), a.getPercentile( 25 ), tolerance );
+		assertEquals( all.getPercentile( 75 ), a.getPercentile( 75 ), tolerance );
+	}
+}
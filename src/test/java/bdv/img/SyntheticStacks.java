@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Generates synthetic {@link ImagePlus} hyperstacks for benchmarks. Pixel
+ * values are a deterministic function of position and plane index, so repeated
+ * runs see identical data.
+ *
+ * Virtual stacks are not backed by files. Planes are generated whenever
+ * {@link VirtualStack#getProcessor(int)} is called, so every cache miss pays
+ * for a fresh plane allocation, just like a file-backed virtual stack.
+ */
+public class SyntheticStacks
+{
+	public enum PixelType
+	{
+		GRAY8( ImagePlus.GRAY8 ),
+		GRAY16( ImagePlus.GRAY16 ),
+		GRAY32( ImagePlus.GRAY32 ),
+		ARGB( ImagePlus.COLOR_RGB );
+
+		private final int impType;
+
+		PixelType( final int impType )
+		{
+			this.impType = impType;
+		}
+
+		public int getImagePlusType()
+		{
+			return impType;
+		}
+	}
+
+	public static ImagePlus create(
+			final PixelType pixelType,
+			final int width,
+			final int height,
+			final int numChannels,
+			final int numSlices,
+			final int numFrames,
+			final boolean virtual )
+	{
+		final int numPlanes = numChannels * numSlices * numFrames;
+		final ImageStack stack;
+		if ( virtual )
+			stack = new SyntheticVirtualStack( pixelType, width, height, numPlanes );
+		else
+		{
+			stack = new ImageStack( width, height );
+			for ( int i = 0; i < numPlanes; ++i )
+				stack.addSlice( "", createProcessor( pixelType, width, height, i ) );
+		}
+		final ImagePlus imp = new ImagePlus( "synthetic " + pixelType, stack );
+		imp.setDimensions( numChannels, numSlices, numFrames );
+		imp.setOpenAsHyperStack( true );
+		return imp;
+	}
+
+	/**
+	 * Create a processor for the (0-based) plane index {@code plane}.
+	 */
+	public static ImageProcessor createProcessor( final PixelType pixelType, final int width, final int height, final int plane )
+	{
+		final int n = width * height;
+		switch ( pixelType )
+		{
+		case GRAY8:
+		{
+			final byte[] pixels = new byte[ n ];
+			for ( int i = 0; i < n; ++i )
+				pixels[ i ] = ( byte ) value( i, width, plane );
+			return new ByteProcessor( width, height, pixels );
+		}
+		case GRAY16:
+		{
+			final short[] pixels = new short[ n ];
+			for ( int i = 0; i < n; ++i )
+				pixels[ i ] = ( short ) value( i, width, plane );
+			return new ShortProcessor( width, height, pixels, null );
+		}
+		case GRAY32:
+		{
+			final float[] pixels = new float[ n ];
+			for ( int i = 0; i < n; ++i )
+				pixels[ i ] = value( i, width, plane ) * 0.5f;
+			return new FloatProcessor( width, height, pixels );
+		}
+		case ARGB:
+		default:
+		{
+			final int[] pixels = new int[ n ];
+			for ( int i = 0; i < n; ++i )
+			{
+				final int v = value( i, width, plane ) & 0xff;
+				pixels[ i ] = 0xff000000 | ( v << 16 ) | ( ( 255 - v ) << 8 ) | ( v >> 1 );
+			}
+			return new ColorProcessor( width, height, pixels );
+		}
+		}
+	}
+
+	/**
+	 * Visit every pixel of {@code img} and sum up the values.
+	 */
+	public static double sum( final RandomAccessibleInterval< ? > img )
+	{
+		final Cursor< ? > c = Views.flatIterable( img ).cursor();
+		double sum = 0;
+		if ( c.hasNext() && c.next() instanceof ARGBType )
+		{
+			c.reset();
+			while ( c.hasNext() )
+				sum += ( ( ARGBType ) c.next() ).get();
+		}
+		else
+		{
+			c.reset();
+			while ( c.hasNext() )
+				sum += ( ( RealType< ? > ) c.next() ).getRealDouble();
+		}
+		return sum;
+	}
+
+	private static int value( final int i, final int width, final int plane )
+	{
+		final int x = i % width;
+		final int y = i / width;
+		return ( x + 3 * y + 7 * plane ) & 0xfff;
+	}
+
+	static class SyntheticVirtualStack extends VirtualStack
+	{
+		private final PixelType pixelType;
+
+		private final int numPlanes;
+
+		SyntheticVirtualStack( final PixelType pixelType, final int width, final int height, final int numPlanes )
+		{
+			super( width, height, null, null );
+			this.pixelType = pixelType;
+			this.numPlanes = numPlanes;
+		}
+
+		@Override
+		public ImageProcessor getProcessor( final int n )
+		{
+			return createProcessor( pixelType, getWidth(), getHeight(), n - 1 );
+		}
+
+		@Override
+		public Object getPixels( final int n )
+		{
+			return getProcessor( n ).getPixels();
+		}
+
+		@Override
+		public int getSize()
+		{
+			return numPlanes;
+		}
+
+		@Override
+		public String getSliceLabel( final int n )
+		{
+			return null;
+		}
+	}
+}
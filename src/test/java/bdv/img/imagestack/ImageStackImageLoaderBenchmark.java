@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img.imagestack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.img.SyntheticStacks;
+import bdv.img.SyntheticStacks.PixelType;
+import ij.ImagePlus;
+import net.imglib2.RandomAccess;
+
+/**
+ * Benchmarks {@link ImageStackImageLoader} on synthetic in-memory stacks:
+ * {@code getImage} overhead (wrapping the planes of a frame into a
+ * {@code PlanarImg}), per-plane access, and full iteration throughput.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 4, time = 1 )
+@Measurement( iterations = 8, time = 1 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+public class ImageStackImageLoaderBenchmark
+{
+	@Param( { "GRAY8", "GRAY16", "GRAY32", "ARGB" } )
+	public PixelType pixelType;
+
+	@Param( { "512" } )
+	public int planeSize;
+
+	@Param( { "32" } )
+	public int numSlices;
+
+	private ImageStackImageLoader< ?, ? > loader;
+
+	private int nextSlice;
+
+	@Setup
+	public void setup()
+	{
+		final ImagePlus imp = SyntheticStacks.create( pixelType, planeSize, planeSize, 1, numSlices, 1, false );
+		loader = createLoader( imp );
+	}
+
+	@Benchmark
+	public void getImage( final Blackhole bh )
+	{
+		bh.consume( loader.getSetupImgLoader( 0 ).getImage( 0 ) );
+	}
+
+	@Benchmark
+	public void planeAccess( final Blackhole bh )
+	{
+		final int z = nextSlice++ % numSlices;
+		final RandomAccess< ? > access = loader.getSetupImgLoader( 0 ).getImage( 0 ).randomAccess();
+		access.setPosition( z, 2 );
+		bh.consume( access.get() );
+	}
+
+	@Benchmark
+	public void iterate( final Blackhole bh )
+	{
+		bh.consume( SyntheticStacks.sum( loader.getSetupImgLoader( 0 ).getImage( 0 ) ) );
+	}
+
+	static ImageStackImageLoader< ?, ? > createLoader( final ImagePlus imp )
+	{
+		switch ( imp.getType() )
+		{
+		case ImagePlus.GRAY8:
+			return ImageStackImageLoader.createUnsignedByteInstance( imp );
+		case ImagePlus.GRAY16:
+			return ImageStackImageLoader.createUnsignedShortInstance( imp );
+		case ImagePlus.GRAY32:
+			return ImageStackImageLoader.createFloatInstance( imp );
+		case ImagePlus.COLOR_RGB:
+		default:
+			return ImageStackImageLoader.createARGBInstance( imp );
+		}
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( ImageStackImageLoaderBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}
@@ -0,0 +1,200 @@
+/*-
+ * #%L
+ * Fiji plugins for starting BigDataViewer and exporting data.
+ * %%
+ * Copyright (C) 2014 - 2024 BigDataViewer developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package bdv.img.virtualstack;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.img.SyntheticStacks;
+import bdv.img.SyntheticStacks.PixelType;
+import bdv.img.virtualstack.VirtualStackImageLoader.VirtualStackArrayLoader;
+import ij.ImagePlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.basictypeaccess.DataAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Benchmarks the hot paths of {@link VirtualStackImageLoader} on synthetic
+ * virtual stacks: single plane load latency, cell access throughput with cold
+ * and warm cache, and {@code getImage} overhead.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 4, time = 1 )
+@Measurement( iterations = 8, time = 1 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+public class VirtualStackImageLoaderBenchmark
+{
+	@Param( { "GRAY8", "GRAY16", "GRAY32", "ARGB" } )
+	public PixelType pixelType;
+
+	@Param( { "512" } )
+	public int planeSize;
+
+	@Param( { "32" } )
+	public int numSlices;
+
+	private VirtualStackImageLoader< ?, ?, ? > loader;
+
+	private VirtualStackArrayLoader< DataAccess > arrayLoader;
+
+	private int nextSlice;
+
+	@Setup
+	public void setup()
+	{
+		final ImagePlus imp = SyntheticStacks.create( pixelType, planeSize, planeSize, 1, numSlices, 1, true );
+		loader = createLoader( imp );
+		arrayLoader = new VirtualStackArrayLoader<>( imp, wrapPixels( pixelType ), bytesPerElement( pixelType ) );
+		// touch all planes once, so that the cached benchmarks start warm
+		SyntheticStacks.sum( loader.getSetupImgLoader( 0 ).getImage( 0 ) );
+	}
+
+	/**
+	 * Cleared before every invocation of the benchmarks that take it as a
+	 * parameter, so that those measure cold reads.
+	 */
+	@State( Scope.Benchmark )
+	public static class ColdCache
+	{
+		@Setup( Level.Invocation )
+		public void clear( final VirtualStackImageLoaderBenchmark benchmark )
+		{
+			benchmark.loader.getCacheControl().clearCache();
+		}
+	}
+
+	@Benchmark
+	public void loadArray( final Blackhole bh ) throws InterruptedException
+	{
+		final int z = nextSlice++ % numSlices;
+		bh.consume( arrayLoader.loadArray( 0, 0, 0, new int[] { planeSize, planeSize, 1 }, new long[] { 0, 0, z } ) );
+	}
+
+	@Benchmark
+	public void planeAccessCold( final ColdCache cold, final Blackhole bh )
+	{
+		final int z = nextSlice++ % numSlices;
+		final RandomAccess< ? > access = loader.getSetupImgLoader( 0 ).getImage( 0 ).randomAccess();
+		access.setPosition( z, 2 );
+		bh.consume( access.get() );
+	}
+
+	@Benchmark
+	public void iterateCold( final ColdCache cold, final Blackhole bh )
+	{
+		bh.consume( SyntheticStacks.sum( loader.getSetupImgLoader( 0 ).getImage( 0 ) ) );
+	}
+
+	@Benchmark
+	public void iterateCached( final Blackhole bh )
+	{
+		bh.consume( SyntheticStacks.sum( loader.getSetupImgLoader( 0 ).getImage( 0 ) ) );
+	}
+
+	@Benchmark
+	public void getImage( final Blackhole bh )
+	{
+		bh.consume( loader.getSetupImgLoader( 0 ).getImage( 0 ) );
+	}
+
+	@Benchmark
+	public void getVolatileImage( final Blackhole bh )
+	{
+		bh.consume( loader.getSetupImgLoader( 0 ).getVolatileImage( 0, 0 ) );
+	}
+
+	static VirtualStackImageLoader< ?, ?, ? > createLoader( final ImagePlus imp )
+	{
+		switch ( imp.getType() )
+		{
+		case ImagePlus.GRAY8:
+			return VirtualStackImageLoader.createUnsignedByteInstance( imp );
+		case ImagePlus.GRAY16:
+			return VirtualStackImageLoader.createUnsignedShortInstance( imp );
+		case ImagePlus.GRAY32:
+			return VirtualStackImageLoader.createFloatInstance( imp );
+		case ImagePlus.COLOR_RGB:
+		default:
+			return VirtualStackImageLoader.createARGBInstance( imp );
+		}
+	}
+
+	static Function< Object, DataAccess > wrapPixels( final PixelType pixelType )
+	{
+		switch ( pixelType )
+		{
+		case GRAY8:
+			return array -> new VolatileByteArray( ( byte[] ) array, true );
+		case GRAY16:
+			return array -> new VolatileShortArray( ( short[] ) array, true );
+		case GRAY32:
+			return array -> new VolatileFloatArray( ( float[] ) array, true );
+		case ARGB:
+		default:
+			return array -> new VolatileIntArray( ( int[] ) array, true );
+		}
+	}
+
+	static int bytesPerElement( final PixelType pixelType )
+	{
+		switch ( pixelType )
+		{
+		case GRAY8:
+			return 1;
+		case GRAY16:
+			return 2;
+		case GRAY32:
+		case ARGB:
+		default:
+			return 4;
+		}
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder()
+				.include( VirtualStackImageLoaderBenchmark.class.getSimpleName() )
+				.build() ).run();
+	}
+}